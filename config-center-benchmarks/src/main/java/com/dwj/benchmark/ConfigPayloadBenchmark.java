@@ -0,0 +1,121 @@
+package com.dwj.benchmark;
+
+import com.dwj.payload.ConfigPayload;
+import com.dwj.payload.LineDelta;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/06/30
+ * @description: 配置节点数据格式对比
+ * legacy*：原 {"content": ..., "fileName": ...} JSON格式
+ * envelope*：二进制信封(deflate压缩+md5校验)，envelopeEncodeTraced带发布id和发布时间(配置中心发布时的实际路径)
+ * delta*：修改少量行后的按行增量计算(配置中心)与应用(终端)
+ * setup时输出各格式的节点数据大小
+ * 运行：java -jar target/benchmarks.jar ConfigPayloadBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigPayloadBenchmark {
+    private static final String FILE_NAME = "application.yml";
+
+    /**
+     * 配置文件大小 KB
+     */
+    @Param({"1", "64", "512"})
+    public int sizeKb;
+
+    private byte[] content;
+    private byte[] legacyData;
+    private byte[] envelopeData;
+    private byte[] modified;
+    private byte[] delta;
+
+    @Setup
+    public void setup() {
+        content = yaml(sizeKb * 1024);
+        legacyData = ConfigPayload.encodeLegacy(FILE_NAME, content);
+        envelopeData = ConfigPayload.encode(FILE_NAME, content);
+        System.out.printf("%n原始大小：%d，JSON格式：%d，二进制信封：%d(%.1f%%)%n", content.length, legacyData.length,
+                envelopeData.length, envelopeData.length * 100.0 / legacyData.length);
+        modified = modify(content);
+        delta = LineDelta.diff(content, modified);
+        System.out.printf("修改后大小：%d，增量：%d%n", modified.length, delta.length);
+    }
+
+    /**
+     * 每50行修改一行 模拟一次常规的配置修改
+     */
+    static byte[] modify(byte[] content) {
+        String[] lines = new String(content, StandardCharsets.UTF_8).split("\n", -1);
+        for (int i = 0; i < lines.length; i += 50) {
+            lines[i] = lines[i] + " #modified";
+        }
+        return String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 生成近似真实配置的YAML文本 含引号、反斜杠和中文，体现JSON转义开销
+     */
+    static byte[] yaml(int size) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(size + 128);
+        int section = 0;
+        while (sb.length() < size) {
+            sb.append("service").append(section++).append(":\n");
+            for (int i = 0; i < 12 && sb.length() < size; i++) {
+                sb.append("  item").append(i).append(":\n")
+                        .append("    url: \"jdbc:mysql://10.0.").append(random.nextInt(255)).append('.').append(random.nextInt(255))
+                        .append(":3306/db_").append(random.nextInt(100)).append("?useUnicode=true\"\n")
+                        .append("    path: C:\\\\data\\\\config\\\\").append(random.nextInt(1000)).append('\n')
+                        .append("    timeout: ").append(random.nextInt(60000)).append('\n')
+                        .append("    # 服务配置说明 ").append(random.nextInt()).append('\n');
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] legacyEncode() {
+        return ConfigPayload.encodeLegacy(FILE_NAME, content);
+    }
+
+    @Benchmark
+    public byte[] envelopeEncode() {
+        return ConfigPayload.encode(FILE_NAME, content);
+    }
+
+    @Benchmark
+    public byte[] envelopeEncodeTraced() {
+        return ConfigPayload.encode(FILE_NAME, content, "0123456789abcdef0123456789abcdef", System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public byte[] legacyDecode() throws IOException {
+        return ConfigPayload.decode(legacyData).getContent();
+    }
+
+    @Benchmark
+    public byte[] envelopeDecode() throws IOException {
+        return ConfigPayload.decode(envelopeData).getContent();
+    }
+
+    @Benchmark
+    public byte[] deltaDiff() {
+        return LineDelta.diff(content, modified);
+    }
+
+    @Benchmark
+    public byte[] deltaApply() throws IOException {
+        return LineDelta.apply(content, delta);
+    }
+}
@@ -0,0 +1,85 @@
+package com.dwj.benchmark;
+
+import com.dwj.config.DigestIndex;
+import com.dwj.resource.SysProperties;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/07/14
+ * @description: 判断本地配置是否变化的摘要比对
+ * legacyCheckMd5：原checkMd5 读取整个本地文件，本地内容和节点内容各算一次md5再比较字符串
+ * payloadMd5：节点数据自带md5，只计算本地文件的md5
+ * digestIndex：DigestIndex命中时只stat一次文件，不读取内容
+ * 运行：java -jar target/benchmarks.jar DigestIndexBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DigestIndexBenchmark {
+
+    /**
+     * 配置文件大小 KB
+     */
+    @Param({"1", "64", "1024"})
+    public int sizeKb;
+
+    private Path dir;
+    private Path file;
+    private String content;
+    private String md5;
+
+    @Setup
+    public void setup() throws IOException {
+        Path configDir = Files.createTempDirectory("digest-index-bench");
+        Map<String, String> zookeeper = new LinkedHashMap<>();
+        zookeeper.put("zookeeper.config.path", configDir.toString());
+        zookeeper.put("zookeeper.config.state.path", configDir.resolve(".config-center").toString());
+        dir = PropertiesFixture.createDir(Collections.singletonMap("zookeeper", zookeeper));
+        SysProperties.getInstance();
+
+        byte[] bytes = ConfigPayloadBenchmark.yaml(sizeKb * 1024);
+        content = new String(bytes, StandardCharsets.UTF_8);
+        md5 = DigestUtils.md5Hex(bytes);
+        file = configDir.resolve("application.yml");
+        Files.write(file, bytes);
+        //修改时间在文件系统时间精度之外，索引才会直接使用记录的md5
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1)));
+        DigestIndex.getInstance().record(file, md5);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        PropertiesFixture.delete(file.getParent());
+        PropertiesFixture.delete(dir);
+    }
+
+    @Benchmark
+    public boolean legacyCheckMd5() throws IOException {
+        return DigestUtils.md5Hex(Files.readAllBytes(file)).equals(DigestUtils.md5Hex(content));
+    }
+
+    @Benchmark
+    public boolean payloadMd5() throws IOException {
+        return md5.equals(DigestUtils.md5Hex(Files.readAllBytes(file)));
+    }
+
+    @Benchmark
+    public boolean digestIndex() throws IOException {
+        return md5.equals(DigestIndex.getInstance().digest(file));
+    }
+}
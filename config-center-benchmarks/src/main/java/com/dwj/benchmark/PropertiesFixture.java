@@ -0,0 +1,92 @@
+package com.dwj.benchmark;
+
+import com.dwj.resource.SysProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * @author daiwj
+ * @date 2021/07/14
+ * @description: 基准测试用的临时配置目录
+ * SysProperties为单例，需在首次使用前把PROPERTIES_FILE_DIR指向临时目录；目录中的sys.properties把文件监听的防抖时间设为1小时，
+ * 测量期间直接改写文件不会再触发后台reload
+ */
+final class PropertiesFixture {
+
+    private PropertiesFixture() {
+    }
+
+    /**
+     * 生成配置项 prefix.config.item.N.value
+     *
+     * @param prefix  配置文件名前缀
+     * @param count   配置项数量
+     * @param changed 每隔多少项修改一个值，0为不修改
+     * @return
+     */
+    static Map<String, String> props(String prefix, int count, int changed) {
+        Map<String, String> props = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            boolean modified = changed > 0 && i % changed == 0;
+            props.put(prefix + ".config.item." + i + ".value", (modified ? "changed-" : "value-") + i);
+        }
+        return props;
+    }
+
+    /**
+     * @return properties文件内容(ISO-8859-1，中文转义)
+     */
+    static byte[] render(Map<String, String> props) throws IOException {
+        Properties prop = new Properties();
+        prop.putAll(props);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        prop.store(out, null);
+        return out.toByteArray();
+    }
+
+    /**
+     * 创建配置目录 并指定为SysProperties的配置目录
+     *
+     * @param files 配置文件名前缀 -> 配置项
+     * @return 临时目录
+     */
+    static Path createDir(Map<String, Map<String, String>> files) throws IOException {
+        Path dir = Files.createTempDirectory("sys-properties-bench");
+        Map<String, String> sys = new LinkedHashMap<>();
+        sys.put("sys.properties.reload.quiet.period", "1h");
+        sys.put("sys.properties.reload.max.delay", "1h");
+        if (files.containsKey("sys")) {
+            sys.putAll(files.get("sys"));
+        }
+        Files.write(dir.resolve("sys.properties"), render(sys));
+        for (Map.Entry<String, Map<String, String>> file : files.entrySet()) {
+            if (!"sys".equals(file.getKey())) {
+                Files.write(dir.resolve(file.getKey() + ".properties"), render(file.getValue()));
+            }
+        }
+        SysProperties.PROPERTIES_FILE_DIR = dir.toString();
+        return dir;
+    }
+
+    /**
+     * 删除目录及其下全部文件
+     */
+    static void delete(Path dir) throws IOException {
+        if (dir == null || Files.notExists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
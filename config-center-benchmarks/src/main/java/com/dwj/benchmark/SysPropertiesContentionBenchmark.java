@@ -0,0 +1,114 @@
+package com.dwj.benchmark;
+
+import com.dwj.resource.SysProperties;
+import com.dwj.resource.SysPropertiesHarness;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/07/14
+ * @description: SysProperties.get 多线程并发读取
+ * get4/getMax：4个/全部CPU个线程同时读取，衡量读取路径是否存在共享写(缓存行争用)
+ * getDuringReload：3个线程读取的同时1个线程不断重新加载其中一个配置文件，衡量快照切换对读取的影响
+ * 运行：java -jar target/benchmarks.jar SysPropertiesContentionBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SysPropertiesContentionBenchmark {
+
+    private static final String[] FILE_PREFIXES = {"zookeeper", "server", "os", "tasker"};
+    private static final String RELOAD_PREFIX = "tasker";
+
+    /**
+     * 每个配置文件的配置项数量
+     */
+    @Param({"256", "4096"})
+    public int keysPerFile;
+
+    private Path dir;
+    private File reloadFile;
+    private final byte[][] variants = new byte[2][];
+    private int current;
+    private String[] lookupKeys;
+
+    @Setup
+    public void setup() throws IOException {
+        Map<String, Map<String, String>> files = new LinkedHashMap<>();
+        for (String prefix : FILE_PREFIXES) {
+            files.put(prefix, PropertiesFixture.props(prefix, keysPerFile, 0));
+        }
+        variants[0] = PropertiesFixture.render(files.get(RELOAD_PREFIX));
+        variants[1] = PropertiesFixture.render(PropertiesFixture.props(RELOAD_PREFIX, keysPerFile, 100));
+        dir = PropertiesFixture.createDir(files);
+        reloadFile = dir.resolve(RELOAD_PREFIX + ".properties").toFile();
+        SysProperties.getInstance();
+
+        //命中与未命中(前缀存在但key不存在)混合
+        List<String> keys = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 1024; i++) {
+            String prefix = FILE_PREFIXES[random.nextInt(FILE_PREFIXES.length)];
+            int index = random.nextInt(keysPerFile + keysPerFile / 8 + 1);
+            keys.add(prefix + ".config.item." + index + ".value");
+        }
+        lookupKeys = keys.toArray(new String[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        PropertiesFixture.delete(dir);
+    }
+
+    /**
+     * 每个线程从不同位置开始遍历key
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index = ThreadLocalRandom.current().nextInt(1024);
+
+        String next(String[] keys) {
+            return keys[index++ & (keys.length - 1)];
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String get4(Cursor cursor) {
+        return SysProperties.get(cursor.next(lookupKeys));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String getMax(Cursor cursor) {
+        return SysProperties.get(cursor.next(lookupKeys));
+    }
+
+    @Benchmark
+    @Group("getDuringReload")
+    @GroupThreads(3)
+    public String reader(Cursor cursor) {
+        return SysProperties.get(cursor.next(lookupKeys));
+    }
+
+    @Benchmark
+    @Group("getDuringReload")
+    @GroupThreads(1)
+    public long reloader() throws IOException {
+        current ^= 1;
+        Files.write(reloadFile.toPath(), variants[current]);
+        SysPropertiesHarness.reload(reloadFile);
+        return SysProperties.getSnapshot().getVersion();
+    }
+}
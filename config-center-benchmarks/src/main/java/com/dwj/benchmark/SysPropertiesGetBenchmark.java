@@ -0,0 +1,128 @@
+package com.dwj.benchmark;
+
+import com.dwj.resource.PropertySnapshot;
+import com.dwj.resource.SysProperties;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * @author daiwj
+ * @date 2021/06/18
+ * @description: SysProperties.get 读取路径对比
+ * legacyGet：原实现 截取key前缀 -> 查文件map -> 再查配置map
+ * snapshotGet：不可变快照的平铺开放寻址表
+ * sysPropertiesGet：经由SysProperties单例的完整调用路径
+ * 运行：java -jar target/benchmarks.jar SysPropertiesGetBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SysPropertiesGetBenchmark {
+
+    private static final String[] FILE_PREFIXES = {"zookeeper", "server", "os", "flowdefine", "tasker", "sys"};
+
+    /**
+     * 每个配置文件的配置项数量
+     */
+    @Param({"16", "256", "4096"})
+    public int keysPerFile;
+
+    private Map<String, ConcurrentHashMap<String, String>> legacyCache;
+    private PropertySnapshot snapshot;
+    private String[] lookupKeys;
+    private Path dir;
+
+    @Setup
+    public void setup() throws IOException {
+        Map<String, Map<String, String>> files = new LinkedHashMap<>();
+        for (String prefix : FILE_PREFIXES) {
+            Map<String, String> props = new LinkedHashMap<>();
+            for (int i = 0; i < keysPerFile; i++) {
+                props.put(prefix + ".config.item." + i + ".value", "value-" + i);
+            }
+            files.put(prefix, props);
+        }
+
+        legacyCache = new ConcurrentHashMap<>();
+        PropertySnapshot s = PropertySnapshot.EMPTY;
+        for (Map.Entry<String, Map<String, String>> file : files.entrySet()) {
+            legacyCache.put(file.getKey(), new ConcurrentHashMap<>(file.getValue()));
+            s = s.withFile(file.getKey(), file.getValue());
+        }
+        snapshot = s;
+
+        //SysProperties为单例 需在首次使用前指定配置目录，JMH每组参数都在独立fork中运行
+        dir = Files.createTempDirectory("sys-properties-bench");
+        for (Map.Entry<String, Map<String, String>> file : files.entrySet()) {
+            Properties prop = new Properties();
+            prop.putAll(file.getValue());
+            try (Writer writer = Files.newBufferedWriter(dir.resolve(file.getKey() + ".properties"), StandardCharsets.ISO_8859_1)) {
+                prop.store(writer, null);
+            }
+        }
+        SysProperties.PROPERTIES_FILE_DIR = dir.toString();
+        SysProperties.getInstance();
+
+        //命中与未命中(前缀存在但key不存在)混合
+        List<String> keys = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 1024; i++) {
+            String prefix = FILE_PREFIXES[random.nextInt(FILE_PREFIXES.length)];
+            int index = random.nextInt(keysPerFile + keysPerFile / 8 + 1);
+            keys.add(prefix + ".config.item." + index + ".value");
+        }
+        lookupKeys = keys.toArray(new String[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+
+        String next(String[] keys) {
+            return keys[index++ & (keys.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public String legacyGet(Cursor cursor) {
+        String key = cursor.next(lookupKeys);
+        String keyPrefix = key.substring(0, key.indexOf("."));
+        Map<String, String> cacheMap = legacyCache.get(keyPrefix);
+        if (cacheMap == null) {
+            return null;
+        }
+        return cacheMap.get(key);
+    }
+
+    @Benchmark
+    public String snapshotGet(Cursor cursor) {
+        return snapshot.get(cursor.next(lookupKeys));
+    }
+
+    @Benchmark
+    public String sysPropertiesGet(Cursor cursor) {
+        return SysProperties.get(cursor.next(lookupKeys));
+    }
+}
@@ -0,0 +1,74 @@
+package com.dwj.benchmark;
+
+import com.dwj.resource.SysProperties;
+import com.dwj.resource.SysPropertiesHarness;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/07/14
+ * @description: SysProperties.reload 大配置文件重新加载
+ * 每次调用前在两个版本之间切换文件内容，测量读取文件 -> 解析 -> 与当前快照比对 -> 生成并发布新快照的完整耗时；
+ * changedPercent为两个版本之间变化的配置项比例
+ * 运行：java -jar target/benchmarks.jar SysPropertiesReloadBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SysPropertiesReloadBenchmark {
+    private static final String PREFIX = "bench";
+
+    /**
+     * 配置文件的配置项数量
+     */
+    @Param({"1000", "10000", "100000"})
+    public int keys;
+
+    @Param({"1", "100"})
+    public int changedPercent;
+
+    private Path dir;
+    private File file;
+    private final byte[][] variants = new byte[2][];
+    private int current;
+
+    @Setup
+    public void setup() throws IOException {
+        variants[0] = PropertiesFixture.render(PropertiesFixture.props(PREFIX, keys, 0));
+        variants[1] = PropertiesFixture.render(PropertiesFixture.props(PREFIX, keys, 100 / changedPercent));
+        dir = PropertiesFixture.createDir(Collections.singletonMap(PREFIX, PropertiesFixture.props(PREFIX, keys, 0)));
+        file = dir.resolve(PREFIX + ".properties").toFile();
+        SysProperties.getInstance();
+        System.out.printf("%n配置文件大小：%d字节%n", variants[0].length);
+    }
+
+    /**
+     * 切换到另一个版本 不计入测量
+     */
+    @Setup(Level.Invocation)
+    public void switchVariant() throws IOException {
+        current ^= 1;
+        Files.write(file.toPath(), variants[current]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        PropertiesFixture.delete(dir);
+    }
+
+    @Benchmark
+    public long reload() throws IOException {
+        SysPropertiesHarness.reload(file);
+        return SysProperties.getSnapshot().getVersion();
+    }
+}
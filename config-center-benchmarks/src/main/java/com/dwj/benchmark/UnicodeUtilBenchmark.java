@@ -0,0 +1,70 @@
+package com.dwj.benchmark;
+
+import com.dwj.util.UnicodeUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/07/14
+ * @description: UnicodeUtil.unicodeToString 转换properties中\\uXXXX转义的中文
+ * 每次调用转换一批(64行)文本，lineType：ascii 不含转义 / escaped 整行中文注释 / mixed 配置项值中夹带中文
+ * 运行：java -jar target/benchmarks.jar UnicodeUtilBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnicodeUtilBenchmark {
+    private static final int LINES = 64;
+    private static final String CHINESE = "配置节点数据格式终端未全部升级前使用分块存放的节点路径";
+
+    @Param({"ascii", "escaped", "mixed"})
+    public String lineType;
+
+    private String[] lines;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        lines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            String text = CHINESE.substring(random.nextInt(CHINESE.length() / 2));
+            switch (lineType) {
+                case "ascii":
+                    lines[i] = "zookeeper.config.item." + i + ".value=jdbc:mysql://10.0.0." + random.nextInt(255) + ":3306/db";
+                    break;
+                case "escaped":
+                    lines[i] = "#" + escape(text);
+                    break;
+                default:
+                    lines[i] = "zookeeper.config.item." + i + ".desc=" + escape(text) + " timeout=" + random.nextInt(60000);
+                    break;
+            }
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() * 6);
+        for (char c : s.toCharArray()) {
+            if (c < 128) {
+                sb.append(c);
+            } else {
+                sb.append(String.format("\\u%04X", (int) c));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public void unicodeToString(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(UnicodeUtil.unicodeToString(line));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.dwj.resource;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * @author daiwj
+ * @date 2021/07/14
+ * @description: 基准测试访问SysProperties包内方法的入口 与SysProperties同包，只存在于基准测试模块
+ */
+public final class SysPropertiesHarness {
+
+    private SysPropertiesHarness() {
+    }
+
+    /**
+     * 立即重新加载指定配置文件 不经过文件监听的防抖
+     *
+     * @param file 配置目录下的配置文件
+     * @throws IOException 读取文件失败
+     */
+    public static void reload(File file) throws IOException {
+        SysProperties.reload(file);
+    }
+}
@@ -0,0 +1,23 @@
+package com.dwj.controller;
+
+import com.dwj.metrics.MetricsRegistry;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * @author daiwj
+ * @date 2021/06/23
+ * @description: 指标导出
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @RequestMapping(method = RequestMethod.GET)
+    public Map<String, Object> metrics() {
+        return MetricsRegistry.getInstance().snapshot();
+    }
+}
@@ -0,0 +1,95 @@
+package com.dwj.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author daiwj
+ * @date 2021/06/23
+ * @description: 耗时统计
+ * 按微秒取2的幂分桶计数，记录时无锁且不产生对象，分位数为所在桶的上界(近似值)
+ */
+public class Timer {
+    /**
+     * 第i个桶记录[2^(i-1), 2^i)微秒的样本，最后一个桶兼容更大的值
+     */
+    private static final int BUCKETS = 40;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public void record(long duration, TimeUnit unit) {
+        record(unit.toNanos(duration));
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        count.increment();
+        totalNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+        long micros = nanos / 1000;
+        int index = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(index);
+    }
+
+    /**
+     * 记录从startNanos(System.nanoTime())至今的耗时
+     *
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @param quantile 0~1
+     * @return 近似分位数 单位：毫秒
+     */
+    public double percentileMillis(double quantile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0D;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) / 1000D, maxNanos.get() / 1000000D);
+            }
+        }
+        return maxNanos.get() / 1000000D;
+    }
+
+    public Map<String, Object> snapshot() {
+        long n = count.sum();
+        Map<String, Object> result = new LinkedHashMap<>(8);
+        result.put("count", n);
+        result.put("meanMs", n == 0 ? 0D : totalNanos.sum() / 1000000D / n);
+        result.put("p50Ms", percentileMillis(0.5));
+        result.put("p99Ms", percentileMillis(0.99));
+        result.put("maxMs", maxNanos.get() / 1000000D);
+        return result;
+    }
+}
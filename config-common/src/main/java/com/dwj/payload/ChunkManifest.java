@@ -0,0 +1,151 @@
+package com.dwj.payload;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/01
+ * @description: 大配置分块清单
+ * 超过分块大小的配置按固定大小切分，每块以 chunk-<块md5> 为名存放在chunkDir下(内容寻址，相同内容只存一份)，
+ * 配置节点本身只存放清单：
+ * <pre>
+ * chunkSize(4) chunkCount(4) chunkDirLength(2) + chunkDir(UTF-8) md5(16) * chunkCount
+ * </pre>
+ * 整个文件的md5和长度在ConfigPayload信封头中
+ */
+public class ChunkManifest {
+    public static final String CHUNK_PREFIX = "chunk-";
+
+    private final String chunkDir;
+    private final int chunkSize;
+    private final List<byte[]> md5s;
+
+    public ChunkManifest(String chunkDir, int chunkSize, List<byte[]> md5s) {
+        this.chunkDir = chunkDir;
+        this.chunkSize = chunkSize;
+        this.md5s = Collections.unmodifiableList(new ArrayList<>(md5s));
+    }
+
+    /**
+     * 按固定大小切分内容并计算每块的md5
+     *
+     * @param chunkDir  分块存放的节点路径
+     * @param content   原始内容
+     * @param chunkSize 分块大小
+     * @return
+     */
+    public static ChunkManifest split(String chunkDir, byte[] content, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        List<byte[]> md5s = new ArrayList<>();
+        for (int offset = 0; offset < content.length; offset += chunkSize) {
+            md5s.add(DigestUtils.md5(Arrays.copyOfRange(content, offset, Math.min(content.length, offset + chunkSize))));
+        }
+        return new ChunkManifest(chunkDir, chunkSize, md5s);
+    }
+
+    static ChunkManifest read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 10) {
+            throw new IOException("分块清单不完整");
+        }
+        int chunkSize = buffer.getInt();
+        int count = buffer.getInt();
+        int dirLength = buffer.getShort() & 0xFFFF;
+        if (chunkSize <= 0 || count < 0 || buffer.remaining() != dirLength + (long) count * 16) {
+            throw new IOException("分块清单损坏");
+        }
+        byte[] dir = new byte[dirLength];
+        buffer.get(dir);
+        List<byte[]> md5s = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] md5 = new byte[16];
+            buffer.get(md5);
+            md5s.add(md5);
+        }
+        return new ChunkManifest(new String(dir, StandardCharsets.UTF_8), chunkSize, md5s);
+    }
+
+    byte[] toBytes() {
+        byte[] dir = chunkDir.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(10 + dir.length + md5s.size() * 16);
+        buffer.putInt(chunkSize).putInt(md5s.size()).putShort((short) dir.length).put(dir);
+        for (byte[] md5 : md5s) {
+            buffer.put(md5);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param content 原始内容
+     * @param index
+     * @return 第index块的内容
+     */
+    public byte[] slice(byte[] content, int index) {
+        int offset = index * chunkSize;
+        return Arrays.copyOfRange(content, offset, Math.min(content.length, offset + chunkSize));
+    }
+
+    /**
+     * @param totalSize 原始内容长度
+     * @param index
+     * @return 第index块的长度
+     */
+    public int chunkLength(long totalSize, int index) {
+        return (int) Math.min(chunkSize, totalSize - (long) index * chunkSize);
+    }
+
+    public int getChunkCount() {
+        return md5s.size();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public String getChunkDir() {
+        return chunkDir;
+    }
+
+    public byte[] getMd5(int index) {
+        return md5s.get(index);
+    }
+
+    /**
+     * @param index
+     * @return 分块节点名
+     */
+    public String chunkName(int index) {
+        return CHUNK_PREFIX + Hex.encodeHexString(md5s.get(index));
+    }
+
+    /**
+     * @param index
+     * @return 分块节点路径
+     */
+    public String chunkPath(int index) {
+        return chunkDir + "/" + chunkName(index);
+    }
+
+    /**
+     * @return 清单引用的全部分块节点名(去重)
+     */
+    public Set<String> chunkNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < md5s.size(); i++) {
+            names.add(chunkName(i));
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return "{chunkDir=" + chunkDir + ", chunkSize=" + chunkSize + ", chunkCount=" + md5s.size() + '}';
+    }
+}
@@ -0,0 +1,505 @@
+package com.dwj.payload;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author daiwj
+ * @date 2021/06/30
+ * @description: 发布到配置节点的数据格式
+ * 二进制信封，替代原来的 {"content": ..., "fileName": ...} JSON：
+ * <pre>
+ * magic(4) 'C','F','G','P'
+ * formatVersion(1)
+ * codec(1)          0 不压缩 / 1 deflate / 2 lz4(保留，暂不支持) / 3 分块清单(见ChunkManifest) / 4 增量
+ * md5(16)           原始内容的摘要
+ * originalSize(4)   原始内容长度
+ * fileNameLength(2) + fileName(UTF-8)
+ * publishTime(8) + publishIdLength(1) + publishId(UTF-8)   仅格式版本2，发布时间和发布id，用于统计端到端传播耗时
+ * body              按codec编码后的内容，分块时为分块清单
+ * </pre>
+ * 未指定发布id时按格式版本1编码(分块内容、关闭发布追踪时)，两种格式版本都可解码；
+ * 增量时body为 baseMd5(16) deltaSize(4) deflatedLength(4) deflate(增量，见LineDelta) 分块清单，
+ * 本地内容与baseMd5一致的终端直接应用增量，其余终端按分块清单读取完整内容；
+ * 解码时根据magic自动识别，非信封格式按原JSON格式解析，兼容已发布的旧节点
+ */
+public class ConfigPayload {
+    public static final byte[] MAGIC = {'C', 'F', 'G', 'P'};
+    public static final byte FORMAT_VERSION = 2;
+    /**
+     * 不带发布id和发布时间的格式版本
+     */
+    public static final byte FORMAT_UNTRACED = 1;
+    /**
+     * 原JSON格式，仅用于标识解码结果
+     */
+    public static final byte FORMAT_LEGACY_JSON = 0;
+
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+    public static final byte CODEC_LZ4 = 2;
+    public static final byte CODEC_CHUNKED = 3;
+    public static final byte CODEC_DELTA = 4;
+
+    /**
+     * 小于该长度的内容不压缩，压缩收益抵不过开销
+     */
+    public static final int COMPRESS_THRESHOLD = 256;
+    private static final int HEADER_FIXED_LENGTH = MAGIC.length + 1 + 1 + 16 + 4 + 2;
+
+    private final String fileName;
+    private final byte[] content;
+    private final byte format;
+    private final byte codec;
+    private final int encodedSize;
+    /**
+     * 原始内容的md5 原JSON格式为null
+     */
+    private final byte[] md5;
+    private final int originalSize;
+    private final ChunkManifest manifest;
+    /**
+     * 增量对应的旧内容md5和增量数据 非增量时为null
+     */
+    private final byte[] baseMd5;
+    private final byte[] delta;
+    /**
+     * 发布id和发布时间 格式版本1及原JSON格式为null/0
+     */
+    private final String publishId;
+    private final long publishTime;
+
+    private ConfigPayload(String fileName, byte[] content, byte format, byte codec, int encodedSize,
+                          byte[] md5, int originalSize, ChunkManifest manifest, byte[] baseMd5, byte[] delta,
+                          String publishId, long publishTime) {
+        this.fileName = fileName;
+        this.content = content;
+        this.format = format;
+        this.codec = codec;
+        this.encodedSize = encodedSize;
+        this.md5 = md5;
+        this.originalSize = originalSize;
+        this.manifest = manifest;
+        this.baseMd5 = baseMd5;
+        this.delta = delta;
+        this.publishId = publishId;
+        this.publishTime = publishTime;
+    }
+
+    /**
+     * 编码为信封格式 内容达到阈值时deflate压缩(压缩后不变小则不压缩)
+     *
+     * @param fileName
+     * @param content  原始内容
+     * @return 节点数据
+     */
+    public static byte[] encode(String fileName, byte[] content) {
+        return encode(fileName, content, null, 0L);
+    }
+
+    /**
+     * 编码为信封格式并带上发布id和发布时间
+     *
+     * @param fileName
+     * @param content     原始内容
+     * @param publishId   发布id 为null时按格式版本1编码
+     * @param publishTime 发布时间
+     * @return 节点数据
+     */
+    public static byte[] encode(String fileName, byte[] content, String publishId, long publishTime) {
+        byte codec = CODEC_NONE;
+        byte[] body = content;
+        if (content.length >= COMPRESS_THRESHOLD) {
+            byte[] compressed = deflate(content);
+            if (compressed.length < content.length) {
+                codec = CODEC_DEFLATE;
+                body = compressed;
+            }
+        }
+        return envelope(fileName, codec, DigestUtils.md5(content), content.length, body, publishId, publishTime);
+    }
+
+    /**
+     * 编码分块清单 分块内容需另行写入manifest.getChunkDir()下
+     *
+     * @param fileName
+     * @param content  原始内容
+     * @param manifest 分块清单
+     * @return 节点数据
+     */
+    public static byte[] encodeManifest(String fileName, byte[] content, ChunkManifest manifest) {
+        return encodeManifest(fileName, content, manifest, null, 0L);
+    }
+
+    /**
+     * 编码分块清单并带上发布id和发布时间
+     *
+     * @param fileName
+     * @param content     原始内容
+     * @param manifest    分块清单
+     * @param publishId   发布id 为null时按格式版本1编码
+     * @param publishTime 发布时间
+     * @return 节点数据
+     */
+    public static byte[] encodeManifest(String fileName, byte[] content, ChunkManifest manifest, String publishId, long publishTime) {
+        return envelope(fileName, CODEC_CHUNKED, DigestUtils.md5(content), content.length, manifest.toBytes(), publishId, publishTime);
+    }
+
+    /**
+     * 编码增量 完整内容仍按分块清单另行写入manifest.getChunkDir()下，供不在旧版本上的终端读取
+     *
+     * @param fileName
+     * @param content  新内容
+     * @param baseMd5  旧内容的md5
+     * @param delta    从旧内容到新内容的增量(LineDelta.diff)
+     * @param manifest 新内容的分块清单
+     * @return 节点数据
+     */
+    public static byte[] encodeDelta(String fileName, byte[] content, byte[] baseMd5, byte[] delta, ChunkManifest manifest) {
+        return encodeDelta(fileName, content, baseMd5, delta, manifest, null, 0L);
+    }
+
+    /**
+     * 编码增量并带上发布id和发布时间
+     *
+     * @param fileName
+     * @param content     新内容
+     * @param baseMd5     旧内容的md5
+     * @param delta       从旧内容到新内容的增量
+     * @param manifest    新内容的分块清单
+     * @param publishId   发布id 为null时按格式版本1编码
+     * @param publishTime 发布时间
+     * @return 节点数据
+     */
+    public static byte[] encodeDelta(String fileName, byte[] content, byte[] baseMd5, byte[] delta, ChunkManifest manifest,
+                                     String publishId, long publishTime) {
+        byte[] compressed = deflate(delta);
+        byte[] manifestBytes = manifest.toBytes();
+        ByteBuffer body = ByteBuffer.allocate(16 + 4 + 4 + compressed.length + manifestBytes.length);
+        body.put(baseMd5)
+                .putInt(delta.length)
+                .putInt(compressed.length)
+                .put(compressed)
+                .put(manifestBytes);
+        return envelope(fileName, CODEC_DELTA, DigestUtils.md5(content), content.length, body.array(), publishId, publishTime);
+    }
+
+    private static byte[] envelope(String fileName, byte codec, byte[] md5, int originalSize, byte[] body,
+                                   String publishId, long publishTime) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        byte[] id = publishId == null ? null : publishId.getBytes(StandardCharsets.UTF_8);
+        if (id != null && id.length > 0xFF) {
+            throw new IllegalArgumentException("发布id过长：" + publishId);
+        }
+        int traceLength = id == null ? 0 : 8 + 1 + id.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_FIXED_LENGTH + name.length + traceLength + body.length);
+        buffer.put(MAGIC)
+                .put(id == null ? FORMAT_UNTRACED : FORMAT_VERSION)
+                .put(codec)
+                .put(md5)
+                .putInt(originalSize)
+                .putShort((short) name.length)
+                .put(name);
+        if (id != null) {
+            buffer.putLong(publishTime)
+                    .put((byte) id.length)
+                    .put(id);
+        }
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * 原JSON格式编码，用于终端尚未全部升级时
+     *
+     * @param fileName
+     * @param content
+     * @return
+     */
+    public static byte[] encodeLegacy(String fileName, byte[] content) {
+        JSONObject json = new JSONObject();
+        json.put("content", new String(content));
+        json.put("fileName", fileName);
+        return json.toString().getBytes();
+    }
+
+    /**
+     * 解码节点数据 自动识别信封格式与原JSON格式
+     *
+     * @param data 节点数据
+     * @return
+     * @throws IOException 数据损坏(摘要/长度不一致)或编码不支持
+     */
+    public static ConfigPayload decode(byte[] data) throws IOException {
+        if (!isEnvelope(data)) {
+            JSONObject json = JSON.parseObject(new String(data));
+            if (json == null) {
+                throw new IOException("节点数据为空");
+            }
+            String content = json.getString("content");
+            byte[] bytes = content == null ? new byte[0] : content.getBytes();
+            return new ConfigPayload(json.getString("fileName"), bytes, FORMAT_LEGACY_JSON, CODEC_NONE, data.length,
+                    null, bytes.length, null, null, null, null, 0L);
+        }
+        if (data.length < HEADER_FIXED_LENGTH) {
+            throw new IOException("配置数据头不完整，长度：" + data.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(MAGIC.length);
+        byte format = buffer.get();
+        if (format > FORMAT_VERSION) {
+            throw new IOException("不支持的配置数据格式版本：" + format);
+        }
+        byte codec = buffer.get();
+        byte[] md5 = new byte[16];
+        buffer.get(md5);
+        int originalSize = buffer.getInt();
+        int nameLength = buffer.getShort() & 0xFFFF;
+        if (originalSize < 0 || nameLength > buffer.remaining()) {
+            throw new IOException("配置数据头损坏");
+        }
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        String fileName = new String(name, StandardCharsets.UTF_8);
+        String publishId = null;
+        long publishTime = 0L;
+        if (format >= FORMAT_VERSION) {
+            if (buffer.remaining() < 8 + 1) {
+                throw new IOException("配置数据发布信息不完整");
+            }
+            publishTime = buffer.getLong();
+            int idLength = buffer.get() & 0xFF;
+            if (idLength > buffer.remaining()) {
+                throw new IOException("配置数据发布信息损坏");
+            }
+            byte[] id = new byte[idLength];
+            buffer.get(id);
+            publishId = new String(id, StandardCharsets.UTF_8);
+        }
+        if (codec == CODEC_CHUNKED) {
+            //分块内容由调用方按清单读取，整体摘要在组装后校验
+            ChunkManifest manifest = ChunkManifest.read(buffer);
+            if ((long) manifest.getChunkCount() * manifest.getChunkSize() < originalSize) {
+                throw new IOException("分块清单与原始长度不一致");
+            }
+            return new ConfigPayload(fileName, null, format, codec, data.length, md5, originalSize, manifest, null, null,
+                    publishId, publishTime);
+        }
+        if (codec == CODEC_DELTA) {
+            if (buffer.remaining() < 16 + 4 + 4) {
+                throw new IOException("配置增量数据不完整");
+            }
+            byte[] baseMd5 = new byte[16];
+            buffer.get(baseMd5);
+            int deltaSize = buffer.getInt();
+            int compressedLength = buffer.getInt();
+            if (deltaSize < 0 || compressedLength < 0 || compressedLength > buffer.remaining()) {
+                throw new IOException("配置增量数据损坏");
+            }
+            byte[] delta = inflate(data, buffer.position(), compressedLength, deltaSize);
+            buffer.position(buffer.position() + compressedLength);
+            ChunkManifest manifest = ChunkManifest.read(buffer);
+            if ((long) manifest.getChunkCount() * manifest.getChunkSize() < originalSize) {
+                throw new IOException("分块清单与原始长度不一致");
+            }
+            return new ConfigPayload(fileName, null, format, codec, data.length, md5, originalSize, manifest, baseMd5, delta,
+                    publishId, publishTime);
+        }
+        byte[] content;
+        switch (codec) {
+            case CODEC_NONE:
+                content = Arrays.copyOfRange(data, buffer.position(), data.length);
+                break;
+            case CODEC_DEFLATE:
+                content = inflate(data, buffer.position(), data.length - buffer.position(), originalSize);
+                break;
+            default:
+                throw new IOException("不支持的配置数据编码：" + codec);
+        }
+        if (content.length != originalSize || !MessageDigest.isEqual(md5, DigestUtils.md5(content))) {
+            throw new IOException("配置数据校验失败，期望长度" + originalSize + "，实际长度" + content.length);
+        }
+        return new ConfigPayload(fileName, content, format, codec, data.length, md5, originalSize, null, null, null,
+                publishId, publishTime);
+    }
+
+    /**
+     * @param data
+     * @return 是否为信封格式
+     */
+    public static boolean isEnvelope(byte[] data) {
+        if (data == null || data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length, int originalSize) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset, length);
+            //按实际解压出的长度扩容，头部长度损坏时不会预先分配过大的数组
+            byte[] content = new byte[(int) Math.min(originalSize, Math.max(64L, length * 4L))];
+            int read = 0;
+            while (read < originalSize) {
+                if (read == content.length) {
+                    content = Arrays.copyOf(content, (int) Math.min(originalSize, content.length * 2L));
+                }
+                int n = inflater.inflate(content, read, content.length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != originalSize) {
+                throw new IOException("配置数据解压失败，期望长度" + originalSize + "，实际长度" + read);
+            }
+            //读满原始长度后确认压缩流已结束，结尾被截断或解压后超长的数据同样视为损坏
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                throw new IOException("配置数据解压失败，压缩流与原始长度" + originalSize + "不一致");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("配置数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return 原始内容 分块存储时为null，需按getManifest()读取分块
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return 原始内容的md5(十六进制)
+     */
+    public String getMd5Hex() {
+        return md5 == null ? DigestUtils.md5Hex(content) : Hex.encodeHexString(md5);
+    }
+
+    /**
+     * @return 原始内容的md5
+     */
+    public byte[] getMd5() {
+        return md5 == null ? DigestUtils.md5(content) : md5.clone();
+    }
+
+    public int getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * @return 完整内容是否按分块存储 增量同样带有完整内容的分块清单
+     */
+    public boolean isChunked() {
+        return manifest != null;
+    }
+
+    public ChunkManifest getManifest() {
+        return manifest;
+    }
+
+    public boolean isDelta() {
+        return delta != null;
+    }
+
+    /**
+     * @return 增量对应旧内容的md5(十六进制) 非增量时为null
+     */
+    public String getBaseMd5Hex() {
+        return baseMd5 == null ? null : Hex.encodeHexString(baseMd5);
+    }
+
+    /**
+     * @return 增量数据(LineDelta) 非增量时为null
+     */
+    public byte[] getDelta() {
+        return delta;
+    }
+
+    /**
+     * @return 发布id 未带发布信息时为null
+     */
+    public String getPublishId() {
+        return publishId;
+    }
+
+    /**
+     * @return 发布时间(配置中心时钟) 未带发布信息时为0
+     */
+    public long getPublishTime() {
+        return publishTime;
+    }
+
+    /**
+     * @return 格式版本 原JSON格式为0
+     */
+    public byte getFormat() {
+        return format;
+    }
+
+    public byte getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return 节点数据长度
+     */
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    public boolean isLegacy() {
+        return format == FORMAT_LEGACY_JSON;
+    }
+
+    @Override
+    public String toString() {
+        return "{fileName=" + fileName + ", format=" + format + ", codec=" + codec
+                + ", size=" + originalSize + ", encodedSize=" + encodedSize
+                + (delta == null ? "" : ", base=" + getBaseMd5Hex() + ", delta=" + delta.length)
+                + (manifest == null ? "" : ", manifest=" + manifest)
+                + (publishId == null ? "" : ", publishId=" + publishId + ", publishTime=" + publishTime) + '}';
+    }
+}
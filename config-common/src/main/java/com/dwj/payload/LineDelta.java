@@ -0,0 +1,298 @@
+package com.dwj.payload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author daiwj
+ * @date 2021/07/09
+ * @description: 按行计算的配置增量
+ * 以行(含换行符)为单位比对新旧内容，新内容中能在旧内容里找到的连续行记为复制旧内容的一段，其余行原样记录：
+ * <pre>
+ * baseSize(4) targetSize(4) [COPY(1) offset(4) length(4) | INSERT(2) length(4) bytes]...
+ * </pre>
+ * 应用时校验旧内容长度和结果长度，整体md5由调用方校验
+ */
+public class LineDelta {
+    private static final byte OP_COPY = 1;
+    private static final byte OP_INSERT = 2;
+    /**
+     * 每行最多尝试的旧内容候选位置 避免大量重复行(空行、括号)时退化为平方复杂度
+     */
+    private static final int MAX_CANDIDATES = 8;
+
+    private LineDelta() {
+    }
+
+    /**
+     * 计算从base到target的增量
+     *
+     * @param base   旧内容
+     * @param target 新内容
+     * @return 增量数据
+     */
+    public static byte[] diff(byte[] base, byte[] target) {
+        int[] baseLines = lineStarts(base);
+        int[] targetLines = lineStarts(target);
+        Map<Line, List<Integer>> index = new HashMap<>();
+        for (int i = 0; i < baseLines.length - 1; i++) {
+            List<Integer> positions = index.computeIfAbsent(new Line(base, baseLines[i], baseLines[i + 1]), k -> new ArrayList<>(1));
+            if (positions.size() < MAX_CANDIDATES) {
+                positions.add(i);
+            }
+        }
+        Writer writer = new Writer(base.length, target.length);
+        //上一段复制结束的旧内容行号 优先顺延，保持增量紧凑
+        int expected = -1;
+        int t = 0;
+        int targetCount = targetLines.length - 1;
+        int baseCount = baseLines.length - 1;
+        while (t < targetCount) {
+            int bestStart = -1;
+            int bestLength = 0;
+            if (expected >= 0 && expected < baseCount && lineEquals(base, baseLines, expected, target, targetLines, t)) {
+                bestStart = expected;
+                bestLength = matchLength(base, baseLines, expected, target, targetLines, t);
+            } else {
+                List<Integer> candidates = index.get(new Line(target, targetLines[t], targetLines[t + 1]));
+                if (candidates != null) {
+                    for (int candidate : candidates) {
+                        int length = matchLength(base, baseLines, candidate, target, targetLines, t);
+                        if (length > bestLength) {
+                            bestStart = candidate;
+                            bestLength = length;
+                        }
+                    }
+                }
+            }
+            if (bestLength == 0) {
+                writer.insert(target, targetLines[t], targetLines[t + 1]);
+                t++;
+                continue;
+            }
+            writer.copy(baseLines[bestStart], baseLines[bestStart + bestLength] - baseLines[bestStart]);
+            t += bestLength;
+            expected = bestStart + bestLength;
+        }
+        return writer.toBytes();
+    }
+
+    /**
+     * 在base上应用增量
+     *
+     * @param base  旧内容
+     * @param delta 增量数据
+     * @return 新内容
+     * @throws IOException 增量数据损坏或与base不匹配
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+            int baseSize = in.readInt();
+            int targetSize = in.readInt();
+            if (baseSize != base.length || targetSize < 0) {
+                throw new IOException("增量与旧内容不匹配，期望旧内容长度" + baseSize + "，实际长度" + base.length);
+            }
+            byte[] target = new byte[targetSize];
+            int position = 0;
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                int offset = op == OP_COPY ? in.readInt() : 0;
+                int length = in.readInt();
+                if (length < 0 || length > targetSize - position) {
+                    throw new IOException("增量数据损坏，操作长度" + length + "超出新内容长度");
+                }
+                if (op == OP_COPY) {
+                    if (offset < 0 || offset > base.length - length) {
+                        throw new IOException("增量数据损坏，复制范围超出旧内容");
+                    }
+                    System.arraycopy(base, offset, target, position, length);
+                } else if (op == OP_INSERT) {
+                    in.readFully(target, position, length);
+                } else {
+                    throw new IOException("增量数据损坏，未知操作：" + op);
+                }
+                position += length;
+            }
+            if (position != targetSize) {
+                throw new IOException("增量应用后长度" + position + "与期望" + targetSize + "不一致");
+            }
+            return target;
+        } catch (EOFException e) {
+            throw new IOException("增量数据不完整", e);
+        }
+    }
+
+    /**
+     * @return 每行起始位置，最后一个元素为内容长度
+     */
+    private static int[] lineStarts(byte[] content) {
+        int[] starts = new int[16];
+        int count = 0;
+        starts[count++] = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n' && i + 1 < content.length) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        if (content.length > 0) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count + 1);
+            }
+            starts[count++] = content.length;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    private static int matchLength(byte[] base, int[] baseLines, int b, byte[] target, int[] targetLines, int t) {
+        int length = 0;
+        while (b + length < baseLines.length - 1 && t + length < targetLines.length - 1
+                && lineEquals(base, baseLines, b + length, target, targetLines, t + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    private static boolean lineEquals(byte[] base, int[] baseLines, int b, byte[] target, int[] targetLines, int t) {
+        int length = baseLines[b + 1] - baseLines[b];
+        if (length != targetLines[t + 1] - targetLines[t]) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (base[baseLines[b] + i] != target[targetLines[t] + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 用于建立旧内容行索引的行引用
+     */
+    private static final class Line {
+        private final byte[] content;
+        private final int start;
+        private final int end;
+        private final int hash;
+
+        private Line(byte[] content, int start, int end) {
+            this.content = content;
+            this.start = start;
+            this.end = end;
+            int h = 1;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + content[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Line)) {
+                return false;
+            }
+            Line other = (Line) o;
+            if (hash != other.hash || end - start != other.end - other.start) {
+                return false;
+            }
+            for (int i = 0; i < end - start; i++) {
+                if (content[start + i] != other.content[other.start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 合并相邻操作后写出增量
+     */
+    private static final class Writer {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buffer);
+        private final ByteArrayOutputStream pendingInsert = new ByteArrayOutputStream();
+        private int copyOffset = -1;
+        private int copyLength;
+
+        private Writer(int baseSize, int targetSize) {
+            writeInt(baseSize);
+            writeInt(targetSize);
+        }
+
+        private void copy(int offset, int length) {
+            flushInsert();
+            if (copyOffset >= 0 && copyOffset + copyLength == offset) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        private void insert(byte[] content, int start, int end) {
+            flushCopy();
+            pendingInsert.write(content, start, end - start);
+        }
+
+        private byte[] toBytes() {
+            flushCopy();
+            flushInsert();
+            return buffer.toByteArray();
+        }
+
+        private void flushCopy() {
+            if (copyOffset < 0) {
+                return;
+            }
+            try {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyOffset);
+                out.writeInt(copyLength);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            copyOffset = -1;
+            copyLength = 0;
+        }
+
+        private void flushInsert() {
+            if (pendingInsert.size() == 0) {
+                return;
+            }
+            try {
+                out.writeByte(OP_INSERT);
+                out.writeInt(pendingInsert.size());
+                pendingInsert.writeTo(out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            pendingInsert.reset();
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.dwj.payload;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 分块清单测试 覆盖切分、往返和截断/损坏的清单
+ */
+public class ChunkManifestTest {
+    private static final String CHUNK_DIR = "/open/config-center/chunks/sys.properties";
+
+    @Test
+    public void splitsIntoFixedSizeChunks() {
+        byte[] content = ConfigPayloadTest.properties(100);
+        int chunkSize = 1000;
+        ChunkManifest manifest = ChunkManifest.split(CHUNK_DIR, content, chunkSize);
+
+        int count = (content.length + chunkSize - 1) / chunkSize;
+        assertEquals(count, manifest.getChunkCount());
+        for (int i = 0; i < count; i++) {
+            byte[] slice = manifest.slice(content, i);
+            assertEquals(slice.length, manifest.chunkLength(content.length, i));
+            assertArrayEquals(DigestUtils.md5(slice), manifest.getMd5(i));
+            assertEquals(CHUNK_DIR + "/" + ChunkManifest.CHUNK_PREFIX + DigestUtils.md5Hex(slice), manifest.chunkPath(i));
+        }
+        assertEquals(content.length - (count - 1) * chunkSize, manifest.chunkLength(content.length, count - 1));
+    }
+
+    @Test
+    public void identicalChunksShareOneName() {
+        byte[] content = new byte[4096];
+        ChunkManifest manifest = ChunkManifest.split(CHUNK_DIR, content, 1024);
+
+        assertEquals(4, manifest.getChunkCount());
+        assertEquals(1, manifest.chunkNames().size());
+    }
+
+    @Test
+    public void splitsEmptyContentIntoNoChunks() {
+        assertEquals(0, ChunkManifest.split(CHUNK_DIR, new byte[0], 1024).getChunkCount());
+    }
+
+    @Test
+    public void rejectsNonPositiveChunkSize() {
+        assertThrows(IllegalArgumentException.class, () -> ChunkManifest.split(CHUNK_DIR, new byte[1], 0));
+    }
+
+    @Test
+    public void roundTripThroughEnvelope() throws IOException {
+        byte[] content = ConfigPayloadTest.properties(300);
+        ChunkManifest manifest = ChunkManifest.split(CHUNK_DIR, content, 2048);
+        byte[] data = ConfigPayload.encodeManifest("sys.properties", content, manifest, "publish-002", 2L);
+
+        ConfigPayload payload = ConfigPayload.decode(data);
+        assertTrue(payload.isChunked());
+        assertNull(payload.getContent());
+        assertEquals(content.length, payload.getOriginalSize());
+        assertEquals(DigestUtils.md5Hex(content), payload.getMd5Hex());
+        assertEquals("publish-002", payload.getPublishId());
+        ChunkManifest decoded = payload.getManifest();
+        assertEquals(CHUNK_DIR, decoded.getChunkDir());
+        assertEquals(2048, decoded.getChunkSize());
+        assertEquals(manifest.getChunkCount(), decoded.getChunkCount());
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            assertArrayEquals(manifest.getMd5(i), decoded.getMd5(i));
+        }
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        byte[] bytes = ChunkManifest.split(CHUNK_DIR, ConfigPayloadTest.properties(300), 2048).toBytes();
+        for (int length = 0; length < bytes.length; length++) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(bytes, length));
+            assertThrows(IOException.class, () -> ChunkManifest.read(truncated), "截断到" + length + "字节");
+        }
+    }
+
+    @Test
+    public void rejectsTrailingBytes() {
+        byte[] bytes = ChunkManifest.split(CHUNK_DIR, ConfigPayloadTest.properties(300), 2048).toBytes();
+        ByteBuffer padded = ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length + 1));
+
+        assertThrows(IOException.class, () -> ChunkManifest.read(padded));
+    }
+
+    @Test
+    public void rejectsCorruptHeader() {
+        byte[] bytes = ChunkManifest.split(CHUNK_DIR, ConfigPayloadTest.properties(300), 2048).toBytes();
+
+        byte[] zeroSize = bytes.clone();
+        ByteBuffer.wrap(zeroSize).putInt(0, 0);
+        assertThrows(IOException.class, () -> ChunkManifest.read(ByteBuffer.wrap(zeroSize)));
+
+        byte[] negativeCount = bytes.clone();
+        ByteBuffer.wrap(negativeCount).putInt(4, -1);
+        assertThrows(IOException.class, () -> ChunkManifest.read(ByteBuffer.wrap(negativeCount)));
+
+        byte[] hugeCount = bytes.clone();
+        ByteBuffer.wrap(hugeCount).putInt(4, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> ChunkManifest.read(ByteBuffer.wrap(hugeCount)));
+    }
+
+    @Test
+    public void rejectsManifestShorterThanOriginalSize() {
+        byte[] content = ConfigPayloadTest.properties(300);
+        ChunkManifest shorter = ChunkManifest.split(CHUNK_DIR, Arrays.copyOf(content, content.length / 2), 2048);
+        byte[] data = ConfigPayload.encodeManifest("sys.properties", content, shorter);
+
+        assertThrows(IOException.class, () -> ConfigPayload.decode(data));
+    }
+}
@@ -0,0 +1,162 @@
+package com.dwj.payload;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 信封格式编解码测试 覆盖往返、截断和损坏的数据
+ */
+public class ConfigPayloadTest {
+    /**
+     * 原始长度在头部的偏移：MAGIC(4) format(1) codec(1) md5(16)
+     */
+    private static final int ORIGINAL_SIZE_OFFSET = 4 + 1 + 1 + 16;
+
+    @Test
+    public void roundTripSmallContentWithoutCompression() throws IOException {
+        byte[] content = "zookeeper.client.connect.timeout=3000\n".getBytes(StandardCharsets.UTF_8);
+        byte[] data = ConfigPayload.encode("zookeeper.properties", content);
+
+        assertTrue(ConfigPayload.isEnvelope(data));
+        ConfigPayload payload = ConfigPayload.decode(data);
+        assertEquals(ConfigPayload.CODEC_NONE, payload.getCodec());
+        assertEquals(ConfigPayload.FORMAT_UNTRACED, payload.getFormat());
+        assertEquals("zookeeper.properties", payload.getFileName());
+        assertArrayEquals(content, payload.getContent());
+        assertEquals(DigestUtils.md5Hex(content), payload.getMd5Hex());
+        assertEquals(content.length, payload.getOriginalSize());
+        assertEquals(data.length, payload.getEncodedSize());
+        assertNull(payload.getPublishId());
+        assertFalse(payload.isChunked());
+        assertFalse(payload.isDelta());
+        assertFalse(payload.isLegacy());
+    }
+
+    @Test
+    public void roundTripLargeContentWithDeflate() throws IOException {
+        byte[] content = properties(200);
+        byte[] data = ConfigPayload.encode("sys.properties", content);
+
+        assertTrue(data.length < content.length);
+        ConfigPayload payload = ConfigPayload.decode(data);
+        assertEquals(ConfigPayload.CODEC_DEFLATE, payload.getCodec());
+        assertArrayEquals(content, payload.getContent());
+    }
+
+    @Test
+    public void roundTripEmptyContent() throws IOException {
+        ConfigPayload payload = ConfigPayload.decode(ConfigPayload.encode("empty.properties", new byte[0]));
+
+        assertEquals(0, payload.getContent().length);
+        assertEquals(0, payload.getOriginalSize());
+    }
+
+    @Test
+    public void roundTripPublishIdAndUtf8FileName() throws IOException {
+        byte[] content = properties(50);
+        byte[] data = ConfigPayload.encode("配置.properties", content, "publish-001", 1625097600000L);
+
+        ConfigPayload payload = ConfigPayload.decode(data);
+        assertEquals(ConfigPayload.FORMAT_VERSION, payload.getFormat());
+        assertEquals("配置.properties", payload.getFileName());
+        assertEquals("publish-001", payload.getPublishId());
+        assertEquals(1625097600000L, payload.getPublishTime());
+        assertArrayEquals(content, payload.getContent());
+    }
+
+    @Test
+    public void rejectsPublishIdLongerThanHeaderAllows() {
+        char[] id = new char[256];
+        Arrays.fill(id, 'a');
+
+        assertThrows(IllegalArgumentException.class,
+                () -> ConfigPayload.encode("a.properties", new byte[1], new String(id), 0L));
+    }
+
+    @Test
+    public void decodesLegacyJson() throws IOException {
+        byte[] content = "a=1\nb=2\n".getBytes(StandardCharsets.UTF_8);
+        byte[] data = ConfigPayload.encodeLegacy("a.properties", content);
+
+        assertFalse(ConfigPayload.isEnvelope(data));
+        ConfigPayload payload = ConfigPayload.decode(data);
+        assertTrue(payload.isLegacy());
+        assertEquals("a.properties", payload.getFileName());
+        assertArrayEquals(content, payload.getContent());
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        byte[][] encoded = {
+                ConfigPayload.encode("a.properties", properties(3)),
+                ConfigPayload.encode("a.properties", properties(200)),
+                ConfigPayload.encode("a.properties", properties(200), "publish-001", 1L)
+        };
+        for (byte[] data : encoded) {
+            for (int length = ConfigPayload.MAGIC.length; length < data.length; length++) {
+                byte[] truncated = Arrays.copyOf(data, length);
+                assertThrows(IOException.class, () -> ConfigPayload.decode(truncated), "截断到" + length + "字节");
+            }
+        }
+    }
+
+    @Test
+    public void rejectsCorruptContent() {
+        byte[] plain = ConfigPayload.encode("a.properties", properties(3));
+        plain[plain.length - 2] ^= 0x01;
+        assertThrows(IOException.class, () -> ConfigPayload.decode(plain));
+
+        byte[] deflated = ConfigPayload.encode("a.properties", properties(200));
+        for (int i = deflated.length - 16; i < deflated.length; i++) {
+            deflated[i] ^= 0x5A;
+        }
+        assertThrows(IOException.class, () -> ConfigPayload.decode(deflated));
+    }
+
+    @Test
+    public void rejectsCorruptOriginalSize() {
+        byte[] content = properties(200);
+        int[] sizes = {content.length - 1, content.length + 1, Integer.MAX_VALUE, -1};
+        for (int size : sizes) {
+            byte[] data = ConfigPayload.encode("a.properties", content);
+            ByteBuffer.wrap(data).putInt(ORIGINAL_SIZE_OFFSET, size);
+            assertThrows(IOException.class, () -> ConfigPayload.decode(data), "原始长度" + size);
+        }
+    }
+
+    @Test
+    public void rejectsCorruptFileNameLength() {
+        byte[] data = ConfigPayload.encode("a.properties", properties(3));
+        ByteBuffer.wrap(data).putShort(ORIGINAL_SIZE_OFFSET + 4, (short) 0xFFFF);
+
+        assertThrows(IOException.class, () -> ConfigPayload.decode(data));
+    }
+
+    @Test
+    public void rejectsUnknownFormatAndCodec() {
+        byte[] future = ConfigPayload.encode("a.properties", properties(3));
+        future[ConfigPayload.MAGIC.length] = ConfigPayload.FORMAT_VERSION + 1;
+        assertThrows(IOException.class, () -> ConfigPayload.decode(future));
+
+        byte[] unknownCodec = ConfigPayload.encode("a.properties", properties(3));
+        unknownCodec[ConfigPayload.MAGIC.length + 1] = 0x7F;
+        assertThrows(IOException.class, () -> ConfigPayload.decode(unknownCodec));
+    }
+
+    static byte[] properties(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("config.center.item").append(i).append('=').append("value-").append(i % 7).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,139 @@
+package com.dwj.payload;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 按行增量测试 覆盖往返、截断/损坏的增量和增量信封
+ */
+public class LineDeltaTest {
+    /**
+     * 第一个操作在增量中的偏移：baseSize(4) targetSize(4)
+     */
+    private static final int FIRST_OP_OFFSET = 8;
+
+    @Test
+    public void roundTripTypicalEdits() throws IOException {
+        String base = "a=1\nb=2\nc=3\nd=4\ne=5\n";
+        String[] targets = {
+                base,
+                base + "f=6\n",
+                "z=0\n" + base,
+                "a=1\nc=3\ne=5\n",
+                "a=1\nb=20\nc=3\nd=4\ne=5\n",
+                "d=4\ne=5\na=1\nb=2\nc=3\n",
+                "a=1\nb=2\nc=3\nd=4\ne=5",
+                "x=9\ny=8\n",
+                "",
+                "中文=配置\na=1\n"
+        };
+        for (String target : targets) {
+            assertRoundTrip(bytes(base), bytes(target));
+        }
+        assertRoundTrip(new byte[0], bytes(base));
+        assertRoundTrip(new byte[0], new byte[0]);
+    }
+
+    @Test
+    public void roundTripRepeatedLines() throws IOException {
+        StringBuilder base = new StringBuilder();
+        StringBuilder target = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            base.append("}\n\n");
+            target.append(i % 10 == 0 ? "{\n" : "}\n").append('\n');
+        }
+        assertRoundTrip(bytes(base.toString()), bytes(target.toString()));
+    }
+
+    @Test
+    public void smallEditProducesSmallDelta() throws IOException {
+        byte[] base = ConfigPayloadTest.properties(1000);
+        String text = new String(base, StandardCharsets.UTF_8);
+        byte[] target = bytes(text.replace("config.center.item500=", "config.center.item500=changed-"));
+
+        byte[] delta = assertRoundTrip(base, target);
+        assertTrue(delta.length < 128, "增量长度" + delta.length);
+    }
+
+    @Test
+    public void rejectsMismatchedBase() {
+        byte[] delta = LineDelta.diff(bytes("a=1\nb=2\n"), bytes("a=1\nb=3\n"));
+
+        assertThrows(IOException.class, () -> LineDelta.apply(bytes("a=1\n"), delta));
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        byte[] base = ConfigPayloadTest.properties(20);
+        byte[] delta = LineDelta.diff(base, bytes("new=1\n" + new String(base, StandardCharsets.UTF_8) + "tail=2\n"));
+        for (int length = 0; length < delta.length; length++) {
+            byte[] truncated = Arrays.copyOf(delta, length);
+            assertThrows(IOException.class, () -> LineDelta.apply(base, truncated), "截断到" + length + "字节");
+        }
+    }
+
+    @Test
+    public void rejectsCorruptOperations() {
+        byte[] base = bytes("a=1\nb=2\nc=3\n");
+        byte[] delta = LineDelta.diff(base, bytes("a=1\nb=2\nc=3\nd=4\n"));
+
+        byte[] unknownOp = delta.clone();
+        unknownOp[FIRST_OP_OFFSET] = 0x7F;
+        assertThrows(IOException.class, () -> LineDelta.apply(base, unknownOp));
+
+        //第一个操作为复制旧内容：op(1) offset(4) length(4)
+        byte[] badOffset = delta.clone();
+        ByteBuffer.wrap(badOffset).putInt(FIRST_OP_OFFSET + 1, base.length);
+        assertThrows(IOException.class, () -> LineDelta.apply(base, badOffset));
+
+        byte[] badLength = delta.clone();
+        ByteBuffer.wrap(badLength).putInt(FIRST_OP_OFFSET + 5, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> LineDelta.apply(base, badLength));
+
+        byte[] badTargetSize = delta.clone();
+        ByteBuffer.wrap(badTargetSize).putInt(4, -1);
+        assertThrows(IOException.class, () -> LineDelta.apply(base, badTargetSize));
+    }
+
+    @Test
+    public void roundTripThroughEnvelope() throws IOException {
+        byte[] base = ConfigPayloadTest.properties(300);
+        byte[] content = bytes(new String(base, StandardCharsets.UTF_8) + "added=1\n");
+        byte[] delta = LineDelta.diff(base, content);
+        ChunkManifest manifest = ChunkManifest.split("/chunks/sys.properties", content, 4096);
+        byte[] data = ConfigPayload.encodeDelta("sys.properties", content, DigestUtils.md5(base), delta, manifest);
+
+        ConfigPayload payload = ConfigPayload.decode(data);
+        assertTrue(payload.isDelta());
+        assertEquals(DigestUtils.md5Hex(base), payload.getBaseMd5Hex());
+        assertArrayEquals(delta, payload.getDelta());
+        assertEquals(manifest.getChunkCount(), payload.getManifest().getChunkCount());
+        byte[] applied = LineDelta.apply(base, payload.getDelta());
+        assertArrayEquals(content, applied);
+        assertEquals(payload.getMd5Hex(), DigestUtils.md5Hex(applied));
+
+        for (int length = ConfigPayload.MAGIC.length; length < data.length; length++) {
+            byte[] truncated = Arrays.copyOf(data, length);
+            assertThrows(IOException.class, () -> ConfigPayload.decode(truncated), "截断到" + length + "字节");
+        }
+    }
+
+    private static byte[] assertRoundTrip(byte[] base, byte[] target) throws IOException {
+        byte[] delta = LineDelta.diff(base, target);
+        assertArrayEquals(target, LineDelta.apply(base, delta), new String(target, StandardCharsets.UTF_8));
+        return delta;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
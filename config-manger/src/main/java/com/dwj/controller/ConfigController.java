@@ -1,22 +1,34 @@
 package com.dwj.controller;
 
-import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import com.dwj.entity.PublishItem;
 import com.dwj.entity.Server;
+import com.dwj.payload.ConfigPayload;
+import com.dwj.publish.ConfigPublisher;
+import com.dwj.publish.FanoutPublisher;
+import com.dwj.registry.ServerRegistry;
 import com.dwj.resource.SysProperties;
+import com.dwj.zookeeper.NodeContentCache;
 import com.dwj.zookeeper.ZookeeperFactory;
 import com.dwj.zookeeper.ZookeeperUtil;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * @author daiwj
@@ -30,12 +42,13 @@ public class ConfigController {
     /**
      * 三种配置发布操作
      */
-    private static final String DEL = "del";
-    private static final String ADD = "add";
-    private static final String UPDATE = "update";
+    private static final String DEL = ConfigPublisher.DEL;
+    private static final String ADD = ConfigPublisher.ADD;
+    private static final String UPDATE = ConfigPublisher.UPDATE;
 
     @RequestMapping("/{type}")
-    public String getConfig(@PathVariable String type, @RequestParam String name) throws Exception {
+    public String getConfig(@PathVariable String type, @RequestParam String name,
+                            @RequestParam(required = false) Integer version) throws Exception {
         String result;
         String path = SysProperties.get("zookeeper.config.center.path");
         Path filePath = Paths.get(path, name);
@@ -46,72 +59,225 @@ public class ConfigController {
         }
         //进行配置更新
         //需要发布的节点node
-        String parentPath = SysProperties.get("zookeeper.root.path") + SysProperties.get("zookeeper.node.path");
-        String configPath = (parentPath.endsWith("/") ? parentPath : parentPath + "/") + name;
+        String configPath = ConfigPublisher.getInstance().getPublishPath() + "/" + name;
         if (DEL.equals(type)) {
-            ZookeeperFactory.getInstance().delNodeData(configPath);
+            ConfigPublisher.getInstance().deleteFile(configPath);
             result = "配置[" + filePath + "]删除，发布成功！";
             log.info(result);
             return result;
         }
-        String fileName = filePath.getFileName().toString();
-        JSONObject json = new JSONObject();
-        json.put("content", new String(Files.readAllBytes(filePath)));
-        json.put("fileName", fileName);
-        byte[] data = json.toString().getBytes();
-        ZookeeperFactory.getInstance().setData(configPath, data);
-        result = "配置[" + filePath + "]发布成功！";
+        //指定了期望版本时节点被他人修改过则发布失败，避免覆盖他人的发布
+        Stat stat = ConfigPublisher.getInstance().publishFile(configPath, filePath, version == null ? ZookeeperFactory.ANY_VERSION : version);
+        result = "配置[" + filePath + "]发布成功，节点版本：" + stat.getVersion() + "！";
         log.info(result);
         return result;
     }
 
     /**
-     * 获取节点列表选项
+     * 批量发布 所有配置在同一个zookeeper事务中提交，全部成功或全部失败
+     * 请求体：[{"type":"update","name":"a.properties","version":3},{"type":"del","name":"b.properties"}]
+     * version为可选的期望节点版本，节点已被他人修改时整体发布失败
      *
+     * @param items
+     * @return success/message/items
+     */
+    @ResponseBody
+    @RequestMapping(value = "/batch", method = RequestMethod.POST)
+    public Map<String, Object> batchPublish(@RequestBody List<PublishItem> items) {
+        log.info("批量发布请求：{}", items);
+        Map<String, Object> response = new LinkedHashMap<>();
+        try {
+            List<Map<String, Object>> results = ConfigPublisher.getInstance().publish(items);
+            response.put("success", true);
+            response.put("message", "批量发布" + results.size() + "个配置成功！");
+            response.put("items", results);
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("message", e.getMessage());
+        } catch (KeeperException e) {
+            response.put("success", false);
+            response.put("message", "节点[" + e.getPath() + "]" + describe(e) + "，本次发布未生效，请刷新后重试！");
+            log.error("批量发布失败：{}", items, e);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", "批量发布异常，" + e.getMessage());
+            log.error("批量发布异常：{}", items, e);
+        }
+        return response;
+    }
+
+    /**
+     * 同一配置并行发布到多个终端节点
+     * 请求体：{"type":"update","name":"a.properties","targets":["/tasker","/tracker"],"wait":false}
+     * targets为空时发布到全部可发布节点(zookeeper.config.node.N)；wait为true时等待全部节点完成后返回
+     *
+     * @param request
+     * @return success/message/task，task中包含每个目标节点的进度
+     */
+    @ResponseBody
+    @RequestMapping(value = "/fanout", method = RequestMethod.POST)
+    public CompletableFuture<Map<String, Object>> fanoutPublish(@RequestBody Map<String, Object> request) {
+        log.info("并行发布请求：{}", request);
+        JSONObject req = new JSONObject(request);
+        List<String> targets = req.getJSONArray("targets") == null ? null : req.getJSONArray("targets").toJavaList(String.class);
+        Map<String, Object> response = new LinkedHashMap<>();
+        FanoutPublisher.FanoutTask task;
+        try {
+            task = FanoutPublisher.getInstance().publish(req.getString("type"), req.getString("name"), targets);
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            return CompletableFuture.completedFuture(response);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", "并行发布异常，" + e.getMessage());
+            log.error("并行发布异常：{}", request, e);
+            return CompletableFuture.completedFuture(response);
+        }
+        response.put("success", true);
+        if (!req.getBooleanValue("wait")) {
+            response.put("message", "并行发布任务[" + task.getId() + "]已开始");
+            response.put("task", task);
+            return CompletableFuture.completedFuture(response);
+        }
+        return task.completion().thenApply(t -> {
+            response.put("success", t.getStatus() == FanoutPublisher.Status.SUCCESS);
+            response.put("message", "并行发布任务[" + t.getId() + "]完成，状态" + t.getStatus());
+            response.put("task", t);
+            return response;
+        });
+    }
+
+    /**
+     * 查询并行发布进度
+     *
+     * @param id 任务id 不传返回最近的全部任务
      * @return
      */
     @ResponseBody
-    @RequestMapping(value = "/getNodes", method = RequestMethod.GET)
-    public List<Server> getServers() throws Exception {
-        String serverPath = ZookeeperUtil.getServersPath();
-        CuratorFramework client = ZookeeperFactory.getCuratorClient();
-        List<String> list = client.getChildren().forPath(serverPath);
-        List<Server> serverList = new ArrayList<>();
-        for (String node : list) {
-            String nodeData = ZookeeperFactory.getInstance().getNodeData(serverPath + "/" + node);
-            Server server = JSON.parseObject(nodeData, Server.class);
-            serverList.add(server);
+    @RequestMapping(value = "/fanout", method = RequestMethod.GET)
+    public ResponseEntity<Object> fanoutProgress(@RequestParam(required = false) String id) {
+        FanoutPublisher publisher = FanoutPublisher.getInstance();
+        if (id == null) {
+            return ResponseEntity.ok(publisher.getTasks());
+        }
+        FanoutPublisher.FanoutTask task = publisher.getTask(id);
+        return task == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(task);
+    }
+
+    private static String describe(KeeperException e) {
+        if (e instanceof KeeperException.BadVersionException) {
+            return "已被修改(版本不一致)";
+        }
+        if (e instanceof KeeperException.NodeExistsException) {
+            return "已存在";
+        }
+        if (e instanceof KeeperException.NoNodeException) {
+            return "不存在";
         }
-        log.info("获取到的可发布节点列表信息：{}", serverList);
+        return "操作失败(" + e.code() + ")";
+    }
+
+    /**
+     * 获取节点列表选项 从内存中的终端注册表读取，不访问zookeeper
+     * 总数通过响应头X-Total-Count返回
+     *
+     * @param name 名称前缀 可选
+     * @param ip   IP前缀 可选
+     * @param page 页码 从1开始，可选
+     * @param size 每页条数 不传返回全部
+     * @return
+     */
+    @ResponseBody
+    @RequestMapping(value = "/getNodes", method = RequestMethod.GET)
+    public List<Server> getServers(@RequestParam(required = false) String name,
+                                   @RequestParam(required = false) String ip,
+                                   @RequestParam(required = false, defaultValue = "1") int page,
+                                   @RequestParam(required = false, defaultValue = "0") int size,
+                                   HttpServletResponse response) throws Exception {
+        ServerRegistry registry = ServerRegistry.getInstance();
+        int offset = size > 0 ? (Math.max(page, 1) - 1) * size : 0;
+        List<Server> serverList = registry.list(name, ip, offset, size);
+        response.setHeader("X-Total-Count", String.valueOf(registry.count(name, ip)));
+        log.debug("获取到的可发布节点列表信息：{}", serverList);
         return serverList;
     }
 
     /**
-     * 获取指定节点数据
+     * 获取指定节点数据 优先读取节点内容缓存，未命中时异步读取节点和分块，不占用servlet线程和zookeeper回调线程等待zookeeper响应
      * @param request
      * @return
      */
     @RequestMapping("/getContent")
-    public String getContent(@RequestBody Map<String, Object> request){
+    public CompletableFuture<String> getContent(@RequestBody Map<String, Object> request){
         log.info("请求数据信息为：{}", request);
         JSONObject req = new JSONObject(request);
-        String node = req.getString("node");
-        String path = req.getString("path");
+        String nodePath = getNodePath(req.getString("node"), req.getString("path"));
+        NodeContentCache cache = NodeContentCache.getInstance();
+        return cache.get(nodePath)
+                .thenCompose(entry -> cache.view(entry, ConfigController::render))
+                .exceptionally(e -> "获取节点[" + nodePath + "]数据异常，" + unwrap(e).getMessage());
+    }
+
+    /**
+     * 获取指定节点数据(GET) 响应带ETag，节点未变化时返回304
+     * @param node 终端节点
+     * @param path 配置路径
+     * @param ifNoneMatch
+     * @return
+     */
+    @RequestMapping(value = "/content", method = RequestMethod.GET)
+    public CompletableFuture<ResponseEntity<String>> content(@RequestParam String node, @RequestParam String path,
+                                                             @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        String nodePath = getNodePath(node, path);
+        NodeContentCache cache = NodeContentCache.getInstance();
+        return cache.get(nodePath).thenCompose(entry -> {
+            String etag = entry.getETag();
+            if (etag.equals(ifNoneMatch)) {
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).<String>build());
+            }
+            return cache.view(entry, ConfigController::render)
+                    .thenApply(body -> ResponseEntity.ok().eTag(etag).contentType(MediaType.APPLICATION_JSON).body(body));
+        }).exceptionally(e -> {
+            Throwable cause = unwrap(e);
+            HttpStatus status = cause instanceof KeeperException.NoNodeException ? HttpStatus.NOT_FOUND : HttpStatus.INTERNAL_SERVER_ERROR;
+            return ResponseEntity.status(status).body("获取节点[" + nodePath + "]数据异常，" + cause.getMessage());
+        });
+    }
+
+    private static String getNodePath(String node, String path) {
         if(path.startsWith("/")){
             path = path.substring(1);
         }
         if(path.endsWith("/")){
             path = path.substring(0, path.length() - 1);
         }
-        ZookeeperFactory zookeeper = ZookeeperFactory.getInstance();
         String nodePath = ZookeeperUtil.getRootPath() + "/" + node + path;
         log.info("获取的节点路径为：{}", nodePath);
-        String data;
+        return nodePath;
+    }
+
+    /**
+     * 统一按原JSON结构展示，二进制格式的节点先解码，分块存储的配置异步读取分块
+     */
+    private static CompletableFuture<String> render(NodeContentCache.Entry entry) {
+        ConfigPayload payload;
         try {
-            data = zookeeper.getNodeData(nodePath);
+            payload = ConfigPayload.decode(entry.getData());
         } catch (Exception e) {
-            data = "获取节点[" + nodePath + "]数据异常，" + e.getMessage();
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
         }
-        return data;
+        return ConfigPublisher.getInstance().readContentAsync(payload).thenApply(content -> {
+            JSONObject json = new JSONObject(new LinkedHashMap<>());
+            json.put("fileName", payload.getFileName());
+            json.put("content", new String(content));
+            return json.toString();
+        });
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 }
@@ -0,0 +1,29 @@
+package com.dwj.controller;
+
+import com.dwj.registry.ConvergenceTracker;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 配置收敛情况查询
+ */
+@RestController
+@RequestMapping("/convergence")
+public class ConvergenceController {
+
+    /**
+     * @param name 配置名 不传返回全部跟踪中的配置
+     * @return 终端数、已收敛数、落后/失败的终端及发布到收敛耗时的p50/p99(毫秒)
+     */
+    @RequestMapping(method = RequestMethod.GET)
+    public Map<String, Object> get(@RequestParam(required = false) String name) {
+        ConvergenceTracker tracker = ConvergenceTracker.getInstance();
+        return name == null ? tracker.getSummary() : tracker.getView(name);
+    }
+}
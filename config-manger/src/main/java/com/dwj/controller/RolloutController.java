@@ -0,0 +1,90 @@
+package com.dwj.controller;
+
+import com.alibaba.fastjson.JSONObject;
+import com.dwj.publish.RolloutScheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * @author daiwj
+ * @date 2021/07/11
+ * @description: 分批发布
+ */
+@Slf4j
+@RestController
+@RequestMapping("/rollout")
+public class RolloutController {
+
+    /**
+     * 发起分批发布
+     * 请求体：{"type":"update","name":"a.properties","groups":["canary","default"],"maxInFlight":10}
+     * groups、maxInFlight可选，groups为空时按分组名顺序发布全部在线终端
+     *
+     * @param request
+     * @return success/message/rollout
+     */
+    @RequestMapping(method = RequestMethod.POST)
+    public Map<String, Object> start(@RequestBody Map<String, Object> request) {
+        log.info("分批发布请求：{}", request);
+        JSONObject req = new JSONObject(request);
+        List<String> groups = req.getJSONArray("groups") == null ? null : req.getJSONArray("groups").toJavaList(String.class);
+        return execute(id -> {
+            try {
+                return RolloutScheduler.getInstance().start(req.getString("type"), req.getString("name"), groups, req.getInteger("maxInFlight"));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("分批发布异常，" + e.getMessage(), e);
+            }
+        }, null);
+    }
+
+    /**
+     * @param id 不传返回最近的全部分批发布
+     * @return
+     */
+    @RequestMapping(method = RequestMethod.GET)
+    public Object get(@RequestParam(required = false) String id) {
+        if (id == null) {
+            return RolloutScheduler.getInstance().getRollouts();
+        }
+        return execute(RolloutScheduler.getInstance()::getRollout, id);
+    }
+
+    @RequestMapping(value = "/pause", method = RequestMethod.POST)
+    public Map<String, Object> pause(@RequestParam String id) {
+        return execute(RolloutScheduler.getInstance()::pause, id);
+    }
+
+    @RequestMapping(value = "/resume", method = RequestMethod.POST)
+    public Map<String, Object> resume(@RequestParam String id) {
+        return execute(RolloutScheduler.getInstance()::resume, id);
+    }
+
+    @RequestMapping(value = "/abort", method = RequestMethod.POST)
+    public Map<String, Object> abort(@RequestParam String id) {
+        return execute(RolloutScheduler.getInstance()::abort, id);
+    }
+
+    private static Map<String, Object> execute(Function<String, RolloutScheduler.Rollout> action, String id) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        try {
+            RolloutScheduler.Rollout rollout = action.apply(id);
+            response.put("success", true);
+            response.put("message", "分批发布[" + rollout.getId() + "]状态：" + rollout.getState());
+            response.put("rollout", rollout);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            if (e.getCause() != null) {
+                log.error("分批发布操作失败：{}", id, e);
+            }
+        }
+        return response;
+    }
+}
@@ -0,0 +1,62 @@
+package com.dwj.entity;
+
+/**
+ * @author daiwj
+ * @date 2021/06/29
+ * @description: 批量发布中的单个配置
+ */
+public class PublishItem {
+    /**
+     * 发布类型 add/update/del
+     */
+    private String type;
+    /**
+     * 配置文件名 相对zookeeper.config.center.path
+     */
+    private String name;
+    /**
+     * 期望的节点版本(页面读取节点时得到的版本)，为空则不校验版本；
+     * 节点不存在时填-1表示要求新建
+     */
+    private Integer version;
+
+    public String getType() {
+        return type;
+    }
+
+    public PublishItem setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PublishItem setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public PublishItem setVersion(Integer version) {
+        this.version = version;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        sb.append("\"type\":\"")
+                .append(type).append('\"');
+        sb.append(",\"name\":\"")
+                .append(name).append('\"');
+        sb.append(",\"version\":")
+                .append(version);
+        sb.append('}');
+        return sb.toString();
+    }
+}
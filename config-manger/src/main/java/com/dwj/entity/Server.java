@@ -12,6 +12,11 @@ public class Server {
     private String name;
     @JSONField(name = "server.ip")
     private String ip;
+    /**
+     * 分组 分批发布时按分组划分批次
+     */
+    @JSONField(name = "server.group")
+    private String group;
 
     public String getName() {
         return name;
@@ -31,6 +36,15 @@ public class Server {
         return this;
     }
 
+    public String getGroup() {
+        return group;
+    }
+
+    public Server setGroup(String group) {
+        this.group = group;
+        return this;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("{");
@@ -38,6 +52,8 @@ public class Server {
                 .append(name).append('\"');
         sb.append(",\"ip\":\"")
                 .append(ip).append('\"');
+        sb.append(",\"group\":\"")
+                .append(group).append('\"');
         sb.append('}');
         return sb.toString();
     }
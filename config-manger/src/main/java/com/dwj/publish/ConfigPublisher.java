@@ -0,0 +1,1086 @@
+package com.dwj.publish;
+
+import com.dwj.entity.PublishItem;
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
+import com.dwj.payload.ChunkManifest;
+import com.dwj.payload.ConfigPayload;
+import com.dwj.payload.LineDelta;
+import com.dwj.registry.ConvergenceTracker;
+import com.dwj.resource.SysProperties;
+import com.dwj.zookeeper.ZookeeperFactory;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author daiwj
+ * @date 2021/06/29
+ * @description: 配置发布
+ * 批量发布时先读取全部文件，再通过一次getChildren得到已存在的节点，
+ * 所有新增/修改/删除放在同一个zookeeper事务(multi)中提交：要么全部生效要么全部不生效，
+ * 终端不会看到只发布了一部分的配置；指定了期望版本的配置在事务中校验版本，被他人修改过则整体失败；
+ * 超过分块大小的配置先把缺少的分块写入分块目录(按内容寻址，未变化的块不重复写入)，
+ * 配置节点只写入分块清单，清单切换后延迟清理不再引用的分块(见collectChunks)；
+ * 修改已发布的较大配置时计算与当前发布版本的按行增量，增量明显小于完整内容时节点只写入增量和分块清单，
+ * 终端本地为旧版本时应用增量并校验md5，否则按清单读取完整内容；
+ * 同一配置并行发布到多个节点时节点数据只生成一次，分块写入共用分块目录，增量按各节点当前版本分别计算(见prepareShared)；
+ * 节点数据带上发布id和发布时间，终端据此统计端到端传播耗时，配置中心记录生成节点数据和写入节点的耗时(/metrics)
+ */
+public class ConfigPublisher {
+    private static final Logger log = LoggerFactory.getLogger(ConfigPublisher.class);
+
+    /**
+     * 三种配置发布操作
+     */
+    public static final String DEL = "del";
+    public static final String ADD = "add";
+    public static final String UPDATE = "update";
+    /**
+     * 节点数据格式 binary：二进制信封(默认) json：原JSON格式，终端未全部升级前使用
+     */
+    private static final String FORMAT_JSON = "json";
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_TRANSACTION_MAX_BYTES = 768 * 1024;
+    private static final int DEFAULT_DELTA_MIN_SIZE = 16 * 1024;
+    private static final int DEFAULT_DELTA_MAX_RATIO = 50;
+    private static final int DEFAULT_CHUNK_GC_DELAY = 5 * 60 * 1000;
+    private static final int CHUNK_GC_RETRIES = 3;
+
+    private static volatile ConfigPublisher instance;
+
+    private final Timer prepareLatency;
+    private final Timer writeLatency;
+    private final Timer commitLatency;
+    private final LongAdder writtenCount;
+    private final LongAdder failedCount;
+    /**
+     * 已安排分块清理的配置节点 同一节点多次发布只安排一次
+     */
+    private final Set<String> collecting = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "config-chunk-gc");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ConfigPublisher() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        prepareLatency = metrics.timer("config.publish.prepare");
+        writeLatency = metrics.timer("config.publish.write");
+        commitLatency = metrics.timer("config.publish.batch.commit");
+        writtenCount = metrics.counter("config.publish.written");
+        failedCount = metrics.counter("config.publish.failed");
+    }
+
+    public static ConfigPublisher getInstance() {
+        if (instance == null) {
+            synchronized (ConfigPublisher.class) {
+                if (instance == null) {
+                    instance = new ConfigPublisher();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return 配置发布的父节点路径
+     */
+    public String getPublishPath() {
+        String parentPath = SysProperties.get("zookeeper.root.path") + SysProperties.get("zookeeper.node.path");
+        return parentPath.endsWith("/") ? parentPath.substring(0, parentPath.length() - 1) : parentPath;
+    }
+
+    /**
+     * 配置节点对应的分块目录，如 /open/config-center/tasker/app.yml -> /open/config-center/chunks/tasker/app.yml
+     *
+     * @param nodePath 配置节点路径
+     * @return
+     */
+    public String getChunkDir(String nodePath) {
+        String rootPath = SysProperties.get("zookeeper.root.path");
+        String chunkPath = StringUtils.defaultIfBlank(SysProperties.get("zookeeper.chunk.path"), "/chunks");
+        String relative = nodePath.startsWith(rootPath) ? nodePath.substring(rootPath.length()) : nodePath;
+        return rootPath + chunkPath + (relative.startsWith("/") ? relative : "/" + relative);
+    }
+
+    /**
+     * 同一配置发布到多个节点时共用的分块目录，如 app.yml -> /open/config-center/chunks-fanout/app.yml
+     *
+     * @param fileName 配置文件名
+     * @return
+     */
+    public String getSharedChunkDir(String fileName) {
+        String rootPath = SysProperties.get("zookeeper.root.path");
+        String chunkPath = StringUtils.defaultIfBlank(SysProperties.get("zookeeper.chunk.path"), "/chunks");
+        return rootPath + chunkPath + "-fanout/" + fileName;
+    }
+
+    /**
+     * 读取本地配置文件并生成节点数据
+     *
+     * @param nodePath     配置节点路径
+     * @param filePath     本地配置文件
+     * @param forceChunked 不论大小都按分块存储(批量发布时控制事务大小)
+     * @return
+     * @throws IOException
+     */
+    public PreparedNode prepare(String nodePath, Path filePath, boolean forceChunked) throws IOException {
+        return prepare(nodePath, filePath.getFileName().toString(), Files.readAllBytes(filePath), forceChunked);
+    }
+
+    /**
+     * 按已读取的配置内容生成节点数据 同一内容发布到多个节点时只读取一次文件
+     *
+     * @param nodePath     配置节点路径
+     * @param fileName     配置文件名
+     * @param content      配置内容
+     * @param forceChunked 不论大小都按分块存储
+     * @return
+     */
+    public PreparedNode prepare(String nodePath, String fileName, byte[] content, boolean forceChunked) {
+        long start = System.nanoTime();
+        try {
+            return doPrepare(nodePath, fileName, content, forceChunked);
+        } finally {
+            prepareLatency.recordSince(start);
+        }
+    }
+
+    private PreparedNode doPrepare(String nodePath, String fileName, byte[] content, boolean forceChunked) {
+        if (FORMAT_JSON.equalsIgnoreCase(SysProperties.get("zookeeper.payload.format"))) {
+            return new PreparedNode(nodePath, ConfigPayload.encodeLegacy(fileName, content), content, null, false, null);
+        }
+        String publishId = newPublishId();
+        long publishTime = System.currentTimeMillis();
+        int chunkSize = intConfig("zookeeper.chunk.size", DEFAULT_CHUNK_SIZE);
+        PreparedNode delta = prepareDelta(nodePath, fileName, content, chunkSize, publishId, publishTime);
+        if (delta != null) {
+            return delta;
+        }
+        if (content.length > chunkSize || forceChunked && content.length > 0) {
+            ChunkManifest manifest = ChunkManifest.split(getChunkDir(nodePath), content, chunkSize);
+            byte[] data = ConfigPayload.encodeManifest(fileName, content, manifest, publishId, publishTime);
+            return new PreparedNode(nodePath, data, content, manifest, false, publishId);
+        }
+        byte[] data = ConfigPayload.encode(fileName, content, publishId, publishTime);
+        return new PreparedNode(nodePath, data, content, null, false, publishId);
+    }
+
+    /**
+     * 生成发布到多个节点时共用的节点数据 完整内容或分块清单只编码一次，分块写入共用的分块目录(见getSharedChunkDir)
+     *
+     * @param fileName  配置文件名
+     * @param content   配置内容
+     * @param nodePaths 可能引用共用分块目录的全部配置节点，写入和清理分块时据此判断分块是否仍被引用
+     * @return
+     */
+    public SharedPayload prepareShared(String fileName, byte[] content, Collection<String> nodePaths) {
+        long start = System.nanoTime();
+        try {
+            if (FORMAT_JSON.equalsIgnoreCase(SysProperties.get("zookeeper.payload.format"))) {
+                return new SharedPayload(fileName, content, ConfigPayload.encodeLegacy(fileName, content), null, false,
+                        false, null, 0L, 0, nodePaths);
+            }
+            String publishId = newPublishId();
+            long publishTime = System.currentTimeMillis();
+            int chunkSize = intConfig("zookeeper.chunk.size", DEFAULT_CHUNK_SIZE);
+            boolean delta = deltaEnabled(content);
+            boolean chunked = content.length > chunkSize;
+            //按增量发布时完整内容同样按清单写入分块，供不在旧版本上的终端读取
+            ChunkManifest manifest = chunked || delta ? ChunkManifest.split(getSharedChunkDir(fileName), content, chunkSize) : null;
+            byte[] data = chunked ? ConfigPayload.encodeManifest(fileName, content, manifest, publishId, publishTime)
+                    : ConfigPayload.encode(fileName, content, publishId, publishTime);
+            int full = delta ? ConfigPayload.encode(fileName, content).length : 0;
+            return new SharedPayload(fileName, content, data, manifest, chunked, delta, publishId, publishTime, full, nodePaths);
+        } finally {
+            prepareLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * @return 新的发布id，关闭发布追踪(zookeeper.payload.trace.enabled=false)时返回null，节点数据按信封格式版本1编码
+     */
+    private static String newPublishId() {
+        if ("false".equalsIgnoreCase(StringUtils.trim(SysProperties.get("zookeeper.payload.trace.enabled")))) {
+            return null;
+        }
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * 计算与当前发布版本的增量
+     *
+     * @return 增量节点数据，未开启、配置较小、节点不存在或增量收益不足时返回null
+     */
+    private PreparedNode prepareDelta(String nodePath, String fileName, byte[] content, int chunkSize,
+                                      String publishId, long publishTime) {
+        if (!deltaEnabled(content)) {
+            return null;
+        }
+        try {
+            byte[] current;
+            try {
+                current = ZookeeperFactory.getCuratorClient().getData().forPath(nodePath);
+            } catch (KeeperException.NoNodeException e) {
+                return null;
+            }
+            if (!ConfigPayload.isEnvelope(current)) {
+                return null;
+            }
+            ConfigPayload published = ConfigPayload.decode(current);
+            byte[] md5 = DigestUtils.md5(content);
+            if (Arrays.equals(md5, published.getMd5())) {
+                return null;
+            }
+            ChunkManifest manifest = ChunkManifest.split(getChunkDir(nodePath), content, chunkSize);
+            byte[] data = encodeDelta(nodePath, fileName, content, md5, published.getMd5(), readContent(published),
+                    manifest, publishId, publishTime, ConfigPayload.encode(fileName, content).length);
+            return data == null ? null : new PreparedNode(nodePath, data, content, manifest, true, publishId);
+        } catch (Exception e) {
+            log.warn("配置节点[{}]计算增量失败，发布完整内容", nodePath, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 是否尝试按增量发布 未关闭增量(zookeeper.delta.enabled)且配置不小于zookeeper.delta.min.size
+     */
+    private static boolean deltaEnabled(byte[] content) {
+        return !"false".equalsIgnoreCase(StringUtils.trim(SysProperties.get("zookeeper.delta.enabled")))
+                && content.length >= intConfig("zookeeper.delta.min.size", DEFAULT_DELTA_MIN_SIZE);
+    }
+
+    /**
+     * 按当前发布版本的内容编码增量
+     *
+     * @param label 日志中的配置节点
+     * @param full  完整内容编码后的大小
+     * @return 增量节点数据，校验失败或增量收益不足时返回null
+     */
+    private static byte[] encodeDelta(String label, String fileName, byte[] content, byte[] md5, byte[] baseMd5, byte[] base,
+                                      ChunkManifest manifest, String publishId, long publishTime, int full) throws IOException {
+        byte[] delta = LineDelta.diff(base, content);
+        if (!Arrays.equals(md5, DigestUtils.md5(LineDelta.apply(base, delta)))) {
+            log.warn("配置节点[{}]增量校验失败，发布完整内容", label);
+            return null;
+        }
+        byte[] data = ConfigPayload.encodeDelta(fileName, content, baseMd5, delta, manifest, publishId, publishTime);
+        int maxRatio = intConfig("zookeeper.delta.max.ratio", DEFAULT_DELTA_MAX_RATIO);
+        if ((long) data.length * 100 > (long) full * maxRatio) {
+            log.info("配置节点[{}]增量{}字节超过完整内容{}字节的{}%，发布完整内容", label, data.length, full, maxRatio);
+            return null;
+        }
+        log.info("配置节点[{}]按增量发布，增量{}字节，完整内容{}字节", label, data.length, full);
+        return data;
+    }
+
+    /**
+     * 发布单个配置
+     *
+     * @param nodePath        配置节点路径
+     * @param filePath        本地配置文件
+     * @param expectedVersion 期望的节点版本 ZookeeperFactory.ANY_VERSION为不校验
+     * @return 写入后的节点状态
+     * @throws Exception
+     */
+    public Stat publishFile(String nodePath, Path filePath, int expectedVersion) throws Exception {
+        long start = System.currentTimeMillis();
+        PreparedNode node = prepare(nodePath, filePath, false);
+        long writeStart = System.nanoTime();
+        Stat stat;
+        try {
+            writeChunks(node);
+            stat = ZookeeperFactory.getInstance().setData(nodePath, node.data, expectedVersion);
+        } catch (Exception e) {
+            failedCount.increment();
+            throw e;
+        } finally {
+            scheduleCollect(nodePath);
+        }
+        written(node, writeStart);
+        published(node, start);
+        return stat;
+    }
+
+    /**
+     * 异步发布单个配置 生成节点数据和写入分块在executor中执行，配置节点通过异步写入提交，
+     * 多个节点同时发布时写请求在同一连接上流水线发送；不再引用的分块在写入完成后延迟清理，失败不影响发布结果
+     *
+     * @param nodePath        配置节点路径
+     * @param fileName        配置文件名
+     * @param content         配置内容
+     * @param expectedVersion 期望的节点版本 ZookeeperFactory.ANY_VERSION为不校验
+     * @param executor        生成节点数据和读写分块的线程池
+     * @return 写入后的节点数据和状态
+     */
+    public CompletableFuture<Published> publishAsync(String nodePath, String fileName, byte[] content,
+                                                     int expectedVersion, Executor executor) {
+        long start = System.currentTimeMillis();
+        long[] writeStart = new long[1];
+        return CompletableFuture.supplyAsync(() -> {
+            PreparedNode node = prepare(nodePath, fileName, content, false);
+            writeStart[0] = System.nanoTime();
+            try {
+                writeChunks(node);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            return node;
+        }, executor).thenCompose(node -> ZookeeperFactory.getInstance().setDataAsync(nodePath, node.data, expectedVersion)
+                .thenApply(stat -> {
+                    written(node, writeStart[0]);
+                    published(node, start);
+                    return new Published(node, stat);
+                })).whenComplete((published, e) -> {
+            if (e != null) {
+                failedCount.increment();
+            }
+            scheduleCollect(nodePath);
+        });
+    }
+
+    /**
+     * 异步发布共用的节点数据 分块只写入一次，各节点读取当前版本，与新内容不同时计算增量，
+     * 当前版本相同的节点共用同一份增量；读取或计算失败时发布完整内容
+     *
+     * @param nodePath        配置节点路径
+     * @param shared          共用的节点数据
+     * @param expectedVersion 期望的节点版本 ZookeeperFactory.ANY_VERSION为不校验
+     * @param executor        计算增量和写入分块的线程池
+     * @return 写入后的节点数据和状态
+     */
+    public CompletableFuture<Published> publishAsync(String nodePath, SharedPayload shared, int expectedVersion, Executor executor) {
+        long start = System.currentTimeMillis();
+        long[] writeStart = new long[1];
+        return prepareAsync(nodePath, shared, executor).thenCompose(node -> {
+            writeStart[0] = System.nanoTime();
+            CompletableFuture<Void> chunks = node.manifest == null ? CompletableFuture.completedFuture(null)
+                    : writeChunksOnce(shared, executor);
+            return chunks.thenCompose(v -> ZookeeperFactory.getInstance().setDataAsync(nodePath, node.data, expectedVersion))
+                    .thenApply(stat -> {
+                        written(node, writeStart[0]);
+                        published(node, start);
+                        return new Published(node, stat);
+                    });
+        }).whenComplete((published, e) -> {
+            if (e != null) {
+                failedCount.increment();
+            }
+            //节点原有的分块目录不再被引用，共用分块目录按全部节点的清单清理
+            scheduleCollect(nodePath);
+            if (shared.manifest != null) {
+                scheduleCollect(shared.manifest.getChunkDir(), shared.nodePaths);
+            }
+        });
+    }
+
+    /**
+     * 生成单个节点的数据 节点当前版本与新内容不同时按其md5取得增量，否则使用完整数据
+     */
+    private CompletableFuture<PreparedNode> prepareAsync(String nodePath, SharedPayload shared, Executor executor) {
+        PreparedNode full = new PreparedNode(nodePath, shared.data, shared.content, shared.chunked ? shared.manifest : null,
+                false, shared.publishId);
+        if (!shared.delta) {
+            return CompletableFuture.completedFuture(full);
+        }
+        return ZookeeperFactory.getInstance().getNodeBytesAsync(nodePath).thenCompose(current -> {
+            if (!ConfigPayload.isEnvelope(current)) {
+                return CompletableFuture.<byte[]>completedFuture(null);
+            }
+            ConfigPayload published;
+            try {
+                published = ConfigPayload.decode(current);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            if (Arrays.equals(shared.md5, published.getMd5())) {
+                return CompletableFuture.<byte[]>completedFuture(null);
+            }
+            return shared.deltas.computeIfAbsent(Hex.encodeHexString(published.getMd5()),
+                    md5 -> readContentAsync(published).thenApplyAsync(base -> {
+                        try {
+                            return encodeDelta(shared.fileName, shared.fileName, shared.content, shared.md5, published.getMd5(),
+                                    base, shared.manifest, shared.publishId, shared.publishTime, shared.full);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor));
+        }).handle((data, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (!(cause instanceof KeeperException.NoNodeException)) {
+                    log.warn("配置节点[{}]计算增量失败，发布完整内容", nodePath, cause);
+                }
+                return full;
+            }
+            return data == null ? full : new PreparedNode(nodePath, data, shared.content, shared.manifest, true, shared.publishId);
+        });
+    }
+
+    /**
+     * 写入共用的分块 多个节点同时发布时只写入一次
+     */
+    private CompletableFuture<Void> writeChunksOnce(SharedPayload shared, Executor executor) {
+        synchronized (shared) {
+            if (shared.chunksWritten == null) {
+                shared.chunksWritten = CompletableFuture.runAsync(() -> {
+                    try {
+                        writeChunks(shared.fileName, shared.manifest, shared.content, shared.nodePaths);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+            }
+            return shared.chunksWritten;
+        }
+    }
+
+    /**
+     * 异步删除单个配置及其分块
+     *
+     * @param nodePath
+     * @return
+     */
+    public CompletableFuture<Void> deleteFileAsync(String nodePath) {
+        ZookeeperFactory zookeeper = ZookeeperFactory.getInstance();
+        return zookeeper.delNodeDataAsync(nodePath)
+                .thenRun(() -> ConvergenceTracker.getInstance().expect(nodePath, null, System.currentTimeMillis()))
+                .thenCompose(v -> zookeeper.delNodeDataAsync(getChunkDir(nodePath)));
+    }
+
+    /**
+     * 删除单个配置及其分块
+     *
+     * @param nodePath
+     * @throws Exception
+     */
+    public void deleteFile(String nodePath) throws Exception {
+        ZookeeperFactory.getInstance().delNodeData(nodePath);
+        ConvergenceTracker.getInstance().expect(nodePath, null, System.currentTimeMillis());
+        ZookeeperFactory.getInstance().delNodeData(getChunkDir(nodePath));
+    }
+
+    /**
+     * 批量发布 所有配置在同一个事务中提交
+     *
+     * @param items
+     * @return 每个配置的发布结果 name/type/path/version
+     * @throws IllegalArgumentException 参数错误或本地配置文件不存在，此时未进行任何发布
+     * @throws KeeperException          版本校验失败、节点已存在等，此时未进行任何发布
+     * @throws Exception
+     */
+    public List<Map<String, Object>> publish(List<PublishItem> items) throws Exception {
+        if (items == null || items.isEmpty()) {
+            throw new IllegalArgumentException("发布列表为空");
+        }
+        String configDir = SysProperties.get("zookeeper.config.center.path");
+        String parentPath = getPublishPath();
+        //先读取全部文件，任何一个文件有问题都不进行发布
+        Map<String, PreparedNode> prepared = new HashMap<>();
+        Set<String> names = new HashSet<>();
+        long transactionBytes = 0;
+        for (PublishItem item : items) {
+            String type = item.getType();
+            if (!DEL.equals(type) && !ADD.equals(type) && !UPDATE.equals(type)) {
+                throw new IllegalArgumentException("配置[" + item.getName() + "]发布类型[" + type + "]不支持");
+            }
+            if (item.getName() == null || item.getName().trim().isEmpty() || item.getName().contains("/")) {
+                throw new IllegalArgumentException("配置名称[" + item.getName() + "]不合法");
+            }
+            if (!names.add(item.getName())) {
+                throw new IllegalArgumentException("配置[" + item.getName() + "]重复");
+            }
+            if (DEL.equals(type)) {
+                continue;
+            }
+            Path filePath = Paths.get(configDir, item.getName());
+            if (Files.notExists(filePath)) {
+                throw new IllegalArgumentException("配置[" + filePath + "]不存在且不是删除事件，发布失败，请检查！");
+            }
+            PreparedNode node = prepare(parentPath + "/" + item.getName(), filePath, false);
+            prepared.put(item.getName(), node);
+            transactionBytes += node.data.length;
+        }
+        //事务请求同样受jute.maxbuffer限制，超出时把最大的配置改为分块存储，事务中只保留清单
+        int maxBytes = intConfig("zookeeper.transaction.max.bytes", DEFAULT_TRANSACTION_MAX_BYTES);
+        if (transactionBytes > maxBytes) {
+            List<PreparedNode> inline = new ArrayList<>();
+            for (PreparedNode node : prepared.values()) {
+                if (node.manifest == null && !ConfigPayload.isEnvelope(node.data)) {
+                    throw new IllegalArgumentException("JSON格式的节点数据总大小" + transactionBytes + "超出事务限制" + maxBytes + "，请分批发布");
+                }
+                if (node.manifest == null) {
+                    inline.add(node);
+                }
+            }
+            inline.sort((a, b) -> Integer.compare(b.data.length, a.data.length));
+            for (PreparedNode node : inline) {
+                if (transactionBytes <= maxBytes) {
+                    break;
+                }
+                PreparedNode chunked = prepare(node.nodePath, Paths.get(configDir, node.nodePath.substring(parentPath.length() + 1)), true);
+                transactionBytes += chunked.data.length - node.data.length;
+                prepared.put(node.nodePath.substring(parentPath.length() + 1), chunked);
+            }
+        }
+
+        ZookeeperFactory zookeeper = ZookeeperFactory.getInstance();
+        zookeeper.checkClientStatus();
+        CuratorFramework client = ZookeeperFactory.getCuratorClient();
+        Set<String> existing = new HashSet<>(listChildren(client, parentPath, true));
+        //分块先于清单写入，事务提交前终端看不到新清单
+        for (PreparedNode node : prepared.values()) {
+            writeChunks(node);
+        }
+
+        CuratorTransaction transaction = client.inTransaction();
+        CuratorTransactionFinal operations = null;
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (PublishItem item : items) {
+            String name = item.getName();
+            String nodePath = parentPath + "/" + name;
+            Integer version = item.getVersion();
+            boolean exists = existing.contains(name);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("name", name);
+            result.put("type", item.getType());
+            result.put("path", nodePath);
+            results.add(result);
+            CuratorTransaction next = operations == null ? transaction : operations;
+            if (DEL.equals(item.getType())) {
+                if (!exists && version == null) {
+                    result.put("version", -1);
+                    log.info("节点【{}】不存在，无需删除", nodePath);
+                    continue;
+                }
+                operations = version == null ? next.delete().forPath(nodePath).and()
+                        : next.delete().withVersion(version).forPath(nodePath).and();
+                continue;
+            }
+            byte[] data = prepared.get(name).data;
+            result.put("chunked", prepared.get(name).manifest != null);
+            result.put("delta", prepared.get(name).delta);
+            result.put("publishId", prepared.get(name).publishId);
+            if (!exists || (version != null && version < 0)) {
+                //期望版本为-1时要求节点不存在，若已被他人创建则create失败
+                operations = next.create().withMode(CreateMode.PERSISTENT).forPath(nodePath, data).and();
+            } else {
+                operations = version == null ? next.setData().forPath(nodePath, data).and()
+                        : next.setData().withVersion(version).forPath(nodePath, data).and();
+            }
+        }
+        if (operations == null) {
+            return results;
+        }
+        long start = System.currentTimeMillis();
+        long commitStart = System.nanoTime();
+        Collection<CuratorTransactionResult> committed;
+        try {
+            committed = operations.commit();
+        } catch (Exception e) {
+            failedCount.increment();
+            //已写入的分块没有清单引用，由延迟清理回收
+            for (PreparedNode node : prepared.values()) {
+                scheduleCollect(node.nodePath);
+            }
+            throw e;
+        }
+        commitLatency.recordSince(commitStart);
+        Map<String, CuratorTransactionResult> byPath = new HashMap<>();
+        for (CuratorTransactionResult r : committed) {
+            byPath.put(r.getForPath(), r);
+        }
+        for (Map<String, Object> result : results) {
+            CuratorTransactionResult r = byPath.get(result.get("path"));
+            if (r == null) {
+                continue;
+            }
+            switch (r.getType()) {
+                case SET_DATA:
+                    result.put("version", r.getResultStat() == null ? null : r.getResultStat().getVersion());
+                    break;
+                case CREATE:
+                    result.put("version", 0);
+                    break;
+                default:
+                    result.put("version", -1);
+                    break;
+            }
+        }
+        log.info("批量发布{}个配置到[{}]完成，耗时{}ms：{}", items.size(), parentPath, System.currentTimeMillis() - start, items);
+        for (PublishItem item : items) {
+            if (DEL.equals(item.getType())) {
+                ConvergenceTracker.getInstance().expect(parentPath + "/" + item.getName(), null, start);
+            } else {
+                writtenCount.increment();
+                published(prepared.get(item.getName()), start);
+            }
+        }
+        //清理不再引用的分块，失败不影响本次发布
+        for (PublishItem item : items) {
+            if (!DEL.equals(item.getType())) {
+                scheduleCollect(parentPath + "/" + item.getName());
+                continue;
+            }
+            try {
+                zookeeper.delNodeData(getChunkDir(parentPath + "/" + item.getName()));
+            } catch (Exception e) {
+                log.warn("配置[{}]分块清理失败", item.getName(), e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 读取节点对应的配置内容 分块存储时按清单读取并校验
+     *
+     * @param payload 已解码的节点数据
+     * @return 原始内容
+     * @throws Exception
+     */
+    public byte[] readContent(ConfigPayload payload) throws Exception {
+        if (!payload.isChunked()) {
+            return payload.getContent();
+        }
+        ChunkManifest manifest = payload.getManifest();
+        ZookeeperFactory zookeeper = ZookeeperFactory.getInstance();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.getOriginalSize());
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            out.write(ConfigPayload.decode(zookeeper.getNodeBytes(manifest.chunkPath(i))).getContent());
+        }
+        return verify(payload, out.toByteArray());
+    }
+
+    /**
+     * 异步读取节点对应的配置内容 分块存储时所有分块同时发出读取，不阻塞调用线程
+     *
+     * @param payload 已解码的节点数据
+     * @return 原始内容，分块缺失或校验失败时异常完成
+     */
+    public CompletableFuture<byte[]> readContentAsync(ConfigPayload payload) {
+        if (!payload.isChunked()) {
+            return CompletableFuture.completedFuture(payload.getContent());
+        }
+        ChunkManifest manifest = payload.getManifest();
+        List<String> paths = new ArrayList<>(manifest.getChunkCount());
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            paths.add(manifest.chunkPath(i));
+        }
+        return ZookeeperFactory.getInstance().getNodesBytesAsync(new LinkedHashSet<>(paths)).thenApply(chunks -> {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(payload.getOriginalSize());
+                for (String path : paths) {
+                    byte[] chunk = chunks.get(path);
+                    if (chunk == null) {
+                        throw new IOException("配置[" + payload.getFileName() + "]分块[" + path + "]不存在");
+                    }
+                    out.write(ConfigPayload.decode(chunk).getContent());
+                }
+                return verify(payload, out.toByteArray());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static byte[] verify(ConfigPayload payload, byte[] content) throws IOException {
+        if (!Arrays.equals(payload.getMd5(), DigestUtils.md5(content))) {
+            throw new IOException("配置[" + payload.getFileName() + "]分块内容校验失败");
+        }
+        return content;
+    }
+
+    /**
+     * 记录写入分块和配置节点的耗时
+     */
+    private void written(PreparedNode node, long writeStartNanos) {
+        writeLatency.recordSince(writeStartNanos);
+        writtenCount.increment();
+        log.info("配置节点[{}]写入完成，发布id[{}]，耗时{}ms", node.nodePath, node.publishId,
+                (System.nanoTime() - writeStartNanos) / 1000000);
+    }
+
+    /**
+     * 记录各终端应收敛到的版本
+     */
+    private static void published(PreparedNode node, long publishTime) {
+        ConvergenceTracker.getInstance().expect(node.nodePath, DigestUtils.md5Hex(node.content), publishTime);
+    }
+
+    /**
+     * 写入清单中分块目录下还不存在的分块，多个分块按事务大小限制分批提交；
+     * 已存在但当前清单未引用的分块(等待清理)重新写入一次，使其修改时间和版本更新，避免被并发的清理删除
+     */
+    private void writeChunks(PreparedNode node) throws Exception {
+        if (node.manifest == null) {
+            return;
+        }
+        writeChunks(node.nodePath, node.manifest, node.content, Collections.singletonList(node.nodePath));
+    }
+
+    /**
+     * @param label     日志中的配置节点
+     * @param nodePaths 可能引用该分块目录的配置节点
+     */
+    private void writeChunks(String label, ChunkManifest manifest, byte[] content, Collection<String> nodePaths) throws Exception {
+        CuratorFramework client = ZookeeperFactory.getCuratorClient();
+        Set<String> existing = new HashSet<>(listChildren(client, manifest.getChunkDir(), true));
+        Set<String> live = referencedChunks(client, manifest.getChunkDir(), nodePaths, null);
+        Set<String> seen = new HashSet<>();
+        int maxBytes = intConfig("zookeeper.transaction.max.bytes", DEFAULT_TRANSACTION_MAX_BYTES);
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        long batchBytes = 0;
+        int written = 0;
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            String name = manifest.chunkName(i);
+            if (!seen.add(name) || existing.contains(name) && live.contains(name)) {
+                continue;
+            }
+            byte[] data = ConfigPayload.encode(name, manifest.slice(content, i));
+            if (existing.contains(name) && touchChunk(client, manifest.getChunkDir() + "/" + name, data)) {
+                continue;
+            }
+            if (!batch.isEmpty() && batchBytes + data.length > maxBytes) {
+                createChunks(client, manifest.getChunkDir(), batch);
+                batch.clear();
+                batchBytes = 0;
+            }
+            batch.put(name, data);
+            batchBytes += data.length;
+            written++;
+        }
+        if (!batch.isEmpty()) {
+            createChunks(client, manifest.getChunkDir(), batch);
+        }
+        log.info("配置节点[{}]分块写入完成，共{}块，新写入{}块", label, manifest.getChunkCount(), written);
+    }
+
+    private void createChunks(CuratorFramework client, String chunkDir, Map<String, byte[]> chunks) throws Exception {
+        CuratorTransactionFinal operations = null;
+        for (Map.Entry<String, byte[]> entry : chunks.entrySet()) {
+            CuratorTransaction next = operations == null ? client.inTransaction() : operations;
+            operations = next.create().withMode(CreateMode.PERSISTENT).forPath(chunkDir + "/" + entry.getKey(), entry.getValue()).and();
+        }
+        try {
+            operations.commit();
+        } catch (KeeperException.NodeExistsException e) {
+            //分块按内容命名，已被并发发布写入的分块可直接使用，逐个补写其余分块
+            for (Map.Entry<String, byte[]> entry : chunks.entrySet()) {
+                try {
+                    client.create().withMode(CreateMode.PERSISTENT).forPath(chunkDir + "/" + entry.getKey(), entry.getValue());
+                } catch (KeeperException.NodeExistsException ignore) {
+                    //已存在
+                }
+            }
+        }
+    }
+
+    /**
+     * 重新写入等待清理的分块
+     *
+     * @return false 分块已被清理，需要重新创建
+     */
+    private static boolean touchChunk(CuratorFramework client, String chunkPath, byte[] data) throws Exception {
+        try {
+            client.setData().forPath(chunkPath, data);
+            return true;
+        } catch (KeeperException.NoNodeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 读取配置节点当前引用的分块清单
+     *
+     * @param stat 不为null时写入节点状态
+     * @return 节点不存在或不是分块存储时返回null
+     */
+    private static ChunkManifest liveManifest(CuratorFramework client, String nodePath, Stat stat) throws Exception {
+        byte[] data;
+        try {
+            data = stat == null ? client.getData().forPath(nodePath) : client.getData().storingStatIn(stat).forPath(nodePath);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+        return ConfigPayload.isEnvelope(data) ? ConfigPayload.decode(data).getManifest() : null;
+    }
+
+    /**
+     * 读取各配置节点当前引用的、位于分块目录下的分块
+     *
+     * @param versions 不为null时写入存在的配置节点的版本
+     */
+    private static Set<String> referencedChunks(CuratorFramework client, String chunkDir, Collection<String> nodePaths,
+                                                Map<String, Integer> versions) throws Exception {
+        Set<String> referenced = new HashSet<>();
+        for (String nodePath : nodePaths) {
+            Stat stat = new Stat();
+            ChunkManifest manifest = liveManifest(client, nodePath, stat);
+            if (versions != null && stat.getMzxid() != 0) {
+                versions.put(nodePath, stat.getVersion());
+            }
+            if (manifest != null && chunkDir.equals(manifest.getChunkDir())) {
+                referenced.addAll(manifest.chunkNames());
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * 发布(无论成功与否)后延迟清理该配置的分块目录，同一节点等待期间的多次发布只安排一次
+     */
+    private void scheduleCollect(String nodePath) {
+        scheduleCollect(getChunkDir(nodePath), Collections.singletonList(nodePath));
+    }
+
+    /**
+     * 延迟清理分块目录，同一目录等待期间的多次发布只安排一次
+     *
+     * @param nodePaths 可能引用该分块目录的配置节点
+     */
+    void scheduleCollect(String chunkDir, Collection<String> nodePaths) {
+        if (!collecting.add(chunkDir)) {
+            return;
+        }
+        collector.schedule(() -> {
+            collecting.remove(chunkDir);
+            try {
+                if (!collectChunks(chunkDir, nodePaths)) {
+                    scheduleCollect(chunkDir, nodePaths);
+                }
+            } catch (Exception e) {
+                log.warn("分块目录[{}]清理失败", chunkDir, e);
+            }
+        }, intConfig("zookeeper.chunk.gc.delay", DEFAULT_CHUNK_GC_DELAY), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 清理分块目录下各配置节点当前清单都不再引用的分块，没有清单引用该目录且没有剩余分块时删除整个分块目录。
+     * 只删除超过zookeeper.chunk.gc.delay未修改的分块：并发发布刚写入、尚未提交清单的分块，
+     * 以及终端可能仍在按旧清单读取的分块都会保留到下一次清理；
+     * 删除与各配置节点、各分块的版本校验放在同一事务中，期间清单切换或分块被重新写入时事务失败并重新判断
+     *
+     * @return false 还有未到期的不再引用的分块，需要再次清理
+     */
+    private boolean collectChunks(String chunkDir, Collection<String> nodePaths) throws Exception {
+        CuratorFramework client = ZookeeperFactory.getCuratorClient();
+        long delay = intConfig("zookeeper.chunk.gc.delay", DEFAULT_CHUNK_GC_DELAY);
+        for (int attempt = 0; attempt < CHUNK_GC_RETRIES; attempt++) {
+            Map<String, Integer> versions = new LinkedHashMap<>();
+            Set<String> referenced = referencedChunks(client, chunkDir, nodePaths, versions);
+            List<String> children = listChildren(client, chunkDir, false);
+            if (children == null) {
+                return true;
+            }
+            long expired = System.currentTimeMillis() - delay;
+            Map<String, Integer> garbage = new LinkedHashMap<>();
+            boolean pending = false;
+            for (String child : children) {
+                if (referenced.contains(child)) {
+                    continue;
+                }
+                Stat chunkStat = client.checkExists().forPath(chunkDir + "/" + child);
+                if (chunkStat == null) {
+                    continue;
+                }
+                if (chunkStat.getMtime() > expired) {
+                    pending = true;
+                } else {
+                    garbage.put(child, chunkStat.getVersion());
+                }
+            }
+            boolean removeDir = referenced.isEmpty() && !pending && garbage.size() == children.size();
+            if (garbage.isEmpty() && !removeDir) {
+                return !pending;
+            }
+            CuratorTransactionFinal operations = null;
+            for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+                CuratorTransaction next = operations == null ? client.inTransaction() : operations;
+                operations = next.check().withVersion(entry.getValue()).forPath(entry.getKey()).and();
+            }
+            for (Map.Entry<String, Integer> entry : garbage.entrySet()) {
+                CuratorTransaction next = operations == null ? client.inTransaction() : operations;
+                operations = next.delete().withVersion(entry.getValue()).forPath(chunkDir + "/" + entry.getKey()).and();
+            }
+            if (removeDir) {
+                CuratorTransaction next = operations == null ? client.inTransaction() : operations;
+                operations = next.delete().forPath(chunkDir).and();
+            }
+            try {
+                operations.commit();
+            } catch (KeeperException.BadVersionException | KeeperException.NoNodeException | KeeperException.NotEmptyException e) {
+                log.info("分块目录[{}]清理期间清单或分块发生变化，重新判断：{}", chunkDir, e.getMessage());
+                continue;
+            }
+            log.info("分块目录[{}]清理不再引用的分块{}个{}", chunkDir, garbage.size(), removeDir ? "，删除分块目录" : "");
+            return !pending;
+        }
+        return false;
+    }
+
+    /**
+     * @param create 节点不存在时是否创建(只创建空的父节点，不影响终端)
+     * @return 子节点列表，节点不存在且不创建时返回null
+     */
+    private List<String> listChildren(CuratorFramework client, String parentPath, boolean create) throws Exception {
+        try {
+            return client.getChildren().forPath(parentPath);
+        } catch (KeeperException.NoNodeException e) {
+            if (!create) {
+                return null;
+            }
+            log.info("节点【{}】不存在，创建父节点", parentPath);
+            try {
+                client.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).forPath(parentPath);
+            } catch (KeeperException.NodeExistsException ignore) {
+                //并发创建
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 读取整数配置 未配置或格式错误时使用默认值
+     */
+    static int intConfig(String key, int defaultValue) {
+        String value = SysProperties.get(key);
+        if (StringUtils.isNotEmpty(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                log.error("配置[{}={}]格式错误，使用默认值{}", key, value, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * 待写入的配置节点数据
+     */
+    public static final class PreparedNode {
+        private final String nodePath;
+        private final byte[] data;
+        private final byte[] content;
+        private final ChunkManifest manifest;
+        private final boolean delta;
+        private final String publishId;
+
+        private PreparedNode(String nodePath, byte[] data, byte[] content, ChunkManifest manifest, boolean delta, String publishId) {
+            this.nodePath = nodePath;
+            this.data = data;
+            this.content = content;
+            this.manifest = manifest;
+            this.delta = delta;
+            this.publishId = publishId;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public ChunkManifest getManifest() {
+            return manifest;
+        }
+
+        /**
+         * @return 是否按增量发布
+         */
+        public boolean isDelta() {
+            return delta;
+        }
+
+        /**
+         * @return 发布id JSON格式或关闭发布追踪时为null
+         */
+        public String getPublishId() {
+            return publishId;
+        }
+    }
+
+    /**
+     * 发布到多个节点时共用的节点数据 完整数据、分块清单和分块只生成一次，增量按各节点当前版本的md5分别计算并复用
+     */
+    public static final class SharedPayload {
+        private final String fileName;
+        private final byte[] content;
+        private final byte[] md5;
+        private final byte[] data;
+        /**
+         * 共用分块目录下的分块清单 完整数据为清单或可按增量发布时不为null
+         */
+        private final ChunkManifest manifest;
+        private final boolean chunked;
+        private final boolean delta;
+        private final String publishId;
+        private final long publishTime;
+        private final int full;
+        private final Collection<String> nodePaths;
+        /**
+         * 节点当前版本md5 -> 增量节点数据，增量收益不足时为null
+         */
+        private final Map<String, CompletableFuture<byte[]>> deltas = new ConcurrentHashMap<>();
+        private CompletableFuture<Void> chunksWritten;
+
+        private SharedPayload(String fileName, byte[] content, byte[] data, ChunkManifest manifest, boolean chunked, boolean delta,
+                              String publishId, long publishTime, int full, Collection<String> nodePaths) {
+            this.fileName = fileName;
+            this.content = content;
+            this.md5 = DigestUtils.md5(content);
+            this.data = data;
+            this.manifest = manifest;
+            this.chunked = chunked;
+            this.delta = delta;
+            this.publishId = publishId;
+            this.publishTime = publishTime;
+            this.full = full;
+            this.nodePaths = new ArrayList<>(nodePaths);
+        }
+    }
+
+    /**
+     * 异步发布结果
+     */
+    public static final class Published {
+        private final PreparedNode node;
+        private final Stat stat;
+
+        private Published(PreparedNode node, Stat stat) {
+            this.node = node;
+            this.stat = stat;
+        }
+
+        public PreparedNode getNode() {
+            return node;
+        }
+
+        public Stat getStat() {
+            return stat;
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.dwj.publish;
+
+import com.dwj.resource.SysProperties;
+import com.dwj.zookeeper.ZookeeperFactory;
+import com.dwj.zookeeper.ZookeeperUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author daiwj
+ * @date 2021/07/10
+ * @description: 同一配置并行发布到多个终端节点
+ * 配置文件只读取一次，节点数据只生成一次、分块只写入一次(共用分块目录，见ConfigPublisher.getSharedChunkDir)，
+ * 各目标节点只在当前版本与新内容不同时按其md5计算增量，当前版本相同的目标共用同一份增量；
+ * 各目标节点(zookeeper.config.node.N)的发布同时发起，节点写入经异步接口在同一连接上流水线提交，
+ * 总耗时接近单个节点的发布耗时；各目标独立成功或失败，不是事务；
+ * 发布任务及每个目标的进度保存在内存中(最近zookeeper.fanout.history个)，可按任务id查询
+ */
+public class FanoutPublisher {
+    private static final Logger log = LoggerFactory.getLogger(FanoutPublisher.class);
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_HISTORY = 100;
+
+    private static volatile FanoutPublisher instance;
+
+    private final ExecutorService executor;
+    private final int history;
+    private final Map<String, FanoutTask> tasks;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private FanoutPublisher() {
+        int threads = ConfigPublisher.intConfig("zookeeper.fanout.threads", DEFAULT_THREADS);
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "config-fanout-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        history = ConfigPublisher.intConfig("zookeeper.fanout.history", DEFAULT_HISTORY);
+        tasks = new LinkedHashMap<String, FanoutTask>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FanoutTask> eldest) {
+                return size() > history;
+            }
+        };
+    }
+
+    public static FanoutPublisher getInstance() {
+        if (instance == null) {
+            synchronized (FanoutPublisher.class) {
+                if (instance == null) {
+                    instance = new FanoutPublisher();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return 可发布的目标节点 zookeeper.config.node.1、zookeeper.config.node.2...
+     */
+    public List<String> getTargets() {
+        List<String> targets = new ArrayList<>();
+        for (int i = 1; ; i++) {
+            String target = SysProperties.get("zookeeper.config.node." + i);
+            if (StringUtils.isEmpty(target)) {
+                return targets;
+            }
+            targets.add(normalize(target));
+        }
+    }
+
+    /**
+     * 发起并行发布 立即返回，进度通过返回的任务或getTask查询
+     *
+     * @param type    发布类型 add/update/del
+     * @param name    配置文件名 相对zookeeper.config.center.path
+     * @param targets 目标节点 如/tasker，为空时发布到全部可发布节点
+     * @return 发布任务
+     * @throws IllegalArgumentException 参数错误或本地配置文件不存在，此时未进行任何发布
+     * @throws IOException              读取本地配置文件失败
+     */
+    public FanoutTask publish(String type, String name, List<String> targets) throws IOException {
+        byte[] content = readConfig(type, name);
+        List<String> allowed = getTargets();
+        Set<String> selected = new LinkedHashSet<>();
+        if (targets == null || targets.isEmpty()) {
+            selected.addAll(allowed);
+        } else {
+            for (String target : targets) {
+                String normalized = normalize(target);
+                if (!allowed.contains(normalized)) {
+                    throw new IllegalArgumentException("目标节点[" + target + "]不在可发布节点" + allowed + "中");
+                }
+                selected.add(normalized);
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("没有可发布的目标节点");
+        }
+        return start(type, name, content, selected);
+    }
+
+    /**
+     * 校验发布参数并读取本地配置
+     *
+     * @param type 发布类型 add/update/del
+     * @param name 配置文件名
+     * @return 配置内容 删除时为null
+     * @throws IllegalArgumentException 参数错误或本地配置文件不存在
+     * @throws IOException              读取本地配置文件失败
+     */
+    static byte[] readConfig(String type, String name) throws IOException {
+        if (!ConfigPublisher.DEL.equals(type) && !ConfigPublisher.ADD.equals(type) && !ConfigPublisher.UPDATE.equals(type)) {
+            throw new IllegalArgumentException("发布类型[" + type + "]不支持");
+        }
+        if (StringUtils.isBlank(name) || name.contains("/")) {
+            throw new IllegalArgumentException("配置名称[" + name + "]不合法");
+        }
+        if (ConfigPublisher.DEL.equals(type)) {
+            return null;
+        }
+        Path filePath = Paths.get(SysProperties.get("zookeeper.config.center.path"), name);
+        if (Files.notExists(filePath)) {
+            throw new IllegalArgumentException("配置[" + filePath + "]不存在且不是删除事件，发布失败，请检查！");
+        }
+        return Files.readAllBytes(filePath);
+    }
+
+    /**
+     * 发布到已校验的目标节点
+     *
+     * @param type    发布类型
+     * @param name    配置文件名
+     * @param content 配置内容 删除时为null
+     * @param targets 目标节点 相对zookeeper.root.path，如/tasker、/tasker001
+     * @return 发布任务
+     */
+    FanoutTask start(String type, String name, byte[] content, Collection<String> targets) {
+        String id = System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+        FanoutTask task = new FanoutTask(id, type, name);
+        String rootPath = ZookeeperUtil.getRootPath();
+        for (String target : targets) {
+            task.targets.put(target, new TargetProgress(target, rootPath + target + "/" + name));
+        }
+        synchronized (tasks) {
+            tasks.put(id, task);
+        }
+        log.info("并行发布任务[{}]开始：{}[{}] -> {}", id, type, name, targets);
+        ConfigPublisher publisher = ConfigPublisher.getInstance();
+        //共用分块目录可能被任一可发布节点引用
+        Set<String> nodePaths = new LinkedHashSet<>();
+        for (String target : getTargets()) {
+            nodePaths.add(rootPath + target + "/" + name);
+        }
+        for (TargetProgress progress : task.targets.values()) {
+            nodePaths.add(progress.path);
+        }
+        CompletableFuture<ConfigPublisher.SharedPayload> shared = ConfigPublisher.DEL.equals(type) ? null
+                : CompletableFuture.supplyAsync(() -> publisher.prepareShared(name, content, nodePaths), executor);
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (TargetProgress progress : task.targets.values()) {
+            progress.start();
+            CompletableFuture<?> future;
+            if (ConfigPublisher.DEL.equals(type)) {
+                future = publisher.deleteFileAsync(progress.path).thenRun(() -> progress.succeed(-1, false, null));
+            } else {
+                future = shared.thenCompose(payload -> publisher.publishAsync(progress.path, payload, ZookeeperFactory.ANY_VERSION, executor))
+                        .thenAccept(published -> progress.succeed(published.getStat().getVersion(), published.getNode().isDelta(),
+                                published.getNode().getPublishId()));
+            }
+            futures.add(future.whenComplete((v, e) -> {
+                if (e != null) {
+                    progress.fail(unwrap(e));
+                    log.error("并行发布任务[{}]节点[{}]发布失败", id, progress.path, unwrap(e));
+                }
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+            if (ConfigPublisher.DEL.equals(type)) {
+                publisher.scheduleCollect(publisher.getSharedChunkDir(name), nodePaths);
+            }
+            task.finish();
+            log.info("并行发布任务[{}]完成，状态{}，耗时{}ms", id, task.getStatus(), task.getCostMillis());
+        });
+        return task;
+    }
+
+    /**
+     * @param id 任务id
+     * @return 发布任务 不存在或已被清理时为null
+     */
+    public FanoutTask getTask(String id) {
+        synchronized (tasks) {
+            return tasks.get(id);
+        }
+    }
+
+    /**
+     * @return 最近的发布任务 按发起时间倒序
+     */
+    public List<FanoutTask> getTasks() {
+        List<FanoutTask> list;
+        synchronized (tasks) {
+            list = new ArrayList<>(tasks.values());
+        }
+        Collections.reverse(list);
+        return list;
+    }
+
+    private static String normalize(String target) {
+        String normalized = target.trim();
+        if (!normalized.startsWith("/")) {
+            normalized = "/" + normalized;
+        }
+        return normalized.endsWith("/") ? normalized.substring(0, normalized.length() - 1) : normalized;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * 任务/目标状态
+     */
+    public enum Status {
+        PENDING, RUNNING, SUCCESS, PARTIAL, FAILED
+    }
+
+    /**
+     * 一次并行发布
+     */
+    public static final class FanoutTask {
+        private final String id;
+        private final String type;
+        private final String name;
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime;
+        private final Map<String, TargetProgress> targets = new LinkedHashMap<>();
+        private final CompletableFuture<FanoutTask> completion = new CompletableFuture<>();
+
+        private FanoutTask(String id, String type, String name) {
+            this.id = id;
+            this.type = type;
+            this.name = name;
+        }
+
+        private void finish() {
+            endTime = System.currentTimeMillis();
+            completion.complete(this);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return 全部目标完成前为RUNNING，之后为SUCCESS/PARTIAL/FAILED
+         */
+        public Status getStatus() {
+            if (endTime == 0) {
+                return Status.RUNNING;
+            }
+            int succeeded = 0;
+            for (TargetProgress progress : targets.values()) {
+                if (progress.status == Status.SUCCESS) {
+                    succeeded++;
+                }
+            }
+            return succeeded == targets.size() ? Status.SUCCESS : succeeded == 0 ? Status.FAILED : Status.PARTIAL;
+        }
+
+        /**
+         * @return 总耗时 未完成时为已经过的时间
+         */
+        public long getCostMillis() {
+            return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+        }
+
+        public List<TargetProgress> getTargets() {
+            return new ArrayList<>(targets.values());
+        }
+
+        /**
+         * @return 全部目标完成时完成
+         */
+        public CompletableFuture<FanoutTask> completion() {
+            return completion;
+        }
+    }
+
+    /**
+     * 单个目标节点的发布进度
+     */
+    public static final class TargetProgress {
+        private final String target;
+        private final String path;
+        private volatile Status status = Status.PENDING;
+        private volatile long startTime;
+        private volatile long costMillis;
+        private volatile int version = -1;
+        private volatile boolean delta;
+        private volatile String publishId;
+        private volatile String message;
+
+        private TargetProgress(String target, String path) {
+            this.target = target;
+            this.path = path;
+        }
+
+        private void start() {
+            startTime = System.currentTimeMillis();
+            status = Status.RUNNING;
+        }
+
+        private void succeed(int version, boolean delta, String publishId) {
+            this.version = version;
+            this.delta = delta;
+            this.publishId = publishId;
+            costMillis = System.currentTimeMillis() - startTime;
+            status = Status.SUCCESS;
+        }
+
+        private void fail(Throwable e) {
+            message = e instanceof KeeperException ? ((KeeperException) e).code() + " " + e.getMessage() : String.valueOf(e.getMessage());
+            costMillis = System.currentTimeMillis() - startTime;
+            status = Status.FAILED;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getCostMillis() {
+            return status == Status.RUNNING ? System.currentTimeMillis() - startTime : costMillis;
+        }
+
+        /**
+         * @return 写入后的节点版本 删除或未完成时为-1
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public boolean isDelta() {
+            return delta;
+        }
+
+        /**
+         * @return 发布id 与终端落盘日志和传播耗时对应，删除或未完成时为null
+         */
+        public String getPublishId() {
+            return publishId;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
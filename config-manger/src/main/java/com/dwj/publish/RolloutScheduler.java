@@ -0,0 +1,469 @@
+package com.dwj.publish;
+
+import com.dwj.entity.Server;
+import com.dwj.registry.ConvergenceTracker;
+import com.dwj.registry.ServerRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author daiwj
+ * @date 2021/07/11
+ * @description: 分批发布
+ * 按终端注册表(config.public.nodes.path)中终端的分组(server.group)划分批次，逐批发布到各终端监听的节点(rootPath+server.name)，
+ * 每批最多config.rollout.max.in.flight个终端，避免所有终端同时落盘、重载；
+ * 每批写入后等待本批终端通过落盘状态节点上报收敛(最长config.rollout.converge.timeout)，落盘失败和超时均计为失败；
+ * 批次之间间隔config.rollout.wave.interval并附加0~config.rollout.jitter的随机延迟；
+ * 累计失败率超过config.rollout.max.failure.rate(百分比)时自动暂停，由人工恢复或终止
+ */
+public class RolloutScheduler {
+    private static final Logger log = LoggerFactory.getLogger(RolloutScheduler.class);
+    private static final String DEFAULT_GROUP = "default";
+    private static final int DEFAULT_MAX_IN_FLIGHT = 20;
+    private static final int DEFAULT_WAVE_INTERVAL = 10000;
+    private static final int DEFAULT_JITTER = 5000;
+    private static final int DEFAULT_MAX_FAILURE_RATE = 20;
+    private static final int DEFAULT_HISTORY = 50;
+    private static final int DEFAULT_CONVERGE_TIMEOUT = 60000;
+
+    private static volatile RolloutScheduler instance;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "config-rollout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Rollout> rollouts;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private RolloutScheduler() {
+        int history = ConfigPublisher.intConfig("config.rollout.history", DEFAULT_HISTORY);
+        rollouts = new LinkedHashMap<String, Rollout>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rollout> eldest) {
+                return size() > history;
+            }
+        };
+    }
+
+    public static RolloutScheduler getInstance() {
+        if (instance == null) {
+            synchronized (RolloutScheduler.class) {
+                if (instance == null) {
+                    instance = new RolloutScheduler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 发起分批发布 立即返回，第一批随即开始
+     *
+     * @param type        发布类型 add/update/del
+     * @param name        配置文件名
+     * @param groups      按顺序发布的终端分组 为空时按分组名顺序发布全部终端
+     * @param maxInFlight 每批最多终端数 为空时使用config.rollout.max.in.flight
+     * @return 分批发布任务
+     * @throws IllegalArgumentException 参数错误、本地配置不存在或没有可发布的终端
+     * @throws Exception
+     */
+    public Rollout start(String type, String name, List<String> groups, Integer maxInFlight) throws Exception {
+        byte[] content = FanoutPublisher.readConfig(type, name);
+        int batchSize = maxInFlight != null && maxInFlight > 0 ? maxInFlight
+                : Math.max(1, ConfigPublisher.intConfig("config.rollout.max.in.flight", DEFAULT_MAX_IN_FLIGHT));
+        Map<String, List<String>> serversByGroup = new TreeMap<>();
+        for (Server server : ServerRegistry.getInstance().list(null, null, 0, 0)) {
+            String group = server.getGroup() == null || server.getGroup().trim().isEmpty() ? DEFAULT_GROUP : server.getGroup().trim();
+            serversByGroup.computeIfAbsent(group, g -> new ArrayList<>()).add(server.getName());
+        }
+        List<String> order = groups == null || groups.isEmpty() ? new ArrayList<>(serversByGroup.keySet()) : groups;
+        List<Wave> waves = new ArrayList<>();
+        for (String group : order) {
+            List<String> servers = serversByGroup.get(group);
+            if (servers == null) {
+                throw new IllegalArgumentException("分组[" + group + "]没有在线终端，当前分组：" + serversByGroup.keySet());
+            }
+            for (int i = 0; i < servers.size(); i += batchSize) {
+                waves.add(new Wave(waves.size() + 1, group, servers.subList(i, Math.min(servers.size(), i + batchSize))));
+            }
+        }
+        if (waves.isEmpty()) {
+            throw new IllegalArgumentException("没有可发布的终端");
+        }
+        Rollout rollout = new Rollout(System.currentTimeMillis() + "-" + sequence.incrementAndGet(), type, name, content, waves,
+                ConfigPublisher.intConfig("config.rollout.max.failure.rate", DEFAULT_MAX_FAILURE_RATE));
+        synchronized (rollouts) {
+            rollouts.put(rollout.id, rollout);
+        }
+        log.info("分批发布[{}]开始：{}[{}]，共{}批：{}", rollout.id, type, name, waves.size(), waves);
+        scheduler.execute(() -> runNextWave(rollout));
+        return rollout;
+    }
+
+    /**
+     * 暂停 进行中的批次继续完成，之后不再开始新批次
+     */
+    public Rollout pause(String id) {
+        Rollout rollout = getRollout(id);
+        synchronized (rollout) {
+            if (rollout.state == State.RUNNING) {
+                rollout.state = State.PAUSED;
+                rollout.message = "人工暂停";
+                cancelScheduled(rollout);
+                log.info("分批发布[{}]已暂停", id);
+            }
+        }
+        return rollout;
+    }
+
+    /**
+     * 恢复已暂停的发布 立即开始下一批
+     */
+    public Rollout resume(String id) {
+        Rollout rollout = getRollout(id);
+        synchronized (rollout) {
+            if (rollout.state != State.PAUSED) {
+                throw new IllegalStateException("分批发布[" + id + "]当前状态" + rollout.state + "，不能恢复");
+            }
+            rollout.state = State.RUNNING;
+            rollout.message = null;
+            log.info("分批发布[{}]已恢复", id);
+            if (rollout.current == null) {
+                scheduler.execute(() -> runNextWave(rollout));
+            }
+        }
+        return rollout;
+    }
+
+    /**
+     * 终止 已发布的终端保持新配置，未发布的终端保持原配置
+     */
+    public Rollout abort(String id) {
+        Rollout rollout = getRollout(id);
+        synchronized (rollout) {
+            if (rollout.state == State.RUNNING || rollout.state == State.PAUSED) {
+                rollout.state = State.ABORTED;
+                rollout.message = "人工终止";
+                rollout.endTime = System.currentTimeMillis();
+                cancelScheduled(rollout);
+                log.info("分批发布[{}]已终止，已完成{}/{}批", id, rollout.nextWave, rollout.waves.size());
+            }
+        }
+        return rollout;
+    }
+
+    /**
+     * @throws IllegalArgumentException 任务不存在或已被清理
+     */
+    public Rollout getRollout(String id) {
+        Rollout rollout;
+        synchronized (rollouts) {
+            rollout = rollouts.get(id);
+        }
+        if (rollout == null) {
+            throw new IllegalArgumentException("分批发布[" + id + "]不存在");
+        }
+        return rollout;
+    }
+
+    /**
+     * @return 最近的分批发布 按发起时间倒序
+     */
+    public List<Rollout> getRollouts() {
+        List<Rollout> list;
+        synchronized (rollouts) {
+            list = new ArrayList<>(rollouts.values());
+        }
+        Collections.reverse(list);
+        return list;
+    }
+
+    private void runNextWave(Rollout rollout) {
+        Wave wave;
+        synchronized (rollout) {
+            rollout.scheduled = null;
+            if (rollout.state != State.RUNNING || rollout.current != null) {
+                return;
+            }
+            if (rollout.nextWave >= rollout.waves.size()) {
+                complete(rollout);
+                return;
+            }
+            wave = rollout.waves.get(rollout.nextWave++);
+            rollout.current = wave;
+            rollout.nextWaveTime = 0;
+        }
+        List<String> targets = new ArrayList<>(wave.servers.size());
+        for (String server : wave.servers) {
+            targets.add("/" + server);
+        }
+        log.info("分批发布[{}]第{}批开始，分组[{}]：{}", rollout.id, wave.index, wave.group, wave.servers);
+        try {
+            wave.task = FanoutPublisher.getInstance().start(rollout.type, rollout.name, rollout.content, targets);
+        } catch (Exception e) {
+            log.error("分批发布[{}]第{}批发起失败", rollout.id, wave.index, e);
+            synchronized (rollout) {
+                rollout.current = null;
+                rollout.state = State.PAUSED;
+                rollout.message = "第" + wave.index + "批发起失败：" + e.getMessage();
+            }
+            return;
+        }
+        wave.task.completion().whenComplete((task, e) -> onWaveWritten(rollout, wave));
+    }
+
+    /**
+     * 节点写入完成后等待本批终端上报落盘结果 删除操作不等待
+     */
+    private void onWaveWritten(Rollout rollout, Wave wave) {
+        List<String> written = new ArrayList<>();
+        for (FanoutPublisher.TargetProgress progress : wave.task.getTargets()) {
+            if (progress.getStatus() == FanoutPublisher.Status.SUCCESS) {
+                written.add(progress.getTarget().substring(1));
+            } else {
+                wave.failedServers.add(progress.getTarget().substring(1));
+            }
+        }
+        if (rollout.md5 == null || written.isEmpty()) {
+            wave.convergedServers.addAll(written);
+            onWaveDone(rollout, wave);
+            return;
+        }
+        long timeout = ConfigPublisher.intConfig("config.rollout.converge.timeout", DEFAULT_CONVERGE_TIMEOUT);
+        ConvergenceTracker.getInstance().await(rollout.name, rollout.md5, written, timeout).whenComplete((result, e) -> {
+            if (e != null) {
+                log.error("分批发布[{}]第{}批等待收敛异常", rollout.id, wave.index, e);
+                wave.timedOutServers.addAll(written);
+            } else {
+                wave.convergedServers.addAll(result.getConverged());
+                wave.failedServers.addAll(result.getFailed());
+                wave.timedOutServers.addAll(result.getTimedOut());
+            }
+            onWaveDone(rollout, wave);
+        });
+    }
+
+    private void onWaveDone(Rollout rollout, Wave wave) {
+        int succeeded = wave.convergedServers.size();
+        int failed = wave.failedServers.size() + wave.timedOutServers.size();
+        synchronized (rollout) {
+            rollout.current = null;
+            rollout.succeeded += succeeded;
+            rollout.failed += failed;
+            log.info("分批发布[{}]第{}批完成，成功{}，失败{}，累计失败率{}%", rollout.id, wave.index, succeeded, failed, rollout.getFailureRate());
+            if (rollout.state == State.ABORTED) {
+                return;
+            }
+            if (rollout.nextWave >= rollout.waves.size()) {
+                complete(rollout);
+                return;
+            }
+            if (rollout.getFailureRate() > rollout.maxFailureRate) {
+                rollout.state = State.PAUSED;
+                rollout.message = "累计失败率" + rollout.getFailureRate() + "%超过" + rollout.maxFailureRate + "%，自动暂停";
+                log.warn("分批发布[{}]{}", rollout.id, rollout.message);
+                return;
+            }
+            if (rollout.state != State.RUNNING) {
+                return;
+            }
+            long delay = ConfigPublisher.intConfig("config.rollout.wave.interval", DEFAULT_WAVE_INTERVAL);
+            int jitter = ConfigPublisher.intConfig("config.rollout.jitter", DEFAULT_JITTER);
+            if (jitter > 0) {
+                delay += ThreadLocalRandom.current().nextInt(jitter + 1);
+            }
+            rollout.nextWaveTime = System.currentTimeMillis() + delay;
+            rollout.scheduled = scheduler.schedule(() -> runNextWave(rollout), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void complete(Rollout rollout) {
+        rollout.state = State.COMPLETED;
+        rollout.endTime = System.currentTimeMillis();
+        log.info("分批发布[{}]全部完成，成功{}，失败{}，耗时{}ms", rollout.id, rollout.succeeded, rollout.failed, rollout.endTime - rollout.startTime);
+    }
+
+    private static void cancelScheduled(Rollout rollout) {
+        if (rollout.scheduled != null) {
+            rollout.scheduled.cancel(false);
+            rollout.scheduled = null;
+            rollout.nextWaveTime = 0;
+        }
+    }
+
+    /**
+     * 分批发布状态
+     */
+    public enum State {
+        RUNNING, PAUSED, COMPLETED, ABORTED
+    }
+
+    /**
+     * 一次分批发布
+     */
+    public static final class Rollout {
+        private final String id;
+        private final String type;
+        private final String name;
+        private final byte[] content;
+        /**
+         * 配置内容md5 删除时为null
+         */
+        private final String md5;
+        private final List<Wave> waves;
+        private final int maxFailureRate;
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime;
+        private volatile State state = State.RUNNING;
+        private volatile String message;
+        private int nextWave;
+        private Wave current;
+        private ScheduledFuture<?> scheduled;
+        private volatile long nextWaveTime;
+        private volatile int succeeded;
+        private volatile int failed;
+
+        private Rollout(String id, String type, String name, byte[] content, List<Wave> waves, int maxFailureRate) {
+            this.id = id;
+            this.type = type;
+            this.name = name;
+            this.content = content;
+            this.md5 = content == null ? null : DigestUtils.md5Hex(content);
+            this.waves = waves;
+            this.maxFailureRate = maxFailureRate;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return 暂停/终止原因
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return 下一批的计划开始时间 没有等待中的批次时为0
+         */
+        public long getNextWaveTime() {
+            return nextWaveTime;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return 累计失败率(百分比)
+         */
+        public int getFailureRate() {
+            int done = succeeded + failed;
+            return done == 0 ? 0 : failed * 100 / done;
+        }
+
+        public List<Wave> getWaves() {
+            return waves;
+        }
+    }
+
+    /**
+     * 一个批次
+     */
+    public static final class Wave {
+        private final int index;
+        private final String group;
+        private final List<String> servers;
+        private volatile FanoutPublisher.FanoutTask task;
+        private final List<String> convergedServers = new CopyOnWriteArrayList<>();
+        private final List<String> failedServers = new CopyOnWriteArrayList<>();
+        private final List<String> timedOutServers = new CopyOnWriteArrayList<>();
+
+        private Wave(int index, String group, List<String> servers) {
+            this.index = index;
+            this.group = group;
+            this.servers = new ArrayList<>(servers);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public List<String> getServers() {
+            return servers;
+        }
+
+        /**
+         * @return 本批次的发布进度 未开始时为null
+         */
+        public FanoutPublisher.FanoutTask getTask() {
+            return task;
+        }
+
+        /**
+         * @return 已落盘新版本的终端
+         */
+        public List<String> getConvergedServers() {
+            return convergedServers;
+        }
+
+        /**
+         * @return 节点写入失败或上报落盘失败的终端
+         */
+        public List<String> getFailedServers() {
+            return failedServers;
+        }
+
+        /**
+         * @return 超时未上报落盘结果的终端
+         */
+        public List<String> getTimedOutServers() {
+            return timedOutServers;
+        }
+
+        @Override
+        public String toString() {
+            return group + "#" + index + servers;
+        }
+    }
+}
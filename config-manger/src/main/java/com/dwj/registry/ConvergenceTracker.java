@@ -0,0 +1,427 @@
+package com.dwj.registry;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.resource.SysProperties;
+import com.dwj.zookeeper.ZookeeperFactory;
+import com.dwj.zookeeper.ZookeeperUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.utils.ZKPaths;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 配置收敛跟踪
+ * 监听各终端的落盘状态节点(config.public.status.path下，终端落盘后写入)，在内存中维护 终端 -> 配置 -> 已落盘的md5/结果；
+ * 发布时记录每个终端每个配置期望的md5和发布时间，状态节点上报相同md5时视为收敛，记录从发布到收敛的耗时(p50/p99)；
+ * 收敛耗时同时计入config.publish.converge指标；只跟踪本进程启动后发布的版本；分批发布通过await等待一批终端收敛后再开始下一批
+ */
+@Slf4j
+public class ConvergenceTracker {
+    private static final String DEFAULT_STATUS_PATH = "/public/status";
+    private static final int SAMPLE_SIZE = 1024;
+    private static final long INITIALIZE_TIMEOUT_MILLIS = 30000;
+
+    private static volatile ConvergenceTracker instance;
+
+    /**
+     * 终端 -> 配置 -> 落盘状态
+     */
+    private final Map<String, Map<String, Applied>> applied = new ConcurrentHashMap<>();
+    /**
+     * 配置 -> 终端 -> 期望版本
+     */
+    private final Map<String, Map<String, Expected>> expected = new ConcurrentHashMap<>();
+    private final Map<String, LatencySamples> samples = new ConcurrentHashMap<>();
+    private final LatencySamples allSamples = new LatencySamples();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "config-convergence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile PathChildrenCache cache;
+
+    private ConvergenceTracker() {
+    }
+
+    public static ConvergenceTracker getInstance() {
+        if (instance == null) {
+            synchronized (ConvergenceTracker.class) {
+                if (instance == null) {
+                    instance = new ConvergenceTracker();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 记录发布的期望版本
+     *
+     * @param nodePath    配置节点路径 rootPath/终端/配置名
+     * @param md5         配置内容md5 删除时为null
+     * @param publishTime 发布开始时间
+     */
+    public void expect(String nodePath, String md5, long publishTime) {
+        String rootPath = ZookeeperUtil.getRootPath();
+        if (!nodePath.startsWith(rootPath + "/")) {
+            return;
+        }
+        String relative = nodePath.substring(rootPath.length() + 1);
+        int index = relative.indexOf('/');
+        if (index <= 0) {
+            return;
+        }
+        String server = relative.substring(0, index);
+        String name = relative.substring(index + 1);
+        try {
+            ensureStarted();
+        } catch (Exception e) {
+            log.warn("落盘状态监听启动失败，下次发布时重试", e);
+        }
+        if (md5 == null) {
+            Map<String, Expected> servers = expected.get(name);
+            if (servers != null) {
+                servers.remove(server);
+            }
+            return;
+        }
+        Expected expectation = new Expected(md5, publishTime);
+        Applied current = applied.getOrDefault(server, Collections.emptyMap()).get(name);
+        if (current != null && current.success && md5.equals(current.md5)) {
+            //内容未变化的终端不会产生新的落盘，直接视为收敛，不计入耗时
+            expectation.convergedTime = publishTime;
+        }
+        expected.computeIfAbsent(name, k -> new ConcurrentHashMap<>()).put(server, expectation);
+        checkWaiters();
+    }
+
+    /**
+     * 等待一组终端收敛到指定版本
+     *
+     * @param name          配置名
+     * @param md5           期望的md5
+     * @param servers       终端
+     * @param timeoutMillis 超时时间
+     * @return 全部终端收敛/失败或超时后完成
+     */
+    public CompletableFuture<WaitResult> await(String name, String md5, Collection<String> servers, long timeoutMillis) {
+        Waiter waiter = new Waiter(name, md5, new ArrayList<>(servers));
+        synchronized (waiters) {
+            waiters.add(waiter);
+        }
+        checkWaiters();
+        if (!waiter.future.isDone()) {
+            timer.schedule(() -> {
+                synchronized (waiters) {
+                    waiters.remove(waiter);
+                }
+                waiter.future.complete(waiter.evaluate(true));
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * @param name 配置名
+     * @return 配置的收敛情况 终端数、已收敛数、落后/失败的终端及收敛耗时分位数
+     */
+    public Map<String, Object> getView(String name) {
+        Map<String, Object> view = new LinkedHashMap<>();
+        Map<String, Expected> servers = expected.getOrDefault(name, Collections.emptyMap());
+        Map<String, Integer> versions = new TreeMap<>();
+        List<Map<String, Object>> lagging = new ArrayList<>();
+        List<Map<String, Object>> failed = new ArrayList<>();
+        int converged = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Expected> entry : new TreeMap<>(servers).entrySet()) {
+            Expected expectation = entry.getValue();
+            versions.merge(expectation.md5, 1, Integer::sum);
+            if (expectation.convergedTime > 0) {
+                converged++;
+                continue;
+            }
+            Applied current = applied.getOrDefault(entry.getKey(), Collections.emptyMap()).get(name);
+            Map<String, Object> server = new LinkedHashMap<>();
+            server.put("server", entry.getKey());
+            server.put("online", applied.containsKey(entry.getKey()));
+            server.put("expectedMd5", expectation.md5);
+            server.put("appliedMd5", current == null ? null : current.md5);
+            server.put("lagMillis", now - expectation.publishTime);
+            if (expectation.error != null) {
+                server.put("error", expectation.error);
+                failed.add(server);
+            } else {
+                lagging.add(server);
+            }
+        }
+        LatencySamples latency = samples.get(name);
+        view.put("name", name);
+        view.put("versions", versions);
+        view.put("servers", servers.size());
+        view.put("converged", converged);
+        view.put("lagging", lagging);
+        view.put("failed", failed);
+        view.put("p50", latency == null ? null : latency.percentile(50));
+        view.put("p99", latency == null ? null : latency.percentile(99));
+        return view;
+    }
+
+    /**
+     * @return 全部跟踪中配置的收敛情况及整体收敛耗时分位数
+     */
+    public Map<String, Object> getSummary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        List<Map<String, Object>> configs = new ArrayList<>();
+        for (String name : new TreeSet<>(expected.keySet())) {
+            configs.add(getView(name));
+        }
+        summary.put("reporting", applied.size());
+        summary.put("p50", allSamples.percentile(50));
+        summary.put("p99", allSamples.percentile(99));
+        summary.put("samples", allSamples.count());
+        summary.put("configs", configs);
+        return summary;
+    }
+
+    private void onStatus(String server, byte[] data) {
+        Map<String, Applied> configs = new HashMap<>();
+        try {
+            JSONObject status = JSON.parseObject(new String(data));
+            JSONObject entries = status == null ? null : status.getJSONObject("configs");
+            if (entries != null) {
+                for (String name : entries.keySet()) {
+                    JSONObject entry = entries.getJSONObject(name);
+                    configs.put(name, new Applied(entry.getString("md5"), entry.getBooleanValue("success"), entry.getString("error")));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("终端[{}]落盘状态格式错误：{}", server, new String(data));
+            return;
+        }
+        applied.put(server, configs);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Applied> entry : configs.entrySet()) {
+            Map<String, Expected> servers = expected.get(entry.getKey());
+            Expected expectation = servers == null ? null : servers.get(server);
+            Applied current = entry.getValue();
+            if (expectation == null || expectation.convergedTime > 0 || !expectation.md5.equals(current.md5)) {
+                continue;
+            }
+            if (current.success) {
+                expectation.convergedTime = now;
+                expectation.error = null;
+                long latency = now - expectation.publishTime;
+                samples.computeIfAbsent(entry.getKey(), k -> new LatencySamples()).add(latency);
+                allSamples.add(latency);
+                MetricsRegistry.getInstance().timer("config.publish.converge").record(latency, TimeUnit.MILLISECONDS);
+                log.info("终端[{}]配置[{}]已收敛到[{}]，耗时{}ms", server, entry.getKey(), current.md5, latency);
+            } else {
+                expectation.error = current.error;
+                log.warn("终端[{}]配置[{}]落盘失败：{}", server, entry.getKey(), current.error);
+            }
+        }
+        checkWaiters();
+    }
+
+    private void checkWaiters() {
+        List<Waiter> done = new ArrayList<>();
+        synchronized (waiters) {
+            Iterator<Waiter> it = waiters.iterator();
+            while (it.hasNext()) {
+                Waiter waiter = it.next();
+                WaitResult result = waiter.evaluate(false);
+                if (result != null) {
+                    it.remove();
+                    waiter.result = result;
+                    done.add(waiter);
+                }
+            }
+        }
+        for (Waiter waiter : done) {
+            waiter.future.complete(waiter.result);
+        }
+    }
+
+    /**
+     * 首次使用时启动状态节点监听 启动失败时下次使用重试；
+     * 已有的状态节点同样以CHILD_ADDED事件加载，落盘状态只由监听事件维护，等待INITIALIZED事件后才返回
+     */
+    private void ensureStarted() throws Exception {
+        if (cache != null) {
+            return;
+        }
+        synchronized (this) {
+            if (cache != null) {
+                return;
+            }
+            String statusPath = ZookeeperUtil.getRootPath()
+                    + StringUtils.defaultIfBlank(SysProperties.get("config.public.status.path"), DEFAULT_STATUS_PATH);
+            PathChildrenCache childrenCache = new PathChildrenCache(ZookeeperFactory.getCuratorClient(), statusPath, true);
+            CountDownLatch initialized = new CountDownLatch(1);
+            childrenCache.getListenable().addListener((client, event) -> {
+                if (event.getType() == PathChildrenCacheEvent.Type.INITIALIZED) {
+                    initialized.countDown();
+                    return;
+                }
+                ChildData data = event.getData();
+                if (data == null) {
+                    return;
+                }
+                String server = ZKPaths.getNodeFromPath(data.getPath());
+                switch (event.getType()) {
+                    case CHILD_ADDED:
+                    case CHILD_UPDATED:
+                        onStatus(server, data.getData() == null ? new byte[0] : data.getData());
+                        break;
+                    case CHILD_REMOVED:
+                        applied.remove(server);
+                        log.info("终端[{}]落盘状态节点已删除(下线)", server);
+                        break;
+                    default:
+                        break;
+                }
+            });
+            try {
+                childrenCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+                if (!initialized.await(INITIALIZE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("落盘状态监听[" + statusPath + "]加载超时");
+                }
+            } catch (Exception e) {
+                childrenCache.close();
+                applied.clear();
+                throw e;
+            }
+            cache = childrenCache;
+            log.info("落盘状态监听[{}]已启动，当前{}个终端", statusPath, applied.size());
+        }
+    }
+
+    /**
+     * 终端上报的落盘状态
+     */
+    private static final class Applied {
+        private final String md5;
+        private final boolean success;
+        private final String error;
+
+        private Applied(String md5, boolean success, String error) {
+            this.md5 = md5;
+            this.success = success;
+            this.error = error;
+        }
+    }
+
+    /**
+     * 终端的期望版本
+     */
+    private static final class Expected {
+        private final String md5;
+        private final long publishTime;
+        private volatile long convergedTime;
+        private volatile String error;
+
+        private Expected(String md5, long publishTime) {
+            this.md5 = md5;
+            this.publishTime = publishTime;
+        }
+    }
+
+    private final class Waiter {
+        private final String name;
+        private final String md5;
+        private final List<String> servers;
+        private final CompletableFuture<WaitResult> future = new CompletableFuture<>();
+        private WaitResult result;
+
+        private Waiter(String name, String md5, List<String> servers) {
+            this.name = name;
+            this.md5 = md5;
+            this.servers = servers;
+        }
+
+        /**
+         * @param timeout 是否已超时
+         * @return 未全部完成且未超时时为null
+         */
+        private WaitResult evaluate(boolean timeout) {
+            WaitResult result = new WaitResult();
+            Map<String, Expected> expectations = expected.getOrDefault(name, Collections.emptyMap());
+            for (String server : servers) {
+                Expected expectation = expectations.get(server);
+                if (expectation != null && md5.equals(expectation.md5) && expectation.convergedTime > 0) {
+                    result.converged.add(server);
+                } else if (expectation != null && md5.equals(expectation.md5) && expectation.error != null) {
+                    result.failed.add(server);
+                } else if (timeout) {
+                    result.timedOut.add(server);
+                } else {
+                    return null;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 等待结果
+     */
+    public static final class WaitResult {
+        private final List<String> converged = new ArrayList<>();
+        private final List<String> failed = new ArrayList<>();
+        private final List<String> timedOut = new ArrayList<>();
+
+        public List<String> getConverged() {
+            return converged;
+        }
+
+        /**
+         * @return 上报落盘失败的终端
+         */
+        public List<String> getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return 超时仍未收敛的终端
+         */
+        public List<String> getTimedOut() {
+            return timedOut;
+        }
+    }
+
+    /**
+     * 最近SAMPLE_SIZE次收敛耗时
+     */
+    private static final class LatencySamples {
+        private final long[] values = new long[SAMPLE_SIZE];
+        private long count;
+
+        private synchronized void add(long value) {
+            values[(int) (count++ % SAMPLE_SIZE)] = value;
+        }
+
+        private synchronized long count() {
+            return count;
+        }
+
+        private synchronized Long percentile(int percentile) {
+            int size = (int) Math.min(count, SAMPLE_SIZE);
+            if (size == 0) {
+                return null;
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) Math.ceil(percentile / 100.0 * size) - 1)];
+        }
+    }
+}
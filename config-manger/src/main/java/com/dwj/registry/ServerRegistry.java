@@ -0,0 +1,177 @@
+package com.dwj.registry;
+
+import com.alibaba.fastjson.JSON;
+import com.dwj.entity.Server;
+import com.dwj.zookeeper.ZookeeperFactory;
+import com.dwj.zookeeper.ZookeeperUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ZKPaths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/07/07
+ * @description: 可发布终端注册表
+ * 监听可发布终端节点(config.public.nodes.path)的子节点，在内存中维护 节点名 -> Server，
+ * 只在终端上线/下线/变更时解析节点数据，查询时不访问zookeeper；按节点名排序，支持按名称/IP前缀过滤和分页
+ */
+@Slf4j
+public class ServerRegistry {
+    /**
+     * 等待已注册终端加载完成的超时时间
+     */
+    private static final long INITIALIZE_TIMEOUT_MILLIS = 30000;
+
+    private static volatile ServerRegistry instance;
+
+    private final Map<String, Server> servers = new ConcurrentSkipListMap<>();
+    private volatile PathChildrenCache cache;
+
+    private ServerRegistry() {
+    }
+
+    public static ServerRegistry getInstance() {
+        if (instance == null) {
+            synchronized (ServerRegistry.class) {
+                if (instance == null) {
+                    instance = new ServerRegistry();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param namePrefix 名称前缀 为空不过滤
+     * @param ipPrefix   IP前缀 为空不过滤
+     * @param offset     起始位置
+     * @param limit      最大条数 小于等于0不限制
+     * @return 按节点名排序的终端列表
+     * @throws Exception 注册表启动失败
+     */
+    public List<Server> list(String namePrefix, String ipPrefix, int offset, int limit) throws Exception {
+        ensureStarted();
+        List<Server> result = new ArrayList<>();
+        int skipped = 0;
+        for (Server server : servers.values()) {
+            if (!matches(server, namePrefix, ipPrefix)) {
+                continue;
+            }
+            if (skipped++ < offset) {
+                continue;
+            }
+            if (limit > 0 && result.size() >= limit) {
+                break;
+            }
+            result.add(server);
+        }
+        return result;
+    }
+
+    /**
+     * @return 符合过滤条件的终端数
+     * @throws Exception 注册表启动失败
+     */
+    public int count(String namePrefix, String ipPrefix) throws Exception {
+        ensureStarted();
+        if (StringUtils.isEmpty(namePrefix) && StringUtils.isEmpty(ipPrefix)) {
+            return servers.size();
+        }
+        int count = 0;
+        for (Server server : servers.values()) {
+            if (matches(server, namePrefix, ipPrefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean matches(Server server, String namePrefix, String ipPrefix) {
+        return (StringUtils.isEmpty(namePrefix) || StringUtils.startsWith(server.getName(), namePrefix))
+                && (StringUtils.isEmpty(ipPrefix) || StringUtils.startsWith(server.getIp(), ipPrefix));
+    }
+
+    /**
+     * 首次查询时启动监听，以POST_INITIALIZED_EVENT模式启动：已注册的终端同样以CHILD_ADDED事件加载，
+     * 注册表只由监听事件维护，不会用启动时的快照覆盖已处理的下线事件；等待INITIALIZED事件后才返回，启动失败时下次查询重试
+     */
+    private void ensureStarted() throws Exception {
+        if (cache != null) {
+            return;
+        }
+        synchronized (this) {
+            if (cache != null) {
+                return;
+            }
+            String serverPath = ZookeeperUtil.getServersPath();
+            PathChildrenCache childrenCache = new PathChildrenCache(ZookeeperFactory.getCuratorClient(), serverPath, true);
+            CountDownLatch initialized = new CountDownLatch(1);
+            PathChildrenCacheListener listener = (client, event) -> {
+                if (event.getType() == PathChildrenCacheEvent.Type.INITIALIZED) {
+                    initialized.countDown();
+                    return;
+                }
+                ChildData data = event.getData();
+                if (data == null) {
+                    return;
+                }
+                String node = ZKPaths.getNodeFromPath(data.getPath());
+                switch (event.getType()) {
+                    case CHILD_ADDED:
+                    case CHILD_UPDATED:
+                        servers.put(node, parse(node, data.getData()));
+                        log.info("终端[{}]上线/变更", node);
+                        break;
+                    case CHILD_REMOVED:
+                        servers.remove(node);
+                        log.info("终端[{}]下线", node);
+                        break;
+                    default:
+                        break;
+                }
+            };
+            childrenCache.getListenable().addListener(listener);
+            try {
+                childrenCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+                if (!initialized.await(INITIALIZE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("终端注册表[" + serverPath + "]加载超时");
+                }
+            } catch (Exception e) {
+                childrenCache.close();
+                servers.clear();
+                throw e;
+            }
+            cache = childrenCache;
+            log.info("终端注册表[{}]已启动，当前{}个终端", serverPath, servers.size());
+        }
+    }
+
+    private static Server parse(String node, byte[] data) {
+        Server server = null;
+        if (data != null && data.length > 0) {
+            try {
+                server = JSON.parseObject(new String(data), Server.class);
+            } catch (Exception e) {
+                log.warn("终端[{}]注册数据格式错误：{}", node, new String(data));
+            }
+        }
+        if (server == null) {
+            server = new Server();
+        }
+        if (server.getName() == null) {
+            server.setName(node);
+        }
+        return server;
+    }
+}
@@ -0,0 +1,278 @@
+package com.dwj.zookeeper;
+
+import com.dwj.resource.SysProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * @author daiwj
+ * @date 2021/07/08
+ * @description: 节点内容读缓存
+ * 按总字节数(zookeeper.content.cache.max.bytes)限制的LRU缓存，缓存节点数据和Stat；
+ * 读取节点时注册watch，节点变更/删除后立即失效；连接断开期间watch可能丢失，重连后所有缓存先按mzxid重新校验(只读Stat)再使用；
+ * 同一节点并发未命中时只向zookeeper发出一次读取；
+ * 节点数据的展示内容(分块配置需读取全部分块组装)随节点缓存，同一mzxid只生成一次，命中时不访问zookeeper
+ */
+public class NodeContentCache {
+    private static final Logger log = LoggerFactory.getLogger(NodeContentCache.class);
+    private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static volatile NodeContentCache instance;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    /**
+     * 正在读取的节点 并发未命中共用同一次读取
+     */
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    /**
+     * 节点路径 -> 该节点的失效次数 读取期间该节点发生过失效的结果不放入缓存，避免旧内容覆盖失效；
+     * 只比较同一节点，其他节点的发布不影响缓存填充(条目数不超过配置节点总数)
+     */
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final CuratorWatcher watcher = event -> {
+        if (event.getType() == Watcher.Event.EventType.NodeDataChanged || event.getType() == Watcher.Event.EventType.NodeDeleted) {
+            invalidate(event.getPath());
+        }
+    };
+
+    private NodeContentCache() {
+        String maxBytes = SysProperties.get("zookeeper.content.cache.max.bytes");
+        this.maxBytes = StringUtils.isNotEmpty(maxBytes) ? Long.parseLong(maxBytes.trim()) : DEFAULT_MAX_BYTES;
+        ZookeeperFactory.getCuratorClient().getConnectionStateListenable().addListener((client, state) -> {
+            if (state == ConnectionState.RECONNECTED || state == ConnectionState.LOST) {
+                markUnverified();
+            }
+        });
+    }
+
+    public static NodeContentCache getInstance() {
+        if (instance == null) {
+            synchronized (NodeContentCache.class) {
+                if (instance == null) {
+                    instance = new NodeContentCache();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 读取节点数据和Stat 命中时直接返回
+     *
+     * @param path 节点路径
+     * @return 节点不存在时以NoNodeException异常完成
+     */
+    public CompletableFuture<Entry> get(String path) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null && entry.verified) {
+            return CompletableFuture.completedFuture(entry);
+        }
+        Entry unverified = entry;
+        CompletableFuture<Entry> future = loading.computeIfAbsent(path, p -> unverified == null ? load(p) : revalidate(unverified));
+        future.whenComplete((e, t) -> loading.remove(path, future));
+        return future;
+    }
+
+    /**
+     * 读取节点的展示内容 已生成过时直接返回，否则由renderer生成并随节点缓存(计入缓存大小)，生成失败时下次重新生成
+     *
+     * @param entry    get返回的节点内容
+     * @param renderer 按节点数据生成展示内容，可异步读取zookeeper
+     * @return
+     */
+    public CompletableFuture<String> view(Entry entry, Function<Entry, CompletableFuture<String>> renderer) {
+        CompletableFuture<String> view;
+        synchronized (entry) {
+            view = entry.view;
+            if (view == null || view.isCompletedExceptionally()) {
+                view = renderer.apply(entry);
+                entry.view = view;
+                view.thenAccept(v -> resize(entry, v.length() * 2L));
+            }
+        }
+        return view;
+    }
+
+    /**
+     * 节点已变更或删除
+     *
+     * @param path
+     */
+    public void invalidate(String path) {
+        generations.computeIfAbsent(path, p -> new AtomicLong()).incrementAndGet();
+        synchronized (this) {
+            Entry removed = entries.remove(path);
+            if (removed != null) {
+                totalBytes -= removed.size();
+            }
+        }
+        log.debug("节点[{}]缓存失效", path);
+    }
+
+    private CompletableFuture<Entry> load(String path) {
+        long generation = generation(path);
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        try {
+            CuratorFramework client = ZookeeperFactory.getCuratorClient();
+            client.getData().usingWatcher(watcher).inBackground((c, event) -> {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code != KeeperException.Code.OK) {
+                    future.completeExceptionally(KeeperException.create(code, path));
+                    return;
+                }
+                Entry entry = new Entry(path, event.getData(), event.getStat());
+                if (generation(path) == generation) {
+                    put(entry);
+                }
+                future.complete(entry);
+            }).forPath(path);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 只读Stat比较mzxid，未变化时重新注册watch并继续使用缓存内容，否则重新读取
+     */
+    private CompletableFuture<Entry> revalidate(Entry entry) {
+        long generation = generation(entry.path);
+        CompletableFuture<Stat> stat = new CompletableFuture<>();
+        try {
+            ZookeeperFactory.getCuratorClient().checkExists().usingWatcher(watcher).inBackground((c, event) -> {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK || code == KeeperException.Code.NONODE) {
+                    stat.complete(event.getStat());
+                } else {
+                    stat.completeExceptionally(KeeperException.create(code, entry.path));
+                }
+            }).forPath(entry.path);
+        } catch (Exception e) {
+            stat.completeExceptionally(e);
+        }
+        return stat.thenCompose(s -> {
+            if (s != null && s.getMzxid() == entry.getMzxid() && generation(entry.path) == generation) {
+                synchronized (this) {
+                    if (entries.get(entry.path) == entry) {
+                        entry.verified = true;
+                    }
+                }
+                return CompletableFuture.completedFuture(entry);
+            }
+            invalidate(entry.path);
+            return load(entry.path);
+        });
+    }
+
+    private long generation(String path) {
+        AtomicLong generation = generations.get(path);
+        return generation == null ? 0L : generation.get();
+    }
+
+    private synchronized void put(Entry entry) {
+        if (entry.size() > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(entry.path, entry);
+        if (old != null) {
+            totalBytes -= old.size();
+        }
+        totalBytes += entry.size();
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.size();
+        }
+    }
+
+    /**
+     * 展示内容生成后计入缓存大小 节点已失效时不再计入
+     */
+    private synchronized void resize(Entry entry, long viewBytes) {
+        if (entries.get(entry.path) != entry) {
+            entry.viewBytes = viewBytes;
+            return;
+        }
+        totalBytes += viewBytes - entry.viewBytes;
+        entry.viewBytes = viewBytes;
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.size();
+        }
+    }
+
+    private synchronized void markUnverified() {
+        for (Entry entry : entries.values()) {
+            entry.verified = false;
+        }
+        log.info("zookeeper连接状态变化，{}个节点缓存需重新校验", entries.size());
+    }
+
+    /**
+     * 缓存的节点内容
+     */
+    public static final class Entry {
+        private final String path;
+        private final byte[] data;
+        private final Stat stat;
+        private volatile boolean verified = true;
+        private CompletableFuture<String> view;
+        private long viewBytes;
+
+        private Entry(String path, byte[] data, Stat stat) {
+            this.path = path;
+            this.data = data == null ? new byte[0] : data;
+            this.stat = stat;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public Stat getStat() {
+            return stat;
+        }
+
+        public long getMzxid() {
+            return stat == null ? 0 : stat.getMzxid();
+        }
+
+        /**
+         * @return 节点内容的ETag 由mzxid和版本组成，节点任何修改都会改变
+         */
+        public String getETag() {
+            return "\"" + Long.toHexString(getMzxid()) + "-" + (stat == null ? 0 : stat.getVersion()) + "\"";
+        }
+
+        private long size() {
+            return data.length + viewBytes + path.length() * 2L + 128;
+        }
+    }
+}
@@ -5,15 +5,25 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.recipes.locks.InterProcessLock;
 import org.apache.curator.framework.recipes.locks.InterProcessMutex;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 /**
  * @author daiwj
  * @date 2020/12/24
@@ -22,13 +32,32 @@ import org.slf4j.LoggerFactory;
 public class ZookeeperFactory {
     private static final Logger log = LoggerFactory.getLogger(ZookeeperFactory.class);
 
+    /**
+     * 不校验版本
+     */
+    public static final int ANY_VERSION = -1;
+
     private static volatile ZookeeperFactory instance;
 
     private CuratorFramework client;
+    /**
+     * 异步操作回调线程池
+     */
+    private final ExecutorService asyncExecutor;
 
     private ZookeeperFactory() {
         //获取zk  curator client
         client = startClient();
+        int asyncThreads = 4;
+        if (StringUtils.isNotEmpty(SysProperties.get("zookeeper.async.threads"))) {
+            asyncThreads = Integer.parseInt(SysProperties.get("zookeeper.async.threads"));
+        }
+        AtomicInteger index = new AtomicInteger();
+        asyncExecutor = Executors.newFixedThreadPool(asyncThreads, r -> {
+            Thread thread = new Thread(r, "zookeeper-async-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public static ZookeeperFactory getInstance() {
@@ -61,6 +90,23 @@ public class ZookeeperFactory {
         }
     }
 
+    /**
+     * 获取节点原始数据
+     *
+     * @param node
+     * @return
+     * @throws Exception
+     */
+    public byte[] getNodeBytes(String node) throws Exception {
+        checkClientStatus();
+        try {
+            return client.getData().forPath(node);
+        } catch (Exception e) {
+            log.error("节点【{}】数据获取异常！", node, e);
+            throw e;
+        }
+    }
+
     /**
      * 删除节点数据 会删除子节点
      *
@@ -84,20 +130,211 @@ public class ZookeeperFactory {
      * @throws Exception
      */
     public void setData(String node, byte[] data) throws Exception {
+        setData(node, data, ANY_VERSION);
+    }
+
+    /**
+     * 条件写入节点数据(CAS)
+     * expectedVersion为ANY_VERSION时新增或覆盖：先直接尝试创建，节点已存在时再覆盖写入，不再先checkExists；
+     * expectedVersion>=0时节点必须存在且版本一致才写入，否则抛出BadVersionException/NoNodeException，调用方据此重新读取后重试
+     *
+     * @param node
+     * @param data
+     * @param expectedVersion 期望的节点版本
+     * @return 写入后的节点状态，新建节点时只包含版本(0)和数据长度
+     * @throws Exception
+     */
+    public Stat setData(String node, byte[] data, int expectedVersion) throws Exception {
+        return write(node, data, CreateMode.PERSISTENT, expectedVersion);
+    }
+
+    private Stat write(String node, byte[] data, CreateMode createMode, int expectedVersion) throws Exception {
         checkClientStatus();
-        //检查节点是否存在
-        Stat stat = client.checkExists().forPath(node);
-        if (stat == null) {
-            log.info("节点【{}】不存在，创建节点并写入...", node);
-            //创建节点并写入
-            String path = client.create()
+        if (expectedVersion < 0) {
+            try {
+                String path = client.create()
+                        .creatingParentsIfNeeded()
+                        .withMode(createMode)
+                        .forPath(node, data);
+                log.info("[{}]节点创建并写入完成", path);
+                return createdStat(data);
+            } catch (KeeperException.NodeExistsException e) {
+                log.debug("节点【{}】已存在，覆盖写入", node);
+            }
+        }
+        return client.setData().withVersion(expectedVersion).forPath(node, data);
+    }
+
+    /**
+     * 异步获取节点原始数据
+     * 以下异步方法均基于curator的inBackground回调，调用线程不等待zookeeper响应，多个请求在同一连接上流水线发送；
+     * 回调及其后续阶段在zookeeper-async线程池中执行，不占用zookeeper事件线程
+     *
+     * @param node
+     * @return 节点不存在时以NoNodeException异常完成
+     */
+    public CompletableFuture<byte[]> getNodeBytesAsync(String node) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            checkClientStatus();
+            client.getData().inBackground(callback(future, CuratorEvent::getData), asyncExecutor).forPath(node);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 异步获取节点数据
+     *
+     * @param node
+     * @return
+     */
+    public CompletableFuture<String> getNodeDataAsync(String node) {
+        return getNodeBytesAsync(node).thenApply(String::new);
+    }
+
+    /**
+     * 异步批量获取节点数据 所有请求同时发出
+     *
+     * @param nodes
+     * @return 节点 -> 数据，不存在的节点不包含在结果中
+     */
+    public CompletableFuture<Map<String, byte[]>> getNodesBytesAsync(Collection<String> nodes) {
+        Map<String, byte[]> result = new ConcurrentHashMap<>();
+        CompletableFuture<?>[] futures = nodes.stream()
+                .map(node -> getNodeBytesAsync(node).handle((bytes, e) -> {
+                    if (e == null) {
+                        result.put(node, bytes);
+                        return null;
+                    }
+                    if (unwrap(e) instanceof KeeperException.NoNodeException) {
+                        return null;
+                    }
+                    throw new CompletionException(unwrap(e));
+                }))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures).thenApply(v -> result);
+    }
+
+    /**
+     * 异步获取子节点
+     *
+     * @param node
+     * @return
+     */
+    public CompletableFuture<List<String>> getChildrenAsync(String node) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        try {
+            checkClientStatus();
+            client.getChildren().inBackground(callback(future, CuratorEvent::getChildren), asyncExecutor).forPath(node);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 异步条件写入节点数据 语义同setData(node, data, expectedVersion)
+     *
+     * @param node
+     * @param data
+     * @param expectedVersion 期望的节点版本 ANY_VERSION时新增或覆盖
+     * @return 写入后的节点状态
+     */
+    public CompletableFuture<Stat> setDataAsync(String node, byte[] data, int expectedVersion) {
+        if (expectedVersion >= 0) {
+            return updateAsync(node, data, expectedVersion);
+        }
+        CompletableFuture<Stat> future = new CompletableFuture<>();
+        try {
+            checkClientStatus();
+            client.create()
                     .creatingParentsIfNeeded()
                     .withMode(CreateMode.PERSISTENT)
+                    .inBackground(callback(future, event -> createdStat(data)), asyncExecutor)
                     .forPath(node, data);
-            log.info("[{}]节点创建并写入完成", path);
-            return;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        //节点已存在时覆盖写入
+        return future.handle((stat, e) -> {
+            if (e == null) {
+                log.info("[{}]节点创建并写入完成", node);
+                return CompletableFuture.completedFuture(stat);
+            }
+            if (unwrap(e) instanceof KeeperException.NodeExistsException) {
+                return updateAsync(node, data, ANY_VERSION);
+            }
+            CompletableFuture<Stat> failed = new CompletableFuture<>();
+            failed.completeExceptionally(unwrap(e));
+            return failed;
+        }).thenCompose(f -> f);
+    }
+
+    private CompletableFuture<Stat> updateAsync(String node, byte[] data, int expectedVersion) {
+        CompletableFuture<Stat> future = new CompletableFuture<>();
+        try {
+            checkClientStatus();
+            client.setData().withVersion(expectedVersion).inBackground(callback(future, CuratorEvent::getStat), asyncExecutor).forPath(node, data);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 异步删除节点数据 会删除子节点，节点不存在时视为成功
+     *
+     * @param node
+     * @return
+     */
+    public CompletableFuture<Void> delNodeDataAsync(String node) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            checkClientStatus();
+            client.delete().deletingChildrenIfNeeded().inBackground(callback(future, event -> null), asyncExecutor).forPath(node);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
         }
-        client.setData().forPath(node, data);
+        return future.handle((v, e) -> {
+            if (e != null && !(unwrap(e) instanceof KeeperException.NoNodeException)) {
+                throw new CompletionException(unwrap(e));
+            }
+            if (e == null) {
+                log.info("节点【{}】数据删除成功！", node);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 回调结果码为OK时按result取值完成，否则以对应的KeeperException完成
+     */
+    private static <T> BackgroundCallback callback(CompletableFuture<T> future, Function<CuratorEvent, T> result) {
+        return (c, event) -> {
+            KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+            if (code == KeeperException.Code.OK) {
+                future.complete(result.apply(event));
+            } else {
+                future.completeExceptionally(KeeperException.create(code, event.getPath()));
+            }
+        };
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * curator创建节点时不返回Stat，新建节点的版本固定为0
+     */
+    private static Stat createdStat(byte[] data) {
+        Stat stat = new Stat();
+        stat.setVersion(0);
+        stat.setDataLength(data == null ? 0 : data.length);
+        stat.setMtime(System.currentTimeMillis());
+        return stat;
     }
 
     /**
@@ -2,13 +2,14 @@ package com.dwj;
 
 import com.alibaba.fastjson.JSONObject;
 import com.dwj.config.ConfigRefresh;
+import com.dwj.config.DigestIndex;
+import com.dwj.resource.DurationProperty;
 import com.dwj.resource.SysProperties;
 import com.dwj.util.OSInfo;
 import com.dwj.zookeeper.ZookeeperFactory;
 import com.dwj.zookeeper.ZookeeperListener;
 import com.dwj.zookeeper.ZookeeperUtil;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.zookeeper.CreateMode;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -24,15 +25,18 @@ import java.util.concurrent.TimeUnit;
 @SpringBootApplication
 @Slf4j
 public class TaskerApplication {
+    private static final DurationProperty CLIENT_DELAY_CLOSE_TIME = SysProperties.durationProperty("zookeeper.client.delay.close.time", 3000L, TimeUnit.MILLISECONDS);
+
     public static void main(String[] args) {
         SpringApplication.run(TaskerApplication.class, args);
         //服务注册
         serverRegister();
+        //先添加观察者再启动监听，启动时的节点快照和之后的变更都由观察者处理
+        addZookeeperFactoryObservers();
         //启动监听
         ZookeeperListener.getInstance().startPathChildrenListener();
 //        ZookeeperListener.getInstance().startNodeListener();//指定节点进行监听
 //        ZookeeperListener.getInstance().startTreeNodeListener();//指定节点和子节点变更监听
-        addZookeeperFactoryObservers();
         exit();
     }
 
@@ -40,18 +44,8 @@ public class TaskerApplication {
      * 添加zookeeperFactory观察者
      */
     private static void addZookeeperFactoryObservers() {
-        //延迟启动观察者，curator对zookeeper的监听实际都是本地缓存视图和zookeeper服务的数据节点进行比较，所以会监听到所有本地和远端不一致的数据内容，
-        //即初始启动时会监听到远端zookeeper已存在的数据节点，而这不是我们要的主动触发配置变更，所有需要进行延迟启动
-        long delayTime = 5000L;
-        String time = SysProperties.get("zookeeper.listener.observer.delay.start.time");
-        if (StringUtils.isNotEmpty(time)) {
-            delayTime = Long.parseLong(time);
-        }
-        try {
-            TimeUnit.MILLISECONDS.sleep(delayTime);
-        } catch (InterruptedException e) {
-        }
-        ZookeeperListener.getInstance().addObserver(ConfigRefresh.getInstance());
+        //监听以BUILD_INITIAL_CACHE模式启动，已存在的节点作为快照按内容摘要与本地文件对账，未变化的不会落盘，无需延迟添加观察者
+        ZookeeperListener.getInstance().subscribe("config-refresh", ConfigRefresh.getInstance());
         log.info("添加观察者[{}]成功!", ConfigRefresh.getInstance());
     }
 
@@ -70,26 +64,33 @@ public class TaskerApplication {
         });
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
-                TimeUnit.MILLISECONDS.sleep(Long.parseLong(SysProperties.get("zookeeper.client.delay.close.time")));
+                TimeUnit.MILLISECONDS.sleep(CLIENT_DELAY_CLOSE_TIME.toMillis());
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
             ZookeeperListener.getInstance().closeClient();
+            ZookeeperFactory.getInstance().closeClient();
             System.out.println("zookeeper client closed.");
+            DigestIndex.getInstance().flush();
         }));
     }
 
     /**
-     * 服务注册
-     * @throws Exception
+     * 服务注册 连接建立(含会话过期后重连)时在后台线程注册，不阻塞启动
      */
     private static void serverRegister(){
+        ZookeeperUtil.onConnected(ZookeeperFactory.getCuratorClient(), "server-register", TaskerApplication::registerServer);
+    }
+
+    private static void registerServer(){
         String serverName = SysProperties.get("server.name");
         String serverIp = SysProperties.get("server.ip");
+        String serverGroup = SysProperties.get("server.group");
         String path = ZookeeperUtil.getServersPath() + "/" + serverName;
         JSONObject data = new JSONObject();
         data.put("server.name", serverName);
         data.put("server.ip", serverIp);
+        data.put("server.group", serverGroup == null || serverGroup.trim().isEmpty() ? "default" : serverGroup.trim());
         //创建临时节点 客户端断开连接或宕掉会自动删除节点，达到服务下线目的
         try {
             ZookeeperFactory.getInstance().setData(path, data.toString().getBytes(), CreateMode.EPHEMERAL);
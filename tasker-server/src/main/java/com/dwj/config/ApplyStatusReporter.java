@@ -0,0 +1,171 @@
+package com.dwj.config;
+
+import com.alibaba.fastjson.JSONObject;
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.resource.SysProperties;
+import com.dwj.zookeeper.ZookeeperFactory;
+import com.dwj.zookeeper.ZookeeperUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.zookeeper.CreateMode;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 配置落盘结果上报
+ * 每个终端一个状态节点(rootPath+server.status.path+/+server.name，临时节点)，记录各配置最后一次落盘的md5、mzxid、发布id、时间和结果：
+ * {"server":"tasker001","time":...,"configs":{"app.yml":{"md5":"...","mzxid":123,"publishId":"...","time":...,"success":true}}}；
+ * 配置中心据此统计各版本的收敛情况；短时间内的多次落盘合并为一次写入，连接重建后重新写入；
+ * 所有写入都在同一个线程中执行，旧的状态不会覆盖新的状态；写入失败时按退避时间重试
+ */
+@Slf4j
+public class ApplyStatusReporter {
+    private static final String DEFAULT_STATUS_PATH = "/public/status";
+    /**
+     * 落盘后延迟写入的时间 合并启动对账等场景的批量落盘
+     */
+    private static final long FLUSH_DELAY_MILLIS = 200L;
+    /**
+     * 写入失败后的重试间隔 每次失败翻倍
+     */
+    private static final long RETRY_MIN_DELAY_MILLIS = 1000L;
+    private static final long RETRY_MAX_DELAY_MILLIS = 60000L;
+
+    private static volatile ApplyStatusReporter instance;
+
+    private final Map<String, JSONObject> configs = new TreeMap<>();
+    /**
+     * 已安排的写入 执行开始时置空
+     */
+    private ScheduledFuture<?> scheduled;
+    /**
+     * 下次失败后的重试间隔 只在flusher线程中访问
+     */
+    private long retryDelayMillis = RETRY_MIN_DELAY_MILLIS;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "config-status-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ApplyStatusReporter() {
+        MetricsRegistry.getInstance().gauge("config.status.configs", this::size);
+        ZookeeperUtil.onConnected(ZookeeperFactory.getCuratorClient(), "apply-status", this::scheduleFlush);
+    }
+
+    public static ApplyStatusReporter getInstance() {
+        if (instance == null) {
+            synchronized (ApplyStatusReporter.class) {
+                if (instance == null) {
+                    instance = new ApplyStatusReporter();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return 本终端的状态节点路径
+     */
+    public static String getStatusPath() {
+        String statusPath = StringUtils.defaultIfBlank(SysProperties.get("server.status.path"), DEFAULT_STATUS_PATH);
+        return ZookeeperUtil.getRootPath() + statusPath + "/" + SysProperties.get("server.name");
+    }
+
+    /**
+     * 记录落盘结果
+     *
+     * @param name      配置节点名
+     * @param md5       配置内容md5 解码失败时为null
+     * @param mzxid     配置节点的mzxid
+     * @param publishId 发布id 节点数据未带发布信息时为null
+     * @param success   是否成功
+     * @param error     失败原因
+     */
+    public void report(String name, String md5, long mzxid, String publishId, boolean success, String error) {
+        JSONObject status = new JSONObject(true);
+        status.put("md5", md5);
+        status.put("mzxid", mzxid);
+        if (publishId != null) {
+            status.put("publishId", publishId);
+        }
+        status.put("time", System.currentTimeMillis());
+        status.put("success", success);
+        if (!success) {
+            status.put("error", error);
+        }
+        synchronized (this) {
+            configs.put(name, status);
+        }
+        MetricsRegistry.getInstance().counter(success ? "config.status.applied" : "config.status.failed").increment();
+        scheduleFlush();
+    }
+
+    /**
+     * 配置已删除
+     *
+     * @param name 配置节点名
+     */
+    public void remove(String name) {
+        synchronized (this) {
+            if (configs.remove(name) == null) {
+                return;
+            }
+        }
+        scheduleFlush();
+    }
+
+    private synchronized int size() {
+        return configs.size();
+    }
+
+    private void scheduleFlush() {
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * 安排一次写入 已有更早执行的写入时不重复安排，重试等待期间有新的落盘或连接重建时提前写入
+     *
+     * @param delayMillis 延迟时间
+     */
+    private synchronized void scheduleFlush(long delayMillis) {
+        if (scheduled != null) {
+            if (scheduled.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+                return;
+            }
+            scheduled.cancel(false);
+        }
+        scheduled = flusher.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 只在flusher线程中执行
+     */
+    private void flush() {
+        JSONObject data = new JSONObject(true);
+        data.put("server", SysProperties.get("server.name"));
+        data.put("time", System.currentTimeMillis());
+        synchronized (this) {
+            scheduled = null;
+            data.put("configs", new TreeMap<>(configs));
+        }
+        String path = getStatusPath();
+        try {
+            ZookeeperFactory.getInstance().setData(path, data.toJSONString().getBytes(), CreateMode.EPHEMERAL);
+            retryDelayMillis = RETRY_MIN_DELAY_MILLIS;
+            log.debug("落盘状态[{}]已上报", path);
+        } catch (Exception e) {
+            MetricsRegistry.getInstance().counter("config.status.report.failed").increment();
+            log.error("落盘状态[{}]上报失败，{}ms后重试", path, retryDelayMillis, e);
+            scheduleFlush(retryDelayMillis);
+            retryDelayMillis = Math.min(RETRY_MAX_DELAY_MILLIS, retryDelayMillis * 2);
+        }
+    }
+}
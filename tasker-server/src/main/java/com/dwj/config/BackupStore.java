@@ -0,0 +1,496 @@
+package com.dwj.config;
+
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.resource.BooleanProperty;
+import com.dwj.resource.DurationProperty;
+import com.dwj.resource.IntProperty;
+import com.dwj.resource.SysProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author daiwj
+ * @date 2021/07/03
+ * @description: 配置备份仓库 替代在配置目录下生成的 xxx.bak时间戳 全量副本
+ * 备份内容按md5存放在状态目录的backup/objects/md5前两位/md5[.gz]，相同内容只保存一份；
+ * 每次备份在backup/backup.index追加一行记录(版本号、时间、md5、大小、操作、文件路径)，按版本号恢复时直接定位到内容；
+ * 按文件保留最近zookeeper.config.backup.max.count个版本，超过zookeeper.config.backup.max.age的版本过期，
+ * 后台线程按zookeeper.config.backup.compact.interval定期重写索引并删除不再被引用的内容；
+ * 内容在锁外写入临时文件，锁内只做存在性判断、原子改名和索引更新，各路径的备份不会因复制/压缩互相等待
+ */
+@Slf4j
+public class BackupStore {
+    public static final String OP_UPDATE = "update";
+    public static final String OP_DELETE = "delete";
+    public static final String OP_RESTORE = "restore";
+
+    private static final String INDEX_FILE = "backup.index";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private static final IntProperty MAX_COUNT = SysProperties.intProperty("zookeeper.config.backup.max.count", 20);
+    private static final DurationProperty MAX_AGE = SysProperties.durationProperty("zookeeper.config.backup.max.age", 30L, TimeUnit.DAYS);
+    private static final DurationProperty COMPACT_INTERVAL = SysProperties.durationProperty("zookeeper.config.backup.compact.interval", 60L, TimeUnit.MINUTES);
+    private static final BooleanProperty COMPRESS = SysProperties.booleanProperty("zookeeper.config.backup.compress", true);
+
+    private static volatile BackupStore instance;
+
+    private final Path baseDir;
+    private final Path indexFile;
+    private final Path objectsDir;
+    private final DigestIndex digests;
+    /**
+     * 文件路径 -> 按版本号升序的备份记录
+     */
+    private final Map<String, LinkedList<Version>> histories = new HashMap<>();
+    private final Map<Long, Version> versions = new HashMap<>();
+    private long lastVersion;
+    private BufferedWriter indexWriter;
+    private ScheduledExecutorService compactor;
+
+    private final LongAdder backupCount;
+    private final LongAdder dedupCount;
+    private final LongAdder storedBytes;
+    private final LongAdder expiredCount;
+
+    public static BackupStore getInstance() {
+        if (instance == null) {
+            synchronized (BackupStore.class) {
+                if (instance == null) {
+                    instance = new BackupStore(DigestIndex.getStateDir().resolve("backup"), DigestIndex.getInstance());
+                    instance.startCompactor();
+                }
+            }
+        }
+        return instance;
+    }
+
+    BackupStore(Path baseDir, DigestIndex digests) {
+        this.baseDir = baseDir;
+        this.indexFile = baseDir.resolve(INDEX_FILE);
+        this.objectsDir = baseDir.resolve(OBJECTS_DIR);
+        this.digests = digests;
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        backupCount = metrics.counter("config.backup.count");
+        dedupCount = metrics.counter("config.backup.dedup");
+        storedBytes = metrics.counter("config.backup.stored.bytes");
+        expiredCount = metrics.counter("config.backup.expired");
+        metrics.gauge("config.backup.versions", this::size);
+        load();
+    }
+
+    /**
+     * 备份文件当前内容 文件不存在时不做处理
+     *
+     * @param file
+     * @param op   OP_UPDATE/OP_DELETE/OP_RESTORE
+     * @return 备份记录
+     * @throws IOException
+     */
+    public Version backup(Path file, String op) throws IOException {
+        String md5 = digests.digest(file);
+        if (md5 == null) {
+            return null;
+        }
+        long size = Files.size(file);
+        Path object = objectsDir.resolve(md5.substring(0, 2)).resolve(COMPRESS.get() ? md5 + GZIP_SUFFIX : md5);
+        Version version;
+        Path staged = null;
+        try {
+            while (true) {
+                if (staged == null && objectPath(md5) == null) {
+                    staged = stageObject(file, object);
+                }
+                //与后台整理互斥 避免刚确认存在的内容被当作未引用删除
+                synchronized (this) {
+                    Path existing = objectPath(md5);
+                    if (existing == null && staged == null) {
+                        //锁外确认存在后被整理删除 重新写入
+                        continue;
+                    }
+                    if (existing == null) {
+                        moveObject(staged, object);
+                        storedBytes.add(Files.size(object));
+                        staged = null;
+                    } else {
+                        dedupCount.increment();
+                    }
+                    version = new Version(++lastVersion, System.currentTimeMillis(), md5, size, op, key(file));
+                    append(version);
+                    add(version);
+                    //超出数量的旧版本先从索引中移除，内容由后台整理时删除
+                    trim(histories.get(version.path), version.timestamp);
+                }
+                break;
+            }
+        } finally {
+            //内容已存在(其他线程同时备份了相同内容)或写入失败
+            if (staged != null) {
+                Files.deleteIfExists(staged);
+            }
+        }
+        backupCount.increment();
+        log.info("配置[{}]备份完成：{}", file, version);
+        return version;
+    }
+
+    /**
+     * @param file
+     * @return 文件的备份记录 版本号降序
+     */
+    public synchronized List<Version> list(Path file) {
+        LinkedList<Version> history = histories.get(key(file));
+        if (history == null) {
+            return Collections.emptyList();
+        }
+        List<Version> result = new ArrayList<>(history);
+        Collections.reverse(result);
+        return result;
+    }
+
+    public synchronized Version get(long version) {
+        return versions.get(version);
+    }
+
+    /**
+     * 按版本号恢复 恢复前先备份文件当前内容，写入临时文件后原子替换；
+     * 需通过ConfigRefresh.restore在落盘执行器中调用，避免与同步落盘并发写同一文件
+     *
+     * @param version 版本号
+     * @return 恢复的备份记录
+     * @throws IOException 版本不存在或内容已被清理
+     */
+    public Version restore(long version) throws IOException {
+        Version target = get(version);
+        if (target == null) {
+            throw new NoSuchFileException("备份版本[" + version + "]不存在");
+        }
+        Path object = objectPath(target.md5);
+        if (object == null) {
+            throw new NoSuchFileException("备份版本[" + version + "]内容已被清理");
+        }
+        Path file = Paths.get(target.path);
+        if (target.md5.equals(digests.digest(file))) {
+            log.info("配置[{}]内容与备份版本[{}]一致，无需恢复", file, version);
+            return target;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+        try {
+            //先取出备份内容再备份当前文件，备份当前文件可能使目标版本超出保留数量
+            try (InputStream in = openObject(object)) {
+                Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            backup(file, OP_RESTORE);
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        digests.record(file, target.md5);
+        log.info("配置[{}]已恢复到备份版本[{}]", file, target);
+        return target;
+    }
+
+    /**
+     * 清理过期版本，重写索引并删除不再被引用的内容
+     */
+    public void compact() {
+        Set<String> referenced = new HashSet<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<LinkedList<Version>> it = histories.values().iterator();
+            while (it.hasNext()) {
+                LinkedList<Version> history = it.next();
+                trim(history, now);
+                if (history.isEmpty()) {
+                    it.remove();
+                }
+            }
+            for (Version version : versions.values()) {
+                referenced.add(version.md5);
+            }
+            try {
+                rewriteIndex();
+            } catch (IOException e) {
+                log.error("重写备份索引[{}]失败", indexFile, e);
+                return;
+            }
+        }
+        int deleted = 0;
+        if (Files.isDirectory(objectsDir)) {
+            try (Stream<Path> objects = Files.walk(objectsDir, 2)) {
+                for (Path object : (Iterable<Path>) objects.filter(Files::isRegularFile)::iterator) {
+                    String name = object.getFileName().toString();
+                    String md5 = name.endsWith(GZIP_SUFFIX) ? name.substring(0, name.length() - GZIP_SUFFIX.length()) : name;
+                    //正在写入的临时文件以.开头
+                    if (name.startsWith(".") || referenced.contains(md5)) {
+                        continue;
+                    }
+                    synchronized (this) {
+                        //整理期间可能有新的备份引用了该内容
+                        if (!isReferenced(md5)) {
+                            Files.deleteIfExists(object);
+                            deleted++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.error("清理备份内容失败", e);
+            }
+        }
+        log.info("备份整理完成，保留{}个版本，删除{}个内容文件", size(), deleted);
+    }
+
+    private synchronized int size() {
+        return versions.size();
+    }
+
+    private boolean isReferenced(String md5) {
+        for (Version version : versions.values()) {
+            if (version.md5.equals(md5)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 保留最近MAX_COUNT个版本，且不早于MAX_AGE
+     */
+    private void trim(LinkedList<Version> history, long now) {
+        long expireBefore = now - MAX_AGE.toMillis();
+        int maxCount = Math.max(1, MAX_COUNT.get());
+        while (!history.isEmpty() && (history.size() > maxCount || history.getFirst().timestamp < expireBefore)) {
+            versions.remove(history.removeFirst().version);
+            expiredCount.increment();
+        }
+    }
+
+    private void add(Version version) {
+        histories.computeIfAbsent(version.path, k -> new LinkedList<>()).add(version);
+        versions.put(version.version, version);
+    }
+
+    private void startCompactor() {
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "config-backup-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(TimeUnit.MINUTES.toMillis(1), COMPACT_INTERVAL.toMillis());
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (Exception e) {
+                log.error("备份整理失败", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 已存在的内容文件，不存在返回null
+     */
+    private Path objectPath(String md5) {
+        Path dir = objectsDir.resolve(md5.substring(0, 2));
+        Path gzip = dir.resolve(md5 + GZIP_SUFFIX);
+        if (Files.exists(gzip)) {
+            return gzip;
+        }
+        Path plain = dir.resolve(md5);
+        return Files.exists(plain) ? plain : null;
+    }
+
+    /**
+     * 将文件内容写入内容文件所在目录下的临时文件(以.开头，整理时跳过)
+     *
+     * @param file   配置文件
+     * @param object 内容文件 以.gz结尾时压缩
+     * @return 临时文件
+     */
+    private static Path stageObject(Path file, Path object) throws IOException {
+        Path dir = object.getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "." + object.getFileName(), ".tmp");
+        try {
+            if (object.getFileName().toString().endsWith(GZIP_SUFFIX)) {
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+                    Files.copy(file, out);
+                }
+            } else {
+                Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return tmp;
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    private static void moveObject(Path tmp, Path object) throws IOException {
+        try {
+            Files.move(tmp, object, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, object, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static InputStream openObject(Path object) throws IOException {
+        InputStream in = Files.newInputStream(object);
+        return object.getFileName().toString().endsWith(GZIP_SUFFIX) ? new GZIPInputStream(in) : in;
+    }
+
+    private static String key(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private void load() {
+        if (Files.notExists(indexFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                Version version = Version.parse(line);
+                if (version == null) {
+                    log.warn("备份索引记录格式错误：{}", line);
+                    continue;
+                }
+                add(version);
+                lastVersion = Math.max(lastVersion, version.version);
+            }
+            log.info("加载备份索引[{}]，共{}个版本", indexFile, versions.size());
+        } catch (IOException e) {
+            log.error("加载备份索引[{}]失败", indexFile, e);
+        }
+    }
+
+    private void append(Version version) throws IOException {
+        if (indexWriter == null) {
+            Files.createDirectories(baseDir);
+            indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        indexWriter.write(version.toLine());
+        indexWriter.newLine();
+        indexWriter.flush();
+    }
+
+    /**
+     * 只保留仍有效的版本 写入临时文件后原子替换
+     */
+    private void rewriteIndex() throws IOException {
+        Files.createDirectories(baseDir);
+        Path tmp = baseDir.resolve(INDEX_FILE + ".tmp");
+        List<Version> all = new ArrayList<>(versions.values());
+        all.sort(Comparator.comparingLong(Version::getVersion));
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Version version : all) {
+                writer.write(version.toLine());
+                writer.newLine();
+            }
+        }
+        if (indexWriter != null) {
+            indexWriter.close();
+            indexWriter = null;
+        }
+        try {
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 一次备份记录
+     */
+    public static final class Version {
+        private final long version;
+        private final long timestamp;
+        private final String md5;
+        private final long size;
+        private final String op;
+        private final String path;
+
+        private Version(long version, long timestamp, String md5, long size, String op, String path) {
+            this.version = version;
+            this.timestamp = timestamp;
+            this.md5 = md5;
+            this.size = size;
+            this.op = op;
+            this.path = path;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getMd5() {
+            return md5;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getOp() {
+            return op;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * version timestamp md5 size op path
+         */
+        private String toLine() {
+            return version + "\t" + timestamp + "\t" + md5 + "\t" + size + "\t" + op + "\t" + path;
+        }
+
+        private static Version parse(String line) {
+            String[] fields = line.split("\t", 6);
+            if (fields.length != 6) {
+                return null;
+            }
+            try {
+                return new Version(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+                        Long.parseLong(fields[3]), fields[4], fields[5]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Version{" +
+                    "version=" + version +
+                    ", timestamp=" + timestamp +
+                    ", md5='" + md5 + '\'' +
+                    ", size=" + size +
+                    ", op='" + op + '\'' +
+                    ", path='" + path + '\'' +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.dwj.config;
+
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.payload.ChunkManifest;
+import com.dwj.payload.ConfigPayload;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.curator.framework.CuratorFramework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author daiwj
+ * @date 2021/07/01
+ * @description: 按分块清单组装大配置文件
+ * 逐块写入目标目录下的临时文件，不在内存中拼接整个文件；
+ * 本地文件同一位置的块md5与清单一致时直接复用本地内容，只从zookeeper读取发生变化的块；
+ * 组装完成后校验整体长度和md5，由调用方原子替换目标文件
+ */
+@Slf4j
+class ChunkedFileAssembler {
+    private final CuratorFramework client;
+    private final LongAdder fetchedChunks;
+    private final LongAdder reusedChunks;
+    private final LongAdder fetchedBytes;
+
+    ChunkedFileAssembler(CuratorFramework client) {
+        this.client = client;
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        fetchedChunks = metrics.counter("config.chunk.fetched");
+        reusedChunks = metrics.counter("config.chunk.reused");
+        fetchedBytes = metrics.counter("config.chunk.fetched.bytes");
+    }
+
+    /**
+     * @param payload  分块存储的配置
+     * @param filePath 目标文件 存在时用于复用未变化的块
+     * @return 组装完成并校验通过的临时文件(与目标文件同目录)
+     * @throws Exception
+     */
+    Path assemble(ConfigPayload payload, Path filePath) throws Exception {
+        ChunkManifest manifest = payload.getManifest();
+        Path dir = filePath.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "." + filePath.getFileName(), ".tmp");
+        boolean completed = false;
+        int fetched = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel local = Files.isRegularFile(filePath) ? FileChannel.open(filePath, StandardOpenOption.READ) : null) {
+            MessageDigest total = DigestUtils.getMd5Digest();
+            ByteBuffer buffer = ByteBuffer.allocate(manifest.getChunkSize());
+            long size = payload.getOriginalSize();
+            for (int i = 0; i < manifest.getChunkCount(); i++) {
+                int length = manifest.chunkLength(size, i);
+                byte[] chunk = readLocal(local, buffer, (long) i * manifest.getChunkSize(), length, manifest.getMd5(i));
+                if (chunk == null) {
+                    chunk = fetch(manifest, i);
+                    fetched++;
+                } else {
+                    reusedChunks.increment();
+                }
+                if (chunk.length != length) {
+                    throw new IOException("分块[" + manifest.chunkPath(i) + "]长度" + chunk.length + "与清单不一致，期望" + length);
+                }
+                total.update(chunk);
+                ByteBuffer src = ByteBuffer.wrap(chunk);
+                while (src.hasRemaining()) {
+                    out.write(src);
+                }
+            }
+            out.force(true);
+            if (out.size() != size || !MessageDigest.isEqual(total.digest(), payload.getMd5())) {
+                throw new IOException("配置[" + payload.getFileName() + "]分块组装后校验失败");
+            }
+            completed = true;
+            log.info("配置[{}]分块组装完成，共{}块，从zookeeper读取{}块", payload.getFileName(), manifest.getChunkCount(), fetched);
+            return tmp;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * @return 本地文件对应位置的内容与期望md5一致时返回该内容，否则返回null
+     */
+    private static byte[] readLocal(FileChannel local, ByteBuffer buffer, long offset, int length, byte[] md5) throws IOException {
+        if (local == null || local.size() < offset + length) {
+            return null;
+        }
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (local.read(buffer, offset + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        byte[] chunk = new byte[length];
+        buffer.flip();
+        buffer.get(chunk);
+        return MessageDigest.isEqual(md5, DigestUtils.md5(chunk)) ? chunk : null;
+    }
+
+    private byte[] fetch(ChunkManifest manifest, int index) throws Exception {
+        String path = manifest.chunkPath(index);
+        byte[] data = client.getData().forPath(path);
+        //分块节点本身也是信封格式，解码时已校验该块的md5
+        byte[] chunk = ConfigPayload.decode(data).getContent();
+        if (!MessageDigest.isEqual(manifest.getMd5(index), DigestUtils.md5(chunk))) {
+            throw new IOException("分块[" + path + "]内容与清单不一致");
+        }
+        fetchedChunks.increment();
+        fetchedBytes.add(data.length);
+        return chunk;
+    }
+}
@@ -0,0 +1,280 @@
+package com.dwj.config;
+
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author daiwj
+ * @date 2021/07/04
+ * @description: 配置落盘执行器
+ * 不同路径在有界线程池中并行落盘，同一路径同一时刻只有一个线程在处理，严格按顺序执行；
+ * 每个路径只保留一个待执行任务，落盘过程中同一节点又有新版本时直接覆盖尚未执行的旧版本(旧版本内容已无意义)；
+ * 按节点mzxid丢弃比已落盘版本更旧的事件，避免事件乱序时旧内容覆盖新内容；
+ * 启动对账重放的新增事件与已处理的版本mzxid相同时同样丢弃(该节点已被实时事件处理过，可能已被删除)；
+ * 手动恢复等一次性操作通过execute加入同一路径的执行顺序，不会与该路径的落盘并发执行；
+ * 只有落盘成功才推进已处理的mzxid，失败的版本可被同版本事件重试；空闲超过SLOT_IDLE_NANOS的路径状态被清理
+ */
+@Slf4j
+public class ConfigApplyEngine {
+    /**
+     * 未知mzxid 不参与新旧比较
+     */
+    public static final long UNKNOWN_ZXID = -1L;
+    /**
+     * 路径空闲(没有待执行和执行中的任务)超过该时长后清理其执行状态，乱序事件只会在短时间内到达
+     */
+    private static final long SLOT_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final ExecutorService executor;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong lastEvictNanos = new AtomicLong(System.nanoTime());
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger runningCount = new AtomicInteger();
+    private final Timer applyLatency;
+    private final Timer queueDelay;
+    private final LongAdder appliedCount;
+    private final LongAdder failedCount;
+    private final LongAdder supersededCount;
+    private final LongAdder staleCount;
+
+    /**
+     * @param name    名称 用于线程名和指标
+     * @param threads 落盘线程数
+     */
+    public ConfigApplyEngine(String name, int threads) {
+        AtomicInteger index = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, name + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        applyLatency = metrics.timer(name + ".latency");
+        queueDelay = metrics.timer(name + ".queue.delay");
+        appliedCount = metrics.counter(name + ".applied");
+        failedCount = metrics.counter(name + ".failed");
+        supersededCount = metrics.counter(name + ".superseded");
+        staleCount = metrics.counter(name + ".stale");
+        metrics.gauge(name + ".queue.depth", pendingCount::get);
+        metrics.gauge(name + ".running", runningCount::get);
+    }
+
+    /**
+     * 提交落盘任务 立即返回
+     *
+     * @param path  配置路径 同一路径的任务按提交顺序执行
+     * @param mzxid 节点最后修改的zxid，未知时为UNKNOWN_ZXID
+     * @param task  落盘操作
+     * @return 执行结果 被新版本覆盖或因过期丢弃时以CancellationException异常完成，执行器已关闭时以RejectedExecutionException异常完成
+     */
+    public CompletableFuture<Object> submit(String path, long mzxid, Callable<?> task) {
+        return submit(path, mzxid, false, task);
+    }
+
+    /**
+     * 提交落盘任务 立即返回
+     *
+     * @param path   配置路径 同一路径的任务按提交顺序执行
+     * @param mzxid  节点最后修改的zxid，未知时为UNKNOWN_ZXID
+     * @param replay 是否为启动对账重放的新增事件，mzxid不新于已处理的版本时丢弃
+     * @param task   落盘操作
+     * @return 执行结果 被新版本覆盖或因过期丢弃时以CancellationException异常完成，执行器已关闭时以RejectedExecutionException异常完成
+     */
+    public CompletableFuture<Object> submit(String path, long mzxid, boolean replay, Callable<?> task) {
+        return enqueue(path, new Task(mzxid, replay, task), false);
+    }
+
+    /**
+     * 在指定路径的执行顺序中执行一次性操作(如手动恢复备份)，与该路径的落盘互斥；
+     * 该路径有待执行的落盘任务时拒绝执行，避免覆盖尚未落盘的新版本；执行前有新版本到达时被覆盖
+     *
+     * @param path 配置路径
+     * @param task 操作
+     * @return 执行结果 被拒绝时以IllegalStateException异常完成
+     */
+    public CompletableFuture<Object> execute(String path, Callable<?> task) {
+        return enqueue(path, new Task(UNKNOWN_ZXID, false, task), true);
+    }
+
+    private CompletableFuture<Object> enqueue(String path, Task next, boolean rejectIfPending) {
+        Slot slot;
+        while (true) {
+            slot = slots.computeIfAbsent(path, Slot::new);
+            synchronized (slot) {
+                //取得锁前已被清理 重新获取该路径的执行状态
+                if (slot.evicted) {
+                    continue;
+                }
+                if (rejectIfPending && slot.pending != null) {
+                    next.result.completeExceptionally(new IllegalStateException("配置[" + path + "]有待落盘的版本，请稍后重试"));
+                    return next.result;
+                }
+                if (isStale(slot, next)) {
+                    staleCount.increment();
+                    log.info("配置[{}]事件mzxid[{}]早于已处理的[{}]，忽略", path, next.mzxid, slot.lastZxid);
+                    next.result.completeExceptionally(new CancellationException("mzxid[" + next.mzxid + "]早于已处理的版本"));
+                    return next.result;
+                }
+                if (slot.pending != null) {
+                    supersededCount.increment();
+                    log.info("配置[{}]待执行版本mzxid[{}]被新版本mzxid[{}]覆盖", path, slot.pending.mzxid, next.mzxid);
+                    slot.pending.result.completeExceptionally(new CancellationException("已被新版本覆盖"));
+                } else {
+                    pendingCount.incrementAndGet();
+                }
+                slot.pending = next;
+                if (slot.running) {
+                    return next.result;
+                }
+                slot.running = true;
+            }
+            break;
+        }
+        Slot started = slot;
+        try {
+            executor.execute(() -> drain(started));
+        } catch (RejectedExecutionException e) {
+            //执行器已关闭 恢复路径状态，待执行的任务(可能已被其他线程的新版本覆盖)以拒绝异常完成
+            Task pending;
+            synchronized (started) {
+                started.running = false;
+                pending = started.pending;
+                started.pending = null;
+                if (pending != null) {
+                    pendingCount.decrementAndGet();
+                }
+            }
+            log.warn("配置[{}]落盘执行器已关闭，拒绝执行", path);
+            if (pending != null) {
+                pending.result.completeExceptionally(e);
+            }
+            next.result.completeExceptionally(e);
+        }
+        return next.result;
+    }
+
+    /**
+     * @return 待执行和执行中的任务数
+     */
+    public int getQueueDepth() {
+        return pendingCount.get() + runningCount.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private boolean isStale(Slot slot, Task task) {
+        if (task.mzxid == UNKNOWN_ZXID) {
+            return false;
+        }
+        //删除事件携带的是节点删除前的stat，与最后一次更新的mzxid相同，所以实时事件只丢弃严格更旧的；
+        //重放的新增事件与实时删除事件mzxid相同时若不丢弃会重新创建已删除的配置
+        long latest = slot.pending != null && slot.pending.mzxid != UNKNOWN_ZXID ? slot.pending.mzxid : slot.lastZxid;
+        return task.replay ? task.mzxid <= latest : task.mzxid < latest;
+    }
+
+    private void drain(Slot slot) {
+        while (true) {
+            Task task;
+            synchronized (slot) {
+                task = slot.pending;
+                if (task == null) {
+                    slot.running = false;
+                    break;
+                }
+                slot.pending = null;
+                pendingCount.decrementAndGet();
+            }
+            runningCount.incrementAndGet();
+            long start = System.nanoTime();
+            queueDelay.record(start - task.submitNanos);
+            Object value = null;
+            Exception error = null;
+            try {
+                value = task.callable.call();
+                appliedCount.increment();
+            } catch (Exception e) {
+                error = e;
+                failedCount.increment();
+                log.error("配置[{}]落盘失败", slot.path, e);
+            } finally {
+                applyLatency.recordSince(start);
+                runningCount.decrementAndGet();
+            }
+            synchronized (slot) {
+                if (error == null && task.mzxid != UNKNOWN_ZXID) {
+                    slot.lastZxid = Math.max(slot.lastZxid, task.mzxid);
+                }
+                slot.idleSinceNanos = System.nanoTime();
+            }
+            if (error == null) {
+                task.result.complete(value);
+            } else {
+                task.result.completeExceptionally(error);
+            }
+        }
+        evictIdle();
+    }
+
+    /**
+     * 清理空闲超时的路径 最多每SLOT_IDLE_NANOS执行一次
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        long last = lastEvictNanos.get();
+        if (now - last < SLOT_IDLE_NANOS || !lastEvictNanos.compareAndSet(last, now)) {
+            return;
+        }
+        int evicted = 0;
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                if (!slot.running && slot.pending == null && now - slot.idleSinceNanos > SLOT_IDLE_NANOS) {
+                    slot.evicted = true;
+                    slots.remove(slot.path, slot);
+                    evicted++;
+                }
+            }
+        }
+        if (evicted > 0) {
+            log.info("清理{}个空闲配置路径的执行状态，剩余{}个", evicted, slots.size());
+        }
+    }
+
+    /**
+     * 单个路径的执行状态
+     */
+    private static final class Slot {
+        private final String path;
+        private Task pending;
+        private boolean running;
+        private long lastZxid = UNKNOWN_ZXID;
+        private long idleSinceNanos = System.nanoTime();
+        private boolean evicted;
+
+        private Slot(String path) {
+            this.path = path;
+        }
+    }
+
+    private static final class Task {
+        private final long mzxid;
+        private final boolean replay;
+        private final Callable<?> callable;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private final long submitNanos = System.nanoTime();
+
+        private Task(long mzxid, boolean replay, Callable<?> callable) {
+            this.mzxid = mzxid;
+            this.replay = replay;
+            this.callable = callable;
+        }
+    }
+}
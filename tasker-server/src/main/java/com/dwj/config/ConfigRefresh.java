@@ -1,35 +1,55 @@
 package com.dwj.config;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
+import com.dwj.event.ChangeEvent;
+import com.dwj.event.ChangeListener;
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
+import com.dwj.payload.ConfigPayload;
+import com.dwj.payload.LineDelta;
+import com.dwj.resource.IntProperty;
 import com.dwj.resource.SysProperties;
+import com.dwj.zookeeper.ZookeeperListener;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
 import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.utils.ZKPaths;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.*;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author daiwj
  * @date 2021/05/30
  * @description: 更新配置 配置内容为
+ * 传播各阶段耗时：config.trace.watch.delivery(节点修改到收到监听事件) event.bus.*.queue.latency(事件总线排队)
+ * config.apply.queue.delay(落盘执行器排队) config.trace.backup(备份) config.trace.disk.write(写本地文件)
+ * config.trace.end.to.end(配置中心发布到落盘完成，依赖节点数据中的发布时间，含两端时钟偏差)
  */
 @Component
 @Slf4j
-public class ConfigRefresh implements Observer {
-    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd-HHmmssSSS");
+public class ConfigRefresh implements ChangeListener {
+    private static final IntProperty APPLY_THREADS = SysProperties.intProperty("zookeeper.config.apply.threads", 4);
+    private static final long RESTORE_TIMEOUT_SECONDS = 30;
     private static volatile ConfigRefresh instance;
+    private volatile ChunkedFileAssembler assembler;
+    private final DigestIndex digestIndex = DigestIndex.getInstance();
+    private final BackupStore backupStore = BackupStore.getInstance();
+    private final ApplyStatusReporter statusReporter = ApplyStatusReporter.getInstance();
+    private final ConfigApplyEngine applyEngine = new ConfigApplyEngine("config.apply", APPLY_THREADS.get());
+    private final LongAdder deltaApplied = MetricsRegistry.getInstance().counter("config.delta.applied");
+    private final LongAdder deltaFallback = MetricsRegistry.getInstance().counter("config.delta.fallback");
+    private final Timer backupLatency = MetricsRegistry.getInstance().timer("config.trace.backup");
+    private final Timer diskWriteLatency = MetricsRegistry.getInstance().timer("config.trace.disk.write");
+    private final Timer assembleLatency = MetricsRegistry.getInstance().timer("config.trace.chunk.assemble");
+    private final Timer endToEndLatency = MetricsRegistry.getInstance().timer("config.trace.end.to.end");
     private ConfigRefresh(){}
 
     public static ConfigRefresh getInstance(){
@@ -43,70 +63,272 @@ public class ConfigRefresh implements Observer {
         return instance;
     }
     @Override
-    public void update(Observable o, Object arg) {
-        try {
-            if (!(arg instanceof Map)) {
-                return;
-            }
-            Map<String, Object> map = (Map<String, Object>) arg;
-            log.info("接受到的通知事件信息为：{}", map);
-            String path = (String) map.get("path");
+    public void onChange(ChangeEvent event) {
+        Object arg = event.getPayload();
+        if (!(arg instanceof Map)) {
+            return;
+        }
+        Map<String, Object> map = (Map<String, Object>) arg;
+        log.info("接受到的通知事件信息为：{}", map);
+        String path = (String) map.get("path");
+        Object mzxid = map.get("mzxid");
+        //启动对账重放的新增事件可能晚于同一版本的实时删除事件到达，由落盘执行器按mzxid丢弃
+        boolean replay = Boolean.TRUE.equals(map.get("initial")) && !PathChildrenCacheEvent.Type.CHILD_REMOVED.equals(map.get("type"));
+        //交给落盘执行器 不同配置并行落盘，同一配置按顺序且只落盘最新版本
+        applyEngine.submit(path, mzxid instanceof Long ? (Long) mzxid : ConfigApplyEngine.UNKNOWN_ZXID, replay, () -> {
+            apply(map);
+            return null;
+        });
+    }
 
-            Object eventData = map.get("data");
-            if(eventData instanceof byte[]){
-                eventData = new String((byte[])eventData);
-            }
-            //事件类型 TreeCacheEvent/PathChildrenCacheEvent
-            Object type = map.get("type");
-
-            JSONObject data = JSON.parseObject(eventData.toString());
-            String fileName = data.getString("fileName");
-            String content = data.getString("content");
-            String fileDir = SysProperties.get("zookeeper.config.path");
-            String rootPath = SysProperties.get("zookeeper.root.path") + SysProperties.get("zookeeper.listener.node.path");
-            Path filePath = Paths.get(fileDir, path.substring(rootPath.length()));
-            log.info("目标配置路径为：{}", filePath);
-            //删除事件
-            if(type.equals(TreeCacheEvent.Type.NODE_REMOVED) || type.equals(PathChildrenCacheEvent.Type.CHILD_REMOVED)){
-                log.info("目标配置[{}]进行删除操作", filePath);
-                backupFile(filePath);
-                Files.deleteIfExists(filePath);
-                log.info("配置[{}]删除成功！！！", fileName);
-                return;
-            }
-            //配置新增
-            if(Files.notExists(filePath)){
-                Files.write(filePath, content.getBytes());
-                log.info("目标配置[{}]新增！", filePath);
-                return;
-            }
-            //先检查文件是否相同，无变更则不进行操作；变更进行备份并更新
-            if(checkMd5(Files.readAllBytes(filePath), content)){
-                log.info("目标配置[{}]未发生变更，无需进行同步。", filePath);
-                return;
+    /**
+     * 恢复备份版本 在落盘执行器中按该配置的落盘顺序执行，不会与同步落盘并发写同一文件；
+     * 恢复后本地内容与发布版本不一致，作为失败状态上报，直到下次发布覆盖
+     *
+     * @param version 备份版本号
+     * @return 恢复的备份记录
+     * @throws Exception 版本不存在、该配置有待落盘的版本或恢复失败
+     */
+    public BackupStore.Version restore(long version) throws Exception {
+        BackupStore.Version target = backupStore.get(version);
+        if (target == null) {
+            throw new NoSuchFileException("备份版本[" + version + "]不存在");
+        }
+        String path = nodePath(Paths.get(target.getPath()));
+        CompletableFuture<Object> future = applyEngine.execute(path, () -> {
+            boolean changed = !target.getMd5().equals(digestIndex.digest(Paths.get(target.getPath())));
+            BackupStore.Version restored = backupStore.restore(version);
+            if (changed) {
+                statusReporter.report(ZKPaths.getNodeFromPath(path), restored.getMd5(), ConfigApplyEngine.UNKNOWN_ZXID, null,
+                        false, "已手动恢复到备份版本[" + version + "]，与发布版本不一致");
             }
-            backupFile(filePath);
-            Files.write(filePath, content.getBytes());
-            log.info("配置[{}]内容更新成功", fileName);
+            return restored;
+        });
+        try {
+            return (BackupStore.Version) future.get(RESTORE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 本地配置文件对应的节点路径 与apply中节点路径到文件的映射相反
+     */
+    private static String nodePath(Path filePath) {
+        Path baseDir = Paths.get(SysProperties.get("zookeeper.config.path")).toAbsolutePath().normalize();
+        String relative = baseDir.relativize(filePath.toAbsolutePath().normalize()).toString().replace('\\', '/');
+        return SysProperties.get("zookeeper.root.path") + SysProperties.get("zookeeper.listener.node.path") + "/" + relative;
+    }
+
+    /**
+     * 落盘单个节点事件 在落盘执行器线程中执行，异常由执行器记录；落盘结果上报到本终端的状态节点
+     *
+     * @param map 节点事件
+     * @throws Exception
+     */
+    private void apply(Map<String, Object> map) throws Exception {
+        String path = (String) map.get("path");
+        String name = ZKPaths.getNodeFromPath(path);
+        Object mzxid = map.get("mzxid");
+        long zxid = mzxid instanceof Long ? (Long) mzxid : ConfigApplyEngine.UNKNOWN_ZXID;
+
+        //事件类型 TreeCacheEvent/PathChildrenCacheEvent
+        Object type = map.get("type");
+
+        String fileDir = SysProperties.get("zookeeper.config.path");
+        String rootPath = SysProperties.get("zookeeper.root.path") + SysProperties.get("zookeeper.listener.node.path");
+        Path filePath = Paths.get(fileDir, path.substring(rootPath.length()));
+        log.info("目标配置路径为：{}", filePath);
+        //删除事件
+        if(type.equals(TreeCacheEvent.Type.NODE_REMOVED) || type.equals(PathChildrenCacheEvent.Type.CHILD_REMOVED)){
+            log.info("目标配置[{}]进行删除操作", filePath);
+            backup(filePath, BackupStore.OP_DELETE);
+            Files.deleteIfExists(filePath);
+            digestIndex.remove(filePath);
+            statusReporter.remove(name);
+            log.info("配置[{}]删除成功！！！", filePath.getFileName());
+            return;
+        }
+        Object eventData = map.get("data");
+        byte[] bytes = eventData instanceof byte[] ? (byte[]) eventData : String.valueOf(eventData).getBytes();
+        ConfigPayload payload = null;
+        try {
+            //兼容二进制信封格式和原JSON格式
+            payload = ConfigPayload.decode(bytes);
+            log.info("配置数据解码完成：{}", payload);
+            applyPayload(payload, filePath);
+        } catch (Exception e) {
+            statusReporter.report(name, payload == null ? null : payload.getMd5Hex(), zxid,
+                    payload == null ? null : payload.getPublishId(), false, String.valueOf(e.getMessage()));
+            throw e;
+        }
+        statusReporter.report(name, payload.getMd5Hex(), zxid, payload.getPublishId(), true, null);
+        //启动对账的节点可能早已发布，不计入传播耗时
+        if (payload.getPublishTime() > 0 && !Boolean.TRUE.equals(map.get("initial"))) {
+            long latency = System.currentTimeMillis() - payload.getPublishTime();
+            endToEndLatency.record(latency, TimeUnit.MILLISECONDS);
+            log.info("配置[{}]发布[{}]从发布到落盘完成耗时{}ms", filePath, payload.getPublishId(), latency);
+        }
+    }
+
+    /**
+     * 按节点数据更新本地配置 内容未变化时不落盘
+     *
+     * @param payload  已解码的节点数据
+     * @param filePath 本地配置文件
+     * @throws Exception
+     */
+    private void applyPayload(ConfigPayload payload, Path filePath) throws Exception {
+        String fileName = payload.getFileName();
+        if (payload.isDelta() && applyDelta(payload, filePath)) {
+            return;
+        }
+        if (payload.isChunked()) {
+            applyChunked(payload, filePath);
+            return;
+        }
+        byte[] content = payload.getContent();
+        String md5 = payload.getMd5Hex();
+        //配置新增
+        if(Files.notExists(filePath)){
+            write(filePath, content);
+            digestIndex.record(filePath, md5);
+            log.info("目标配置[{}]新增！", filePath);
+            return;
+        }
+        //先检查文件是否相同，无变更则不进行操作；变更进行备份并更新
+        if(md5.equals(digestIndex.digest(filePath))){
+            log.info("目标配置[{}]未发生变更，无需进行同步。", filePath);
+            return;
+        }
+        backup(filePath, BackupStore.OP_UPDATE);
+        write(filePath, content);
+        digestIndex.record(filePath, md5);
+        log.info("配置[{}]内容更新成功", fileName);
+    }
 
-        } catch (IOException e) {
-            log.error("配置同步更新失败", e);
+    /**
+     * 增量同步：本地内容为增量对应的旧版本时应用增量，校验md5后原子替换
+     *
+     * @param payload
+     * @param filePath
+     * @return 是否已完成同步，false时由调用方按分块清单读取完整内容
+     * @throws Exception
+     */
+    private boolean applyDelta(ConfigPayload payload, Path filePath) throws Exception {
+        String localMd5 = digestIndex.digest(filePath);
+        if (payload.getMd5Hex().equals(localMd5)) {
+            log.info("目标配置[{}]未发生变更，无需进行同步。", filePath);
+            return true;
         }
+        if (!payload.getBaseMd5Hex().equals(localMd5)) {
+            deltaFallback.increment();
+            log.info("目标配置[{}]本地版本[{}]不是增量的旧版本[{}]，读取完整内容", filePath, localMd5, payload.getBaseMd5Hex());
+            return false;
+        }
+        byte[] content;
+        try {
+            content = LineDelta.apply(Files.readAllBytes(filePath), payload.getDelta());
+        } catch (Exception e) {
+            deltaFallback.increment();
+            log.warn("目标配置[{}]应用增量失败，读取完整内容", filePath, e);
+            return false;
+        }
+        if (!payload.getMd5Hex().equals(DigestUtils.md5Hex(content))) {
+            deltaFallback.increment();
+            log.warn("目标配置[{}]应用增量后md5校验失败，读取完整内容", filePath);
+            return false;
+        }
+        backup(filePath, BackupStore.OP_UPDATE);
+        writeReplacing(filePath, content);
+        digestIndex.record(filePath, payload.getMd5Hex());
+        deltaApplied.increment();
+        log.info("配置[{}]增量更新成功：{}", filePath, payload);
+        return true;
     }
 
     /**
-     * 文件备份
+     * 大配置分块同步：先比对整体md5，变更时组装到临时文件再原子替换
+     *
+     * @param payload
      * @param filePath
-     * @throws IOException
+     * @throws Exception
      */
-    private static void backupFile(Path filePath) throws IOException {
-        if(Files.exists(filePath)){
-            log.info("文件[{}]存在 进行备份", filePath);
-            Path bakFilePath = Paths.get(filePath + ".bak" + DATE_TIME_FORMATTER.format(LocalDateTime.now()));
-            Files.copy(filePath, bakFilePath);
+    private void applyChunked(ConfigPayload payload, Path filePath) throws Exception {
+        if (payload.getMd5Hex().equals(digestIndex.digest(filePath))) {
+            log.info("目标配置[{}]未发生变更，无需进行同步。", filePath);
+            return;
+        }
+        long start = System.nanoTime();
+        Path tmp = getAssembler().assemble(payload, filePath);
+        assembleLatency.recordSince(start);
+        backup(filePath, BackupStore.OP_UPDATE);
+        replace(tmp, filePath);
+        digestIndex.record(filePath, payload.getMd5Hex());
+        log.info("配置[{}]分块内容更新成功：{}", filePath, payload);
+    }
+
+    private void backup(Path filePath, String op) throws IOException {
+        long start = System.nanoTime();
+        try {
+            backupStore.backup(filePath, op);
+        } finally {
+            backupLatency.recordSince(start);
         }
     }
-    private static boolean checkMd5(byte[] localFile, String content){
-        return DigestUtils.md5Hex(localFile).equals(DigestUtils.md5Hex(content));
+
+    private void write(Path filePath, byte[] content) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Files.write(filePath, content);
+        } finally {
+            diskWriteLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * 先写临时文件再原子替换目标文件，写入与替换合计为一次落盘耗时
+     */
+    private void writeReplacing(Path filePath, byte[] content) throws IOException {
+        Path tmp = Files.createTempFile(filePath.toAbsolutePath().getParent(), "." + filePath.getFileName(), ".tmp");
+        long start = System.nanoTime();
+        try {
+            Files.write(tmp, content);
+            move(tmp, filePath);
+        } finally {
+            diskWriteLatency.recordSince(start);
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void replace(Path tmp, Path filePath) throws IOException {
+        long start = System.nanoTime();
+        try {
+            move(tmp, filePath);
+        } finally {
+            diskWriteLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * 用临时文件原子替换目标文件 文件系统不支持原子移动时直接替换
+     */
+    private static void move(Path tmp, Path filePath) throws IOException {
+        try {
+            Files.move(tmp, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, filePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private ChunkedFileAssembler getAssembler() {
+        if (assembler == null) {
+            synchronized (this) {
+                if (assembler == null) {
+                    assembler = new ChunkedFileAssembler(ZookeeperListener.getCuratorClient());
+                }
+            }
+        }
+        return assembler;
     }
 }
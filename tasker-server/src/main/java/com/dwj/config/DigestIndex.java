@@ -0,0 +1,282 @@
+package com.dwj.config;
+
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.resource.SysProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author daiwj
+ * @date 2021/07/02
+ * @description: 本地配置文件摘要索引
+ * 记录 文件 -> 大小、修改时间、md5，ConfigRefresh写入文件后更新；
+ * 判断配置是否变化时只需一次stat，大小和修改时间与索引一致则直接使用索引中的md5，不再读取和计算整个文件；
+ * 不一致(文件被手工修改)或修改时间过新(文件系统时间精度内可能再次被修改)时重新计算；
+ * 索引保存在状态目录(zookeeper.config.state.path，默认为与配置目录同级的 配置目录名.config-center)的digest.index中，重启后继续使用；
+ * 变更后延迟合并写入，不阻塞落盘线程，进程退出前通过flush写入；索引只是缓存，丢失的记录重新计算摘要即可
+ */
+@Slf4j
+public class DigestIndex {
+    private static final String INDEX_FILE = "digest.index";
+    private static final long MTIME_GRANULARITY_MILLIS = 2000L;
+    private static final String STATE_DIR_SUFFIX = ".config-center";
+    /**
+     * 变更后延迟写入的时间 合并短时间内的多次落盘
+     */
+    private static final long PERSIST_DELAY_MILLIS = 1000L;
+
+    private static volatile DigestIndex instance;
+    /**
+     * 已解析的状态目录及对应的配置值 配置未变化时不再访问文件系统
+     */
+    private static Path stateDir;
+    private static String stateDirKey;
+
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final AtomicBoolean persistScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService persister = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "config-digest-index-persister");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static DigestIndex getInstance() {
+        if (instance == null) {
+            synchronized (DigestIndex.class) {
+                if (instance == null) {
+                    instance = new DigestIndex(getStateDir());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 状态目录不放在配置目录下，避免摘要索引、备份等被当作配置文件读取；
+     * 旧版本默认的 配置目录/.config-center 存在时迁移到新位置
+     *
+     * @return 配置同步的状态目录
+     */
+    public static synchronized Path getStateDir() {
+        String configured = SysProperties.get("zookeeper.config.state.path");
+        String configPath = SysProperties.get("zookeeper.config.path");
+        String key = configured + "|" + configPath;
+        if (!key.equals(stateDirKey)) {
+            stateDir = resolveStateDir(configured, configPath);
+            stateDirKey = key;
+        }
+        return stateDir;
+    }
+
+    private static Path resolveStateDir(String configured, String configPath) {
+        if (StringUtils.isNotBlank(configured)) {
+            return Paths.get(configured);
+        }
+        Path configDir = Paths.get(configPath).toAbsolutePath().normalize();
+        Path dir = configDir.resolveSibling(configDir.getFileName() + STATE_DIR_SUFFIX);
+        Path legacy = configDir.resolve(STATE_DIR_SUFFIX);
+        if (Files.isDirectory(legacy) && Files.notExists(dir)) {
+            try {
+                Files.move(legacy, dir);
+                log.info("状态目录[{}]已迁移到[{}]", legacy, dir);
+            } catch (IOException e) {
+                log.error("状态目录[{}]迁移到[{}]失败，继续使用原目录", legacy, dir, e);
+                return legacy;
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * @param file 配置目录下的文件
+     * @return 是否位于状态目录中(显式配置在配置目录下时)，这类文件不能作为配置读取或恢复
+     */
+    public static boolean isStateFile(Path file) {
+        return file.toAbsolutePath().normalize().startsWith(getStateDir().toAbsolutePath().normalize());
+    }
+
+    DigestIndex(Path stateDir) {
+        this.indexFile = stateDir.resolve(INDEX_FILE);
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        hitCount = metrics.counter("config.digest.index.hit");
+        missCount = metrics.counter("config.digest.index.miss");
+        metrics.gauge("config.digest.index.size", entries::size);
+        load();
+    }
+
+    /**
+     * 获取文件md5 索引有效时不读取文件
+     *
+     * @param file
+     * @return 文件不存在时返回null
+     * @throws IOException
+     */
+    public String digest(Path file) throws IOException {
+        String key = key(file);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            if (entries.remove(key) != null) {
+                schedulePersist();
+            }
+            return null;
+        }
+        long modified = attributes.lastModifiedTime().toMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.size == attributes.size() && entry.modified == modified
+                && System.currentTimeMillis() - modified > MTIME_GRANULARITY_MILLIS) {
+            hitCount.increment();
+            return entry.md5;
+        }
+        missCount.increment();
+        String md5;
+        try (InputStream in = Files.newInputStream(file)) {
+            md5 = DigestUtils.md5Hex(in);
+        }
+        put(key, new Entry(attributes.size(), modified, md5));
+        return md5;
+    }
+
+    /**
+     * 文件写入后记录其md5
+     *
+     * @param file
+     * @param md5  写入内容的md5
+     */
+    public void record(Path file, String md5) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            put(key(file), new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), md5));
+        } catch (IOException e) {
+            log.warn("记录文件[{}]摘要失败", file, e);
+            remove(file);
+        }
+    }
+
+    public void remove(Path file) {
+        if (entries.remove(key(file)) != null) {
+            schedulePersist();
+        }
+    }
+
+    /**
+     * 立即写入尚未保存的变更 进程退出前调用
+     */
+    public void flush() {
+        if (persistScheduled.get()) {
+            persist();
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (!entry.equals(old)) {
+            schedulePersist();
+        }
+    }
+
+    private static String key(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private void load() {
+        if (Files.notExists(indexFile)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                //md5 size modified path
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    entries.put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                } catch (NumberFormatException e) {
+                    log.warn("摘要索引记录格式错误：{}", line);
+                }
+            }
+            log.info("加载配置摘要索引[{}]，共{}条", indexFile, entries.size());
+        } catch (IOException e) {
+            log.error("加载配置摘要索引[{}]失败，将重新计算摘要", indexFile, e);
+        }
+    }
+
+    private void schedulePersist() {
+        if (persistScheduled.compareAndSet(false, true)) {
+            persister.schedule(this::persist, PERSIST_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 写入临时文件后原子替换，避免写入中途退出导致索引损坏
+     */
+    private synchronized void persist() {
+        persistScheduled.set(false);
+        Path tmp = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+        try {
+            Files.createDirectories(indexFile.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(entry.md5 + "\t" + entry.size + "\t" + entry.modified + "\t" + e.getKey());
+                    writer.newLine();
+                }
+            }
+            try {
+                Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.error("保存配置摘要索引[{}]失败", indexFile, e);
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long modified;
+        private final String md5;
+
+        private Entry(long size, long modified, String md5) {
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return size == other.size && modified == other.modified && md5.equals(other.md5);
+        }
+
+        @Override
+        public int hashCode() {
+            return md5.hashCode();
+        }
+    }
+}
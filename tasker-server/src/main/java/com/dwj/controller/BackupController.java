@@ -0,0 +1,79 @@
+package com.dwj.controller;
+
+import com.dwj.config.BackupStore;
+import com.dwj.config.ConfigRefresh;
+import com.dwj.config.DigestIndex;
+import com.dwj.resource.SysProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author daiwj
+ * @date 2021/07/03
+ * @description: 配置备份查询和恢复
+ */
+@Slf4j
+@RestController
+@RequestMapping("/backup")
+public class BackupController {
+
+    /**
+     * @param name 配置文件名 相对zookeeper.config.path
+     * @return 备份记录 版本号降序，配置名不合法时返回400
+     */
+    @RequestMapping(value = "/list", method = RequestMethod.GET)
+    public ResponseEntity<List<BackupStore.Version>> list(@RequestParam String name) {
+        Path file = resolve(name);
+        if (file == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(BackupStore.getInstance().list(file));
+    }
+
+    /**
+     * 恢复备份版本 与该配置的同步落盘按顺序执行，恢复后的内容与发布版本不一致，直到下次发布
+     */
+    @RequestMapping(value = "/restore", method = RequestMethod.POST)
+    public Map<String, Object> restore(@RequestParam long version) {
+        Map<String, Object> result = new HashMap<>();
+        try {
+            result.put("version", ConfigRefresh.getInstance().restore(version));
+            result.put("success", true);
+        } catch (Exception e) {
+            log.error("恢复备份版本[{}]失败", version, e);
+            result.put("success", false);
+            result.put("message", e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * 禁止通过 ../ 访问配置目录以外的文件
+     *
+     * @return 配置名不合法时返回null
+     */
+    private static Path resolve(String name) {
+        Path baseDir = Paths.get(SysProperties.get("zookeeper.config.path")).toAbsolutePath().normalize();
+        Path file;
+        try {
+            file = baseDir.resolve(name).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!file.startsWith(baseDir) || file.equals(baseDir) || DigestIndex.isStateFile(file)) {
+            return null;
+        }
+        return file;
+    }
+}
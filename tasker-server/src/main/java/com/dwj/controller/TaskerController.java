@@ -1,50 +1,240 @@
 package com.dwj.controller;
 
+import com.dwj.config.DigestIndex;
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
 import com.dwj.resource.SysProperties;
-import org.springframework.http.HttpStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
-import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.RestController;
 
-import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author daiwj
  * @date 2021/05/30
- * @description:
+ * @description: 本地配置文件读取
+ * 按原始字节输出配置文件，不做按行读取和字符集转换；
+ * 响应带ETag/Last-Modified，条件请求未变化时返回304，支持单个Range区间(206/416)，If-Range可为ETag或http日期；
+ * 内嵌tomcat支持sendfile时大文件交给tomcat零拷贝发送，否则用FileChannel.transferTo写出
  */
+@Slf4j
 @Controller
 @RequestMapping("/tasker")
 public class TaskerController {
+    /**
+     * 大于该长度的文件优先使用sendfile 与tomcat DefaultServlet的默认值一致
+     */
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
 
-    @RequestMapping("/get")
-    public void getConfig(@RequestParam String name, HttpServletResponse response){
-//        return SysProperties.getConfigMap(name);
+    private final LongAdder okCount;
+    private final LongAdder notModifiedCount;
+    private final LongAdder partialCount;
+    private final LongAdder sentBytes;
+    private final Timer serveLatency;
+
+    public TaskerController() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        okCount = metrics.counter("tasker.config.serve.ok");
+        notModifiedCount = metrics.counter("tasker.config.serve.not.modified");
+        partialCount = metrics.counter("tasker.config.serve.partial");
+        sentBytes = metrics.counter("tasker.config.serve.bytes");
+        serveLatency = metrics.timer("tasker.config.serve.latency");
+    }
+
+    @RequestMapping(value = "/get", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getConfig(@RequestParam String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
         try {
-            String path = "C:\\Users\\28934\\Desktop\\classes";
-            response.setCharacterEncoding("UTF-8");
-            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
-            PrintWriter writer = response.getWriter();
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(path, name))))){
-                while (true){
-                    String line = in.readLine();
-                    if(line == null) break;
-                    writer.println(line);
+            serve(name, request, response);
+        } finally {
+            serveLatency.recordSince(start);
+        }
+    }
+
+    private void serve(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path baseDir = Paths.get(SysProperties.get("zookeeper.config.path")).toAbsolutePath().normalize();
+        Path file = baseDir.resolve(name).normalize();
+        //禁止通过 ../ 读取配置目录以外的文件，以及配置在配置目录下的状态目录(摘要索引、备份)
+        if (!file.startsWith(baseDir) || file.equals(baseDir) || DigestIndex.isStateFile(file)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid config name");
+            return;
+        }
+        if (!Files.isRegularFile(file)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (notModified(request, etag, lastModified)) {
+            notModifiedCount.increment();
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long rangeStart = 0;
+        long rangeEnd = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null && rangeApplies(request, etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bounds.length == 2) {
+                rangeStart = bounds[0];
+                rangeEnd = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + rangeStart + "-" + rangeEnd + "/" + length);
+                partialCount.increment();
+            }
+        }
+        long count = rangeEnd - rangeStart + 1;
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setContentLengthLong(count);
+        okCount.increment();
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || count <= 0) {
+            return;
+        }
+        if (count >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toString());
+            request.setAttribute(SENDFILE_START, rangeStart);
+            request.setAttribute(SENDFILE_END, rangeEnd + 1);
+            sentBytes.add(count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = rangeStart;
+            long remaining = count;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    //文件在发送过程中被截断
+                    log.warn("配置文件[{}]发送中长度发生变化，已发送{}字节", file, count - remaining);
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+            sentBytes.add(count - remaining);
+        }
+        response.flushBuffer();
+    }
+
+    /**
+     * If-None-Match优先于If-Modified-Since
+     */
+    private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String t = tag.trim();
+                if (t.equals("*") || t.equals(etag) || t.equals("W/" + etag)) {
+                    return true;
                 }
             }
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        //http日期精度为秒
+        return ifModifiedSince >= 0 && lastModified / 1000 * 1000 <= ifModifiedSince;
+    }
+
+    /**
+     * If-Range为ETag时与当前ETag比较(弱ETag不匹配)，否则按http日期解析，与Last-Modified相同(秒精度)时才返回区间；
+     * 不一致或无法解析说明文件可能已变化，忽略Range返回完整内容
+     */
+    private static boolean rangeApplies(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value.equals(etag);
+        }
+        long date;
+        try {
+            date = request.getDateHeader("If-Range");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return date >= 0 && lastModified / 1000 * 1000 == date;
+    }
+
+    /**
+     * 解析单个区间 bytes=start-end / bytes=start- / bytes=-suffix
+     *
+     * @return {start, end}；格式不支持(含多区间)时返回空数组，按完整内容响应；区间无法满足时返回null
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                if (StringUtils.isEmpty(last)) {
+                    return new long[0];
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start && !last.isEmpty() && Long.parseLong(last) < start) {
+                    return new long[0];
+                }
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
         }
     }
 }
@@ -0,0 +1,41 @@
+package com.dwj.event;
+
+/**
+ * @author daiwj
+ * @date 2021/06/25
+ * @description: 配置变更事件
+ */
+public class ChangeEvent {
+    /**
+     * 排序键 相同key的事件按发布顺序投递，如zookeeper节点路径、配置文件名前缀
+     */
+    private final String key;
+    private final Object payload;
+    /**
+     * 发布时间 System.nanoTime()
+     */
+    private final long publishNanos;
+
+    public ChangeEvent(String key, Object payload) {
+        this.key = key;
+        this.payload = payload;
+        this.publishNanos = System.nanoTime();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Object getPayload() {
+        return payload;
+    }
+
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent{key='" + key + "', payload=" + payload + '}';
+    }
+}
@@ -0,0 +1,266 @@
+package com.dwj.event;
+
+import com.dwj.metrics.MetricsRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * @author daiwj
+ * @date 2021/06/25
+ * @description: 配置变更事件总线 替代Observable.notifyObservers的同步回调
+ * 每个订阅者拥有独立的有界队列，在配置的线程池(或虚拟线程)中异步投递，慢订阅者不会阻塞发布线程(zookeeper事件线程/文件监听线程)和其他订阅者；
+ * 每个订阅者的队列按key分为若干lane，同一lane同一时刻只有一个线程在投递，所以相同key的事件严格按发布顺序处理；
+ * 队列满时按配置阻塞发布线程(超时后丢弃)或直接丢弃，并记录丢弃数；事件不可丢失的总线(如zookeeper节点变更)使用Options.lossless()，队列满时一直阻塞；
+ * 订阅时可指定key前缀/通配表达式(见SubscriptionIndex)，发布时只投递给命中的订阅者
+ */
+@Slf4j
+public class ChangeEventBus {
+    private final String name;
+    private final Options options;
+    private final ExecutorService executor;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final SubscriptionIndex index;
+    private final LongAdder published;
+    private final LongAdder unmatched;
+
+    /**
+     * @param name      总线名称 用于线程名、日志和指标
+     * @param separator key的分段分隔符，如配置项为'.'、zookeeper路径为'/'
+     * @param options
+     */
+    public ChangeEventBus(String name, char separator, Options options) {
+        this.name = name;
+        this.options = options;
+        this.executor = createExecutor(name, options);
+        this.index = new SubscriptionIndex(separator);
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        published = metrics.counter("event.bus." + name + ".published");
+        unmatched = metrics.counter("event.bus." + name + ".unmatched");
+        metrics.gauge("event.bus." + name + ".subscribers", subscriptions::size);
+        log.info("事件总线[{}]已创建，配置：{}", name, options);
+    }
+
+    /**
+     * 订阅全部事件
+     *
+     * @param subscriberName 订阅者名称 用于日志和指标
+     * @param listener
+     * @return 订阅 可用于取消订阅
+     */
+    public Subscription subscribe(String subscriberName, ChangeListener listener) {
+        return subscribe(subscriberName, "", listener);
+    }
+
+    /**
+     * 订阅key命中表达式的事件
+     *
+     * @param subscriberName 订阅者名称 用于日志和指标
+     * @param pattern        key前缀/通配表达式，如 zookeeper.client、/open/config-center/tasker001
+     * @param listener
+     * @return 订阅 可用于取消订阅
+     */
+    public Subscription subscribe(String subscriberName, String pattern, ChangeListener listener) {
+        String p = pattern == null ? "" : pattern.trim();
+        Subscription subscription = new Subscription(this, subscriberName, p, listener, options, executor);
+        subscriptions.add(subscription);
+        index.add(p, subscription);
+        log.info("事件总线[{}]添加订阅者[{}]成功，订阅表达式：[{}]", name, subscriberName, p);
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        index.remove(subscription.getPattern(), subscription);
+        subscriptions.remove(subscription);
+        log.info("事件总线[{}]移除订阅者[{}]", name, subscription.getName());
+    }
+
+    /**
+     * @param key
+     * @return 订阅表达式命中该key的订阅者
+     */
+    public Collection<Subscription> match(String key) {
+        return index.match(key);
+    }
+
+    /**
+     * 发布事件 投递到key命中的订阅者的队列后立即返回(队列满且策略为block时最多等待blockTimeout，lossless时一直等待)
+     *
+     * @param key     排序键，同时用于匹配订阅表达式
+     * @param payload 事件内容
+     */
+    public void publish(String key, Object payload) {
+        published.increment();
+        Collection<Subscription> matched = index.match(key);
+        if (matched.isEmpty()) {
+            unmatched.increment();
+            return;
+        }
+        ChangeEvent event = new ChangeEvent(key, payload);
+        for (Subscription subscription : matched) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * 向指定订阅者发布事件，用于发布方需要按订阅者裁剪事件内容的场景(先通过match找到订阅者)
+     *
+     * @param subscription 订阅者
+     * @param key          排序键
+     * @param payload      事件内容
+     */
+    public void publish(Subscription subscription, String key, Object payload) {
+        published.increment();
+        subscription.offer(new ChangeEvent(key, payload));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 停止投递线程 已入队未投递的事件将被丢弃
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static ExecutorService createExecutor(String name, Options options) {
+        if (Options.EXECUTOR_VIRTUAL.equals(options.executor)) {
+            try {
+                //JDK21+ 虚拟线程，按需为每个投递任务创建
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (Exception e) {
+                log.warn("当前JDK不支持虚拟线程，事件总线[{}]使用普通线程池", name);
+            }
+        }
+        AtomicInteger index = new AtomicInteger();
+        return Executors.newFixedThreadPool(options.threads, r -> {
+            Thread thread = new Thread(r, "event-bus-" + name + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 事件总线配置
+     */
+    public static class Options {
+        public static final String EXECUTOR_PLATFORM = "platform";
+        public static final String EXECUTOR_VIRTUAL = "virtual";
+        public static final String OVERFLOW_BLOCK = "block";
+        public static final String OVERFLOW_DROP = "drop";
+
+        /**
+         * 投递线程类型 platform/virtual
+         */
+        private String executor = EXECUTOR_PLATFORM;
+        /**
+         * platform线程池大小
+         */
+        private int threads = 4;
+        /**
+         * 每个订阅者的lane数量(按key哈希分配)
+         */
+        private int lanes = 4;
+        /**
+         * 每个lane的队列容量
+         */
+        private int queueCapacity = 1024;
+        /**
+         * 队列满时的处理策略 block/drop
+         */
+        private String overflow = OVERFLOW_BLOCK;
+        /**
+         * block策略下发布线程最长等待时间 毫秒，超时后丢弃
+         */
+        private long blockTimeoutMillis = 1000L;
+        /**
+         * 事件不可丢失 队列满时一直阻塞发布线程，忽略overflow和blockTimeout配置
+         */
+        private boolean lossless;
+
+        /**
+         * 从配置读取，前缀为prefix，如sys.event.bus.executor、sys.event.bus.threads
+         *
+         * @param prefix 配置项前缀
+         * @param lookup 配置读取方法
+         * @return
+         */
+        public static Options from(String prefix, Function<String, String> lookup) {
+            Options options = new Options();
+            String executor = lookup.apply(prefix + ".executor");
+            if (StringUtils.isNotBlank(executor)) {
+                options.executor = executor.trim().toLowerCase();
+            }
+            String overflow = lookup.apply(prefix + ".overflow");
+            if (StringUtils.isNotBlank(overflow)) {
+                options.overflow = overflow.trim().toLowerCase();
+            }
+            options.threads = (int) positive(lookup.apply(prefix + ".threads"), options.threads);
+            options.lanes = (int) positive(lookup.apply(prefix + ".lanes"), options.lanes);
+            options.queueCapacity = (int) positive(lookup.apply(prefix + ".queue.capacity"), options.queueCapacity);
+            options.blockTimeoutMillis = positive(lookup.apply(prefix + ".block.timeout"), options.blockTimeoutMillis);
+            return options;
+        }
+
+        /**
+         * 用于权威事件源(如zookeeper节点变更，丢失后本地配置不会再与远端一致)：队列满时一直阻塞，不丢弃事件
+         *
+         * @return this
+         */
+        public Options lossless() {
+            if (OVERFLOW_DROP.equals(overflow)) {
+                log.warn("事件不可丢失，忽略overflow={}配置，队列满时阻塞发布线程", overflow);
+            }
+            lossless = true;
+            return this;
+        }
+
+        private static long positive(String value, long defaultValue) {
+            if (StringUtils.isBlank(value)) {
+                return defaultValue;
+            }
+            try {
+                long result = Long.parseLong(value.trim());
+                return result > 0 ? result : defaultValue;
+            } catch (NumberFormatException e) {
+                log.error("事件总线配置[{}]格式错误，使用默认值{}", value, defaultValue);
+                return defaultValue;
+            }
+        }
+
+        public int getLanes() {
+            return lanes;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public boolean isBlockOnOverflow() {
+            return lossless || OVERFLOW_BLOCK.equals(overflow);
+        }
+
+        /**
+         * @return 最长阻塞时间 毫秒，0为一直阻塞
+         */
+        public long getBlockTimeoutMillis() {
+            return lossless ? 0 : blockTimeoutMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "{executor=" + executor + ", threads=" + threads + ", lanes=" + lanes + ", queueCapacity=" + queueCapacity
+                    + ", overflow=" + overflow + ", blockTimeoutMillis=" + blockTimeoutMillis + ", lossless=" + lossless + '}';
+        }
+    }
+}
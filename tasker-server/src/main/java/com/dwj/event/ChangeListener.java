@@ -0,0 +1,17 @@
+package com.dwj.event;
+
+/**
+ * @author daiwj
+ * @date 2021/06/25
+ * @description: 配置变更订阅者 由事件总线在独立线程中回调
+ */
+@FunctionalInterface
+public interface ChangeListener {
+    /**
+     * 处理变更事件，抛出的异常只会被记录，不影响后续事件
+     *
+     * @param event
+     * @throws Exception
+     */
+    void onChange(ChangeEvent event) throws Exception;
+}
@@ -0,0 +1,175 @@
+package com.dwj.event;
+
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author daiwj
+ * @date 2021/06/25
+ * @description: 事件总线上的一个订阅者 持有该订阅者独立的有界队列
+ */
+@Slf4j
+public class Subscription {
+    /**
+     * 单次投递任务最多处理的事件数，之后让出线程给其他lane
+     */
+    private static final int DRAIN_BATCH = 64;
+
+    private final ChangeEventBus bus;
+    private final String name;
+    private final String pattern;
+    private final ChangeListener listener;
+    private final Executor executor;
+    private final Lane[] lanes;
+    private final boolean blockOnOverflow;
+    private final long blockTimeoutMillis;
+
+    private final LongAdder delivered;
+    private final LongAdder dropped;
+    private final LongAdder blocked;
+    private final LongAdder failed;
+    private final Timer queueLatency;
+    private final Timer dispatchLatency;
+
+    Subscription(ChangeEventBus bus, String name, String pattern, ChangeListener listener, ChangeEventBus.Options options, Executor executor) {
+        this.bus = bus;
+        this.name = name;
+        this.pattern = pattern;
+        this.listener = listener;
+        this.executor = executor;
+        this.blockOnOverflow = options.isBlockOnOverflow();
+        this.blockTimeoutMillis = options.getBlockTimeoutMillis();
+        this.lanes = new Lane[options.getLanes()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(options.getQueueCapacity());
+        }
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        String prefix = "event.bus." + bus.getName() + "." + name;
+        delivered = metrics.counter(prefix + ".delivered");
+        dropped = metrics.counter(prefix + ".dropped");
+        blocked = metrics.counter(prefix + ".blocked");
+        failed = metrics.counter(prefix + ".failed");
+        queueLatency = metrics.timer(prefix + ".queue.latency");
+        dispatchLatency = metrics.timer(prefix + ".dispatch.latency");
+        metrics.gauge(prefix + ".queue.depth", this::queueDepth);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 订阅表达式 空字符串表示订阅全部事件
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * 取消订阅
+     */
+    public void cancel() {
+        bus.unsubscribe(this);
+    }
+
+    /**
+     * @return 当前排队中的事件数
+     */
+    public int queueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    void offer(ChangeEvent event) {
+        String key = event.getKey();
+        int hash = key == null ? 0 : key.hashCode();
+        Lane lane = lanes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length];
+        if (!lane.queue.offer(event)) {
+            boolean accepted = false;
+            if (blockOnOverflow) {
+                blocked.increment();
+                try {
+                    if (blockTimeoutMillis > 0) {
+                        accepted = lane.queue.offer(event, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                    } else {
+                        lane.queue.put(event);
+                        accepted = true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!accepted) {
+                dropped.increment();
+                log.error("订阅者[{}]队列已满，丢弃事件：{}", name, event);
+                return;
+            }
+        }
+        lane.schedule();
+    }
+
+    private void deliver(ChangeEvent event) {
+        long start = System.nanoTime();
+        queueLatency.record(start - event.getPublishNanos());
+        try {
+            listener.onChange(event);
+            delivered.increment();
+        } catch (Throwable e) {
+            failed.increment();
+            log.error("订阅者[{}]处理事件[{}]异常", name, event.getKey(), e);
+        } finally {
+            dispatchLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * 同一lane的事件由同一时刻至多一个投递任务串行处理
+     */
+    private final class Lane {
+        private final BlockingQueue<ChangeEvent> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    log.error("订阅者[{}]投递任务提交失败", name, e);
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                ChangeEvent event;
+                int count = 0;
+                while (count++ < DRAIN_BATCH && (event = queue.poll()) != null) {
+                    deliver(event);
+                }
+            } finally {
+                scheduled.set(false);
+                //释放标记后可能有新事件入队但未触发调度
+                if (!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.dwj.event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * @author daiwj
+ * @date 2021/06/28
+ * @description: 订阅前缀索引(按分隔符切分的前缀树)
+ * 订阅表达式按分隔符切段，匹配事件key的前若干段即视为命中，例如：
+ * 分隔符为'.'时 zookeeper.client 命中 zookeeper.client.connect.timeout；
+ * 分隔符为'/'时 /open/config-center/tasker001 命中该节点及其所有子节点；
+ * 段可使用通配符：* 匹配任意一段，** 匹配任意多段(包括0段)；空表达式订阅全部事件。
+ * 匹配时只沿着key的各段下探，耗时取决于key的深度和真正相关的订阅者数量，与订阅者总数无关
+ */
+public class SubscriptionIndex {
+    private static final String ANY_ONE = "*";
+    private static final String ANY_DEPTH = "**";
+
+    private final char separator;
+    private final Node root = new Node();
+
+    public SubscriptionIndex(char separator) {
+        this.separator = separator;
+    }
+
+    public synchronized void add(String pattern, Subscription subscription) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            node = node.child(segment);
+        }
+        node.subscriptions.add(subscription);
+    }
+
+    public synchronized void remove(String pattern, Subscription subscription) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            node = node.find(segment);
+            if (node == null) {
+                return;
+            }
+        }
+        node.subscriptions.remove(subscription);
+    }
+
+    /**
+     * @param key 事件key
+     * @return 命中的订阅者(去重，按订阅表达式由短到长)
+     */
+    public Collection<Subscription> match(String key) {
+        String[] segments = split(key);
+        Collection<Subscription> result = new LinkedHashSet<>();
+        collect(root, segments, 0, result);
+        return result;
+    }
+
+    private void collect(Node node, String[] segments, int index, Collection<Subscription> result) {
+        //前缀语义：能走到的节点上的订阅者都命中
+        result.addAll(node.subscriptions);
+        Node anyDepth = node.anyDepth;
+        if (anyDepth != null) {
+            for (int i = index; i <= segments.length; i++) {
+                collect(anyDepth, segments, i, result);
+            }
+        }
+        if (index == segments.length) {
+            return;
+        }
+        Node child = node.children.get(segments[index]);
+        if (child != null) {
+            collect(child, segments, index + 1, result);
+        }
+        Node anyOne = node.anyOne;
+        if (anyOne != null) {
+            collect(anyOne, segments, index + 1, result);
+        }
+    }
+
+    private String[] split(String value) {
+        if (value == null) {
+            return new String[0];
+        }
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= value.length(); i++) {
+            if (i == value.length() || value.charAt(i) == separator) {
+                //忽略空段，/a//b/ 与 /a/b 等价
+                if (i > start) {
+                    segments.add(value.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private volatile Node anyOne;
+        private volatile Node anyDepth;
+
+        private Node child(String segment) {
+            if (ANY_DEPTH.equals(segment)) {
+                if (anyDepth == null) {
+                    anyDepth = new Node();
+                }
+                return anyDepth;
+            }
+            if (ANY_ONE.equals(segment)) {
+                if (anyOne == null) {
+                    anyOne = new Node();
+                }
+                return anyOne;
+            }
+            return children.computeIfAbsent(segment, k -> new Node());
+        }
+
+        private Node find(String segment) {
+            if (ANY_DEPTH.equals(segment)) {
+                return anyDepth;
+            }
+            if (ANY_ONE.equals(segment)) {
+                return anyOne;
+            }
+            return children.get(segment);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.dwj.resource;
+
+/**
+ * @author daiwj
+ * @date 2021/06/21
+ * @description: boolean类型配置项 支持true/false、yes/no、on/off、1/0(不区分大小写)
+ */
+public final class BooleanProperty extends TypedProperty {
+    private final boolean defaultValue;
+    private volatile boolean value;
+
+    BooleanProperty(String key, boolean defaultValue) {
+        super(key);
+        this.defaultValue = defaultValue;
+        this.value = defaultValue;
+    }
+
+    public boolean get() {
+        return value;
+    }
+
+    @Override
+    protected void parse(String raw) {
+        switch (raw.toLowerCase()) {
+            case "true":
+            case "yes":
+            case "on":
+            case "1":
+                value = true;
+                break;
+            case "false":
+            case "no":
+            case "off":
+            case "0":
+                value = false;
+                break;
+            default:
+                throw new IllegalArgumentException("not a boolean: " + raw);
+        }
+    }
+
+    @Override
+    protected void useDefault() {
+        value = defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return key + "=" + value;
+    }
+}
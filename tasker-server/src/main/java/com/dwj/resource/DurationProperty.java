@@ -0,0 +1,73 @@
+package com.dwj.resource;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author daiwj
+ * @date 2021/06/21
+ * @description: 时长类型配置项
+ * 纯数字按创建句柄时指定的单位解析(兼容现有配置，如5000表示5000毫秒)，也可带单位后缀：ms、s、m、h、d，如500ms、30s、2m
+ */
+public final class DurationProperty extends TypedProperty {
+    private final TimeUnit unit;
+    private final long defaultMillis;
+    private volatile long millis;
+    private volatile Duration duration;
+
+    DurationProperty(String key, long defaultValue, TimeUnit unit) {
+        super(key);
+        this.unit = unit;
+        this.defaultMillis = unit.toMillis(defaultValue);
+        useDefault();
+    }
+
+    /**
+     * @return 毫秒数
+     */
+    public long toMillis() {
+        return millis;
+    }
+
+    public Duration get() {
+        return duration;
+    }
+
+    @Override
+    protected void parse(String raw) {
+        String value = raw.toLowerCase();
+        long result;
+        if (value.endsWith("ms")) {
+            result = Long.parseLong(value.substring(0, value.length() - 2).trim());
+        } else if (value.endsWith("s")) {
+            result = TimeUnit.SECONDS.toMillis(Long.parseLong(value.substring(0, value.length() - 1).trim()));
+        } else if (value.endsWith("m")) {
+            result = TimeUnit.MINUTES.toMillis(Long.parseLong(value.substring(0, value.length() - 1).trim()));
+        } else if (value.endsWith("h")) {
+            result = TimeUnit.HOURS.toMillis(Long.parseLong(value.substring(0, value.length() - 1).trim()));
+        } else if (value.endsWith("d")) {
+            result = TimeUnit.DAYS.toMillis(Long.parseLong(value.substring(0, value.length() - 1).trim()));
+        } else {
+            result = unit.toMillis(Long.parseLong(value));
+        }
+        if (result < 0) {
+            throw new IllegalArgumentException("negative duration: " + raw);
+        }
+        set(result);
+    }
+
+    @Override
+    protected void useDefault() {
+        set(defaultMillis);
+    }
+
+    private void set(long millis) {
+        this.duration = Duration.ofMillis(millis);
+        this.millis = millis;
+    }
+
+    @Override
+    public String toString() {
+        return key + "=" + millis + "ms";
+    }
+}
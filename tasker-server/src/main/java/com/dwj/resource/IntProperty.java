@@ -0,0 +1,36 @@
+package com.dwj.resource;
+
+/**
+ * @author daiwj
+ * @date 2021/06/21
+ * @description: int类型配置项
+ */
+public final class IntProperty extends TypedProperty {
+    private final int defaultValue;
+    private volatile int value;
+
+    IntProperty(String key, int defaultValue) {
+        super(key);
+        this.defaultValue = defaultValue;
+        this.value = defaultValue;
+    }
+
+    public int get() {
+        return value;
+    }
+
+    @Override
+    protected void parse(String raw) {
+        value = Integer.parseInt(raw);
+    }
+
+    @Override
+    protected void useDefault() {
+        value = defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return key + "=" + value;
+    }
+}
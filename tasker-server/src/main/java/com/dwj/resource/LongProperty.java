@@ -0,0 +1,36 @@
+package com.dwj.resource;
+
+/**
+ * @author daiwj
+ * @date 2021/06/21
+ * @description: long类型配置项
+ */
+public final class LongProperty extends TypedProperty {
+    private final long defaultValue;
+    private volatile long value;
+
+    LongProperty(String key, long defaultValue) {
+        super(key);
+        this.defaultValue = defaultValue;
+        this.value = defaultValue;
+    }
+
+    public long get() {
+        return value;
+    }
+
+    @Override
+    protected void parse(String raw) {
+        value = Long.parseLong(raw);
+    }
+
+    @Override
+    protected void useDefault() {
+        value = defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return key + "=" + value;
+    }
+}
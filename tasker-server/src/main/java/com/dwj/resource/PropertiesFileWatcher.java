@@ -0,0 +1,272 @@
+package com.dwj.resource;
+
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * @author daiwj
+ * @date 2021/06/23
+ * @description: 配置目录监听 防抖合并后触发reload
+ * 编辑器/发布工具保存一次文件通常会产生多个CREATE/MODIFY事件，这里按文件合并：
+ * 文件最后一个事件之后静默quietPeriod才reload(持续写入时最迟maxDelay也会reload)；
+ * reload前比对文件大小/修改时间/内容摘要，未变化的跳过；
+ * 事件溢出(OVERFLOW)时对整个目录重新扫描，依靠摘要比对只reload真正变化的文件；
+ * 文件被删除(防抖后仍不存在)时通知移除该文件的全部配置项
+ */
+@Slf4j
+class PropertiesFileWatcher {
+    private static final String SUFFIX = ".properties";
+    private static final long MTIME_GRANULARITY_MILLIS = 2000L;
+
+    private final File dir;
+    private final DurationProperty quietPeriod;
+    private final DurationProperty maxDelay;
+    /**
+     * 回调：文件、文件内容
+     */
+    private final BiConsumer<File, byte[]> reloader;
+    /**
+     * 回调：已删除的文件
+     */
+    private final Consumer<File> remover;
+    private final ExecutorService watchThreadPool = Executors.newSingleThreadExecutor();
+    /**
+     * 已加载文件的指纹 文件名 -> 指纹
+     */
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    /**
+     * 等待reload的文件 文件名 -> {首个事件时间, 最后事件时间}，仅由监听线程修改，指标线程读取大小
+     */
+    private final Map<String, long[]> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder eventCount;
+    private final LongAdder coalescedCount;
+    private final LongAdder overflowCount;
+    private final LongAdder reloadCount;
+    private final LongAdder skippedCount;
+    private final LongAdder failedCount;
+    private final Timer reloadLatency;
+    private final Timer reloadDelay;
+
+    PropertiesFileWatcher(File dir, DurationProperty quietPeriod, DurationProperty maxDelay,
+                          BiConsumer<File, byte[]> reloader, Consumer<File> remover) {
+        this.dir = dir;
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+        this.reloader = reloader;
+        this.remover = remover;
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        eventCount = metrics.counter("sys.properties.watch.events");
+        coalescedCount = metrics.counter("sys.properties.watch.coalesced");
+        overflowCount = metrics.counter("sys.properties.watch.overflow");
+        reloadCount = metrics.counter("sys.properties.reload.count");
+        skippedCount = metrics.counter("sys.properties.reload.skipped");
+        failedCount = metrics.counter("sys.properties.reload.failed");
+        reloadLatency = metrics.timer("sys.properties.reload.latency");
+        reloadDelay = metrics.timer("sys.properties.reload.delay");
+        metrics.gauge("sys.properties.watch.pending", pending::size);
+    }
+
+    void start() {
+        watchThreadPool.submit(this::watch);
+    }
+
+    /**
+     * 读取文件内容并记录指纹，文件相对上次读取未发生变化时返回null
+     *
+     * @param file
+     * @return 文件内容
+     * @throws IOException
+     */
+    byte[] readIfChanged(File file) throws IOException {
+        Path path = file.toPath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        Fingerprint old = fingerprints.get(file.getName());
+        //修改时间精度有限(部分文件系统为秒级)，刚修改过的文件即使大小和时间都相同也要比对内容
+        if (old != null && old.size == size && old.modified == modified
+                && System.currentTimeMillis() - modified > MTIME_GRANULARITY_MILLIS) {
+            return null;
+        }
+        byte[] content = Files.readAllBytes(path);
+        String md5 = DigestUtils.md5Hex(content);
+        fingerprints.put(file.getName(), new Fingerprint(content.length, modified, md5));
+        if (old != null && old.md5.equals(md5)) {
+            return null;
+        }
+        return content;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void watch() {
+        WatchService watcher = null;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            dir.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            //(重新)注册之前的变更可能没有事件，全量扫描一次，未变化的文件会被指纹过滤
+            rescan();
+            while (true) {
+                WatchKey key = pending.isEmpty() ? watcher.take() : watcher.poll(nextDelayNanos(), TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    if (!key.isValid()) {
+                        break;
+                    }
+                    boolean overflow = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        // 事件可能lost or discarded
+                        if (event.kind() == OVERFLOW) {
+                            overflow = true;
+                            continue;
+                        }
+                        Path fileName = ((WatchEvent<Path>) event).context();
+                        log.info(fileName + " is " + (event.kind() == ENTRY_CREATE ? "created." : event.kind() == ENTRY_DELETE ? "deleted." : "modified."));
+                        if (fileName.toString().endsWith(SUFFIX)) {
+                            eventCount.increment();
+                            schedule(fileName.toString());
+                        }
+                    }
+                    if (overflow) {
+                        overflowCount.increment();
+                        log.warn("{} watch events overflow, rescan the whole directory", dir);
+                        rescan();
+                    }
+                    if (!key.reset()) {
+                        break;
+                    }
+                }
+                flushDue();
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                log.error("watch thread " + Thread.currentThread().getId() + "-" + Thread.currentThread().getName() + " is interrupted. watch stop...");
+            }
+            if (e instanceof IOException) {
+                log.error("watch thread " + Thread.currentThread().getId() + "-" + Thread.currentThread().getName() + " is stoped by " + e);
+            }
+            log.error(e.getMessage(), e.getCause());
+        } finally {
+            log.info("watch task was stopped by exception, now close the watcher and start a new watch task...");
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e.getCause());
+                }
+            }
+            watchThreadPool.submit(this::watch);
+            log.info("the new watch task started successfully...");
+        }
+    }
+
+    private void schedule(String fileName) {
+        long now = System.nanoTime();
+        long[] times = pending.get(fileName);
+        if (times == null) {
+            pending.put(fileName, new long[]{now, now});
+        } else {
+            times[1] = now;
+            coalescedCount.increment();
+        }
+    }
+
+    /**
+     * 重新扫描目录 已加载但不再存在的文件同样加入等待，按删除处理
+     */
+    private void rescan() {
+        File[] propFiles = dir.listFiles(f -> f.getName().endsWith(SUFFIX));
+        if (propFiles != null) {
+            for (File f : propFiles) {
+                schedule(f.getName());
+            }
+        }
+        for (String fileName : fingerprints.keySet()) {
+            if (!new File(dir, fileName).exists()) {
+                schedule(fileName);
+            }
+        }
+    }
+
+    private long dueTime(long[] times) {
+        return Math.min(times[1] + TimeUnit.MILLISECONDS.toNanos(quietPeriod.toMillis()),
+                times[0] + TimeUnit.MILLISECONDS.toNanos(maxDelay.toMillis()));
+    }
+
+    private long nextDelayNanos() {
+        long next = Long.MAX_VALUE;
+        for (long[] times : pending.values()) {
+            next = Math.min(next, dueTime(times));
+        }
+        return Math.max(0L, next - System.nanoTime());
+    }
+
+    private void flushDue() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, long[]>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, long[]> entry = iterator.next();
+            if (dueTime(entry.getValue()) - now > 0) {
+                continue;
+            }
+            iterator.remove();
+            reload(new File(dir, entry.getKey()), entry.getValue()[0]);
+        }
+    }
+
+    private void reload(File file, long firstEventNanos) {
+        long start = System.nanoTime();
+        try {
+            if (!file.exists()) {
+                //保存文件时可能先删除再创建，防抖后仍不存在才按删除处理
+                if (fingerprints.remove(file.getName()) != null) {
+                    remover.accept(file);
+                }
+                return;
+            }
+            byte[] content = readIfChanged(file);
+            if (content == null) {
+                skippedCount.increment();
+                log.info("{} content is not changed, skip reload", file.getName());
+                return;
+            }
+            reloadDelay.record(start - firstEventNanos);
+            reloader.accept(file, content);
+            reloadCount.increment();
+            reloadLatency.recordSince(start);
+        } catch (Exception e) {
+            failedCount.increment();
+            //读取失败时清除指纹，下次事件强制重新加载
+            fingerprints.remove(file.getName());
+            log.error("reload " + file.getAbsolutePath() + " failed", e);
+        }
+    }
+
+    private static final class Fingerprint {
+        private final long size;
+        private final long modified;
+        private final String md5;
+
+        private Fingerprint(long size, long modified, String md5) {
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.dwj.resource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author daiwj
+ * @date 2021/06/18
+ * @description: 配置不可变快照
+ * 所有配置项平铺在一张开放寻址表中(key的hash预先计算好)，读取时只做一次探测，不产生任何对象；
+ * 配置文件变更时基于当前快照生成新快照，由{@link SysProperties}通过一次volatile赋值发布，读线程不会看到更新到一半的文件
+ */
+public final class PropertySnapshot {
+    public static final PropertySnapshot EMPTY = new PropertySnapshot(0L, Collections.emptyMap());
+
+    /**
+     * 快照版本 每发布一次加1
+     */
+    private final long version;
+    /**
+     * 按配置文件名前缀分组的配置项，只读
+     */
+    private final Map<String, Map<String, String>> files;
+    private final String[] keys;
+    private final String[] values;
+    private final int[] hashes;
+    private final int mask;
+
+    private PropertySnapshot(long version, Map<String, Map<String, String>> files) {
+        this.version = version;
+        this.files = files;
+        int size = 0;
+        for (Map<String, String> props : files.values()) {
+            size += props.size();
+        }
+        //装载因子不超过0.5，保证探测链足够短
+        int capacity = tableSizeFor(Math.max(size, 1) * 2);
+        this.keys = new String[capacity];
+        this.values = new String[capacity];
+        this.hashes = new int[capacity];
+        this.mask = capacity - 1;
+        for (Map<String, String> props : files.values()) {
+            for (Map.Entry<String, String> entry : props.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void put(String key, String value) {
+        int h = spread(key.hashCode());
+        int i = h & mask;
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        hashes[i] = h;
+    }
+
+    /**
+     * 获取配置项
+     *
+     * @param key
+     * @return 不存在时返回null
+     */
+    public String get(String key) {
+        int h = spread(key.hashCode());
+        int i = h & mask;
+        String k;
+        while ((k = keys[i]) != null) {
+            if (hashes[i] == h && (k == key || k.equals(key))) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * 根据配置文件名前缀获取该配置文件的所有配置项
+     *
+     * @param fileNamePrefix
+     * @return 只读map，文件不存在时返回null
+     */
+    public Map<String, String> getConfigMap(String fileNamePrefix) {
+        return files.get(fileNamePrefix);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, String> props : files.values()) {
+            size += props.size();
+        }
+        return size;
+    }
+
+    /**
+     * 替换某个配置文件的全部配置项，生成新版本快照(当前快照不受影响)
+     *
+     * @param fileNamePrefix 配置文件名前缀
+     * @param props          该文件的全部配置项
+     * @return 新快照
+     */
+    public PropertySnapshot withFile(String fileNamePrefix, Map<String, String> props) {
+        Map<String, Map<String, String>> newFiles = new HashMap<>(files);
+        newFiles.put(fileNamePrefix, Collections.unmodifiableMap(new LinkedHashMap<>(props)));
+        return new PropertySnapshot(version + 1, Collections.unmodifiableMap(newFiles));
+    }
+
+    /**
+     * 移除某个配置文件的全部配置项，生成新版本快照(当前快照不受影响)
+     *
+     * @param fileNamePrefix 配置文件名前缀
+     * @return 新快照，该文件不在快照中时返回当前快照
+     */
+    public PropertySnapshot withoutFile(String fileNamePrefix) {
+        if (!files.containsKey(fileNamePrefix)) {
+            return this;
+        }
+        Map<String, Map<String, String>> newFiles = new HashMap<>(files);
+        newFiles.remove(fileNamePrefix);
+        return new PropertySnapshot(version + 1, Collections.unmodifiableMap(newFiles));
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = 1;
+        while (size < n) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
@@ -1,30 +1,43 @@
 package com.dwj.resource;
 
+import com.dwj.event.ChangeEventBus;
+import com.dwj.event.ChangeListener;
+import com.dwj.event.Subscription;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.*;
-import java.nio.file.WatchEvent.Kind;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import static java.nio.file.StandardWatchEventKinds.*;
-
 @Slf4j
-public class SysProperties extends Observable {
+public class SysProperties {
 
-    private Map<String, ConcurrentHashMap<String, String>> FLOW_DEFINE_CACHE = new ConcurrentHashMap<String, ConcurrentHashMap<String, String>>();
+    /**
+     * 当前生效的配置快照 每次文件变更整体替换
+     */
+    private volatile PropertySnapshot snapshot = PropertySnapshot.EMPTY;
     public static String PROPERTIES_FILE_DIR;
-    private ExecutorService watchThreadPool = Executors.newSingleThreadExecutor();
-    private static SysProperties instance;
+    private PropertiesFileWatcher watcher;
+    /**
+     * 配置变更事件总线 按配置文件保序
+     */
+    private ChangeEventBus eventBus;
+    private static volatile SysProperties instance;
+    /**
+     * 已创建的预解析配置项句柄 key -> 句柄
+     * 句柄注册后在进程内一直被强引用，不会被回收，因此只能保存在static final字段中(每个类创建一次)，
+     * 不要在方法或实例中按需创建，否则每次创建都会在这里多留一个句柄
+     */
+    private static final Map<String, List<TypedProperty>> TYPED_PROPERTIES = new ConcurrentHashMap<String, List<TypedProperty>>();
 
     public static SysProperties getInstance() {
         if (instance == null) {
@@ -46,160 +59,89 @@ public class SysProperties extends Observable {
             File[] propFiles = file.listFiles(f -> {
                 return f.getName().endsWith(".properties");
             });
-            Arrays.stream(propFiles).forEach(f -> {
+            //reload防抖参数本身也支持动态修改
+            DurationProperty quietPeriod = new DurationProperty("sys.properties.reload.quiet.period", 300L, TimeUnit.MILLISECONDS);
+            DurationProperty maxDelay = new DurationProperty("sys.properties.reload.max.delay", 3000L, TimeUnit.MILLISECONDS);
+            watcher = new PropertiesFileWatcher(file, quietPeriod, maxDelay, this::reloadProperties, this::removeProperties);
+            PropertySnapshot initial = PropertySnapshot.EMPTY;
+            for (File f : propFiles) {
                 String keyPrefix = f.getName().substring(0, f.getName().indexOf("."));
-                // added 20191118
-                if (FLOW_DEFINE_CACHE.get(keyPrefix) == null) {
-                    FLOW_DEFINE_CACHE.put(keyPrefix, new ConcurrentHashMap<String, String>());
-                }
-                loadProperties(f, FLOW_DEFINE_CACHE.get(keyPrefix));
-            });
-            watchThreadPool.submit(() -> {
-                watchFile(file);
-            });
-        }
-    }
-
-    @SuppressWarnings("unchecked")
-    private void watchFile(File dir) {
-        WatchService watcher = null;
-        try {
-            watcher = FileSystems.getDefault().newWatchService();
-            Path path = dir.toPath();
-            path.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
-            while (true) {
-                WatchKey key = watcher.take();
-                if (!key.isValid()) {
-                    break;
-                }
-                key.pollEvents().stream().forEach(event -> {
-
-                    Kind<?> kind = event.kind();
-                    // 事件可能lost or discarded
-                    if (kind == OVERFLOW) {
-                        log.info(kind.name());
-                        return;
-                    }
-
-                    WatchEvent<Path> e = (WatchEvent<Path>) event;
-                    Path fileName = (Path) e.context();
-
-                    if (kind.name() == "ENTRY_CREATE") {
-                        log.info(fileName + " is created.");
-                        if (fileName.toString().endsWith(".properties")) {
-                            // loadProperties(fileName.toAbsolutePath().toFile()); 在IDE中不可用，可以丢进我们的开发环境试试
-                            String keyPrefix = fileName.toString().substring(0, fileName.toString().indexOf("."));
-                            ConcurrentHashMap<String, String> map = FLOW_DEFINE_CACHE.get(keyPrefix);
-                            if (map == null) {
-                                map = new ConcurrentHashMap<String, String>();
-                                FLOW_DEFINE_CACHE.put(keyPrefix, map);
-                            }
-                            reloadProperties(new File(dir.getPath() + File.separator + fileName), map);
-                        }
-                    } else if (kind.name() == "ENTRY_MODIFY") {
-                        log.info(fileName + " is modified.");
-                        if (fileName.toString().endsWith(".properties")) {
-                            // loadProperties(fileName.toAbsolutePath().toFile()); 在IDE中不可用，可以丢进我们的开发环境试试
-                            String keyPrefix = fileName.toString().substring(0, fileName.toString().indexOf("."));
-                            ConcurrentHashMap<String, String> map = FLOW_DEFINE_CACHE.get(keyPrefix);
-                            if (map == null) {
-                                map = new ConcurrentHashMap<String, String>();
-                                FLOW_DEFINE_CACHE.put(keyPrefix, map);
-                            }
-                            reloadProperties(new File(dir.getPath() + File.separator + fileName), map);
-                        }
-                    }
-
-                });
-                if (!key.reset()) {
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            if (e instanceof InterruptedException) {
-                log.error("watch thread " + Thread.currentThread().getId() + "-" + Thread.currentThread().getName() + " is interrupted. watch stop...");
-            }
-            if (e instanceof IOException) {
-                log.error("watch thread " + Thread.currentThread().getId() + "-" + Thread.currentThread().getName() + " is stoped by " + e);
-            }
-            log.error(e.getMessage(), e.getCause());
-        } finally {
-            log.info("watch task was stopped by exception, now close the watcher and start a new watch task...");
-            if (watcher != null) {
                 try {
-                    watcher.close();
+                    initial = initial.withFile(keyPrefix, loadProperties(f, watcher.readIfChanged(f)));
                 } catch (IOException e) {
-                    log.error(e.getMessage(), e.getCause());
+                    log.error(e.getMessage(), e);
                 }
             }
-            watchThreadPool.submit(() -> {
-                watchFile(dir);
-            });
-            log.info("the new watch task started successfully...");
+            snapshot = initial;
+            register(quietPeriod, initial);
+            register(maxDelay, initial);
+        }
+        eventBus = new ChangeEventBus("sys-properties", '.', ChangeEventBus.Options.from("sys.event.bus", snapshot::get));
+        if (watcher != null) {
+            watcher.start();
         }
     }
 
     /**
      * 重新加载变更的配置文件
+     * 先完整解析文件并与当前快照比对，有变更时生成新快照一次性发布
      *
      * @param file
      */
-    private void reloadProperties(File file, Map<String, String> cacheMap) {
+    private void reloadProperties(File file, byte[] content) {
         log.info(">>>>reload " + file.getAbsolutePath() + " begin>>>>");
-        BufferedInputStream inputStream = null;
+        InputStream inputStream = null;
         String filePrefix = file.getName().substring(0, file.getName().indexOf("."));
-        Map<String, Map<String, String>> passedMap = new ConcurrentHashMap<String, Map<String, String>>();
         Map<String, String> changedConfig = new ConcurrentHashMap<String, String>();
         try {
-            inputStream = new BufferedInputStream(new FileInputStream(file));
+            inputStream = new ByteArrayInputStream(content);
             Properties prop = new Properties();
             prop.load(inputStream);
-            Iterator<Entry<Object, Object>> ite = prop.entrySet().iterator();
-            boolean isModified = false;
-            while (ite.hasNext()) {
-                Entry<Object, Object> entry = ite.next();
-                String key = String.valueOf(entry.getKey());
-                String value = entry.getValue() != null ? String.valueOf(entry.getValue()) : null;
-                if (key != null) {
-                    if (cacheMap.containsKey(key)) {
-                        if ((cacheMap.get(key) != null && !cacheMap.get(key).equals(value)) || (value != null && !value.equals(cacheMap.get(key)))) {
-                            log.info(file.getAbsolutePath() + " [" + key + "] value changed from [" + cacheMap.get(key) + "] => [" + value + "]");
-                            cacheMap.put(key, value);
-                            isModified = true;
-                            changedConfig.put(key, value);
-                        }
-                    } else {
-                        if (key.startsWith(filePrefix + ".")) {
-                            cacheMap.put(key, value);
-                            log.info(file.getAbsolutePath() + " add property [" + key + "=" + value + "]");
-                            changedConfig.put(key, value);
-                        } else {
-                            log.error(file.getAbsoluteFile() + " property [" + entry.getKey() + "=" + entry.getValue() + "] cannot be cached , because the key prefix cantnot match the file name");
-                        }
+            synchronized (this) {
+                Map<String, String> cacheMap = snapshot.getConfigMap(filePrefix);
+                if (cacheMap == null) {
+                    cacheMap = Collections.emptyMap();
+                }
+                Map<String, String> newMap = new LinkedHashMap<String, String>();
+                Iterator<Entry<Object, Object>> ite = prop.entrySet().iterator();
+                boolean isModified = false;
+                while (ite.hasNext()) {
+                    Entry<Object, Object> entry = ite.next();
+                    String key = String.valueOf(entry.getKey());
+                    String value = String.valueOf(entry.getValue());
+                    if (!key.startsWith(filePrefix + ".")) {
+                        log.error(file.getAbsoluteFile() + " property [" + entry.getKey() + "=" + entry.getValue() + "] cannot be cached , because the key prefix cantnot match the file name");
+                        continue;
+                    }
+                    newMap.put(key, value);
+                    String oldValue = cacheMap.get(key);
+                    if (oldValue == null) {
+                        log.info(file.getAbsolutePath() + " add property [" + key + "=" + value + "]");
+                        changedConfig.put(key, value);
+                        isModified = true;
+                    } else if (!oldValue.equals(value)) {
+                        log.info(file.getAbsolutePath() + " [" + key + "] value changed from [" + oldValue + "] => [" + value + "]");
+                        changedConfig.put(key, value);
                         isModified = true;
                     }
                 }
-            }
-            Iterator<String> keyStringIte = cacheMap.keySet().iterator();
-            while (keyStringIte.hasNext()) {
-                String key = keyStringIte.next();
-                if (prop.get(key) == null) {
-                    cacheMap.remove(key);
-                    isModified = true;
-                    changedConfig.put(key, "");
-                    log.info(file.getAbsolutePath() + " property [" + key + "] is deleted");
+                for (String key : cacheMap.keySet()) {
+                    if (!newMap.containsKey(key)) {
+                        isModified = true;
+                        changedConfig.put(key, "");
+                        log.info(file.getAbsolutePath() + " property [" + key + "] is deleted");
+                    }
                 }
-            }
 
-            if (isModified) {
-                this.setChanged();
-                passedMap.put(filePrefix, changedConfig);
-                this.notifyObservers(passedMap);
-            } else {
-                log.info(file.getAbsolutePath() + " nothing is changed!!");
+                if (!isModified) {
+                    log.info(file.getAbsolutePath() + " nothing is changed!!");
+                    return;
+                }
+                snapshot = snapshot.withFile(filePrefix, newMap);
             }
+            refreshTypedProperties(changedConfig.keySet(), snapshot);
+            publishChanges(filePrefix, changedConfig);
         } catch (Exception e) {
-            e.printStackTrace();
             log.error(e.getMessage(), e.getCause());
         } finally {
             if (inputStream != null) {
@@ -209,29 +151,86 @@ public class SysProperties extends Observable {
                     log.error(e1.getMessage(), e1.getCause());
                 }
             }
+            log.info("<<<<reload " + file.getAbsolutePath() + " end<<<<");
         }
+    }
+
+    /**
+     * 配置文件已删除 从快照中移除该文件的全部配置项，订阅者收到值为空串的删除事件(与文件中删除配置项一致)
+     *
+     * @param file
+     */
+    private void removeProperties(File file) {
+        String filePrefix = file.getName().substring(0, file.getName().indexOf("."));
+        Map<String, String> changedConfig = new LinkedHashMap<String, String>();
+        PropertySnapshot current;
+        synchronized (this) {
+            Map<String, String> cacheMap = snapshot.getConfigMap(filePrefix);
+            if (cacheMap == null) {
+                return;
+            }
+            for (String key : cacheMap.keySet()) {
+                changedConfig.put(key, "");
+            }
+            snapshot = snapshot.withoutFile(filePrefix);
+            current = snapshot;
+        }
+        log.info(file.getAbsolutePath() + " is deleted, remove " + changedConfig.size() + " properties");
+        refreshTypedProperties(changedConfig.keySet(), current);
+        publishChanges(filePrefix, changedConfig);
+    }
+
+    /**
+     * 立即重新加载指定配置文件 不经过文件监听的防抖，仅供同包的基准测试工具使用
+     *
+     * @param file 配置目录下的配置文件
+     * @throws IOException 读取文件失败
+     */
+    static void reload(File file) throws IOException {
+        getInstance().reloadProperties(file, Files.readAllBytes(file.toPath()));
+    }
 
-        log.info("<<<<reload " + file.getAbsolutePath() + " end<<<<");
+    /**
+     * 按订阅表达式将变更的配置项分发给订阅者，每个订阅者只收到其订阅范围内的配置项
+     *
+     * @param filePrefix    配置文件名前缀 作为排序键
+     * @param changedConfig 变更的配置项
+     */
+    private void publishChanges(String filePrefix, Map<String, String> changedConfig) {
+        Map<Subscription, Map<String, String>> routed = new LinkedHashMap<Subscription, Map<String, String>>();
+        for (Entry<String, String> entry : changedConfig.entrySet()) {
+            for (Subscription subscription : eventBus.match(entry.getKey())) {
+                routed.computeIfAbsent(subscription, k -> new LinkedHashMap<String, String>()).put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Entry<Subscription, Map<String, String>> entry : routed.entrySet()) {
+            Map<String, Map<String, String>> passedMap = new HashMap<String, Map<String, String>>();
+            passedMap.put(filePrefix, entry.getValue());
+            eventBus.publish(entry.getKey(), filePrefix, passedMap);
+        }
     }
 
     /**
      * 初始化加载配置文件
      *
      * @param file
+     * @param content 文件内容
+     * @return 该文件中以文件名为前缀的配置项
      */
-    private void loadProperties(File file, Map<String, String> cacheMap) {
+    private Map<String, String> loadProperties(File file, byte[] content) {
         log.info(">>>>load " + file.getAbsolutePath() + " begin>>>>");
-        BufferedInputStream inputStream = null;
+        Map<String, String> cacheMap = new LinkedHashMap<String, String>();
+        InputStream inputStream = null;
         String filePrefix = file.getName().substring(0, file.getName().indexOf("."));
         try {
-            inputStream = new BufferedInputStream(new FileInputStream(file));
+            inputStream = new ByteArrayInputStream(content);
             Properties prop = new Properties();
             prop.load(inputStream);
             Iterator<Entry<Object, Object>> ite = prop.entrySet().iterator();
             while (ite.hasNext()) {
                 Entry<Object, Object> entry = ite.next();
                 if (entry.getKey().toString().startsWith(filePrefix + ".")) {
-                    cacheMap.put(String.valueOf(entry.getKey()), entry.getValue() != null ? String.valueOf(entry.getValue()) : null);
+                    cacheMap.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
                     log.info(file.getAbsolutePath() + " add property [" + entry.getKey() + "=" + entry.getValue() + "]");
                 } else {
                     log.error(file.getAbsoluteFile() + " property [" + entry.getKey() + "=" + entry.getValue() + "] cannot be cached , because the key prefix cantnot match the file name");
@@ -249,25 +248,103 @@ public class SysProperties extends Observable {
             }
         }
         log.info("<<<<load " + file.getAbsolutePath() + " end<<<<");
+        return cacheMap;
     }
 
-    public static String get(String key) {
-        String keyPrefix = key.substring(0, key.indexOf("."));
-        Map<String, String> cacheMap = SysProperties.getInstance().FLOW_DEFINE_CACHE.get(keyPrefix);
-        if (cacheMap == null) {
-            return null;
+    /**
+     * 重新解析发生变更的配置项句柄
+     *
+     * @param changedKeys
+     * @param current
+     */
+    private static void refreshTypedProperties(Collection<String> changedKeys, PropertySnapshot current) {
+        for (String key : changedKeys) {
+            List<TypedProperty> properties = TYPED_PROPERTIES.get(key);
+            if (properties != null) {
+                for (TypedProperty property : properties) {
+                    property.refresh(current);
+                    log.info("配置项句柄已更新：{}", property);
+                }
+            }
         }
-        return cacheMap.get(key);
+    }
+
+    private static <T extends TypedProperty> T register(T property) {
+        return register(property, getSnapshot());
+    }
+
+    private static <T extends TypedProperty> T register(T property, PropertySnapshot current) {
+        TYPED_PROPERTIES.computeIfAbsent(property.getKey(), k -> new CopyOnWriteArrayList<TypedProperty>()).add(property);
+        property.refresh(current);
+        return property;
+    }
+
+    public static IntProperty intProperty(String key, int defaultValue) {
+        return register(new IntProperty(key, defaultValue));
+    }
+
+    public static LongProperty longProperty(String key, long defaultValue) {
+        return register(new LongProperty(key, defaultValue));
+    }
+
+    public static BooleanProperty booleanProperty(String key, boolean defaultValue) {
+        return register(new BooleanProperty(key, defaultValue));
+    }
+
+    /**
+     * @param key
+     * @param defaultValue 默认时长
+     * @param unit         默认时长及不带单位后缀的配置值所使用的单位
+     * @return
+     */
+    public static DurationProperty durationProperty(String key, long defaultValue, TimeUnit unit) {
+        return register(new DurationProperty(key, defaultValue, unit));
+    }
+
+    /**
+     * 订阅配置变更事件 事件内容为 配置文件名前缀 -> 变更的配置项(删除的配置项值为空字符串)
+     *
+     * @param name     订阅者名称
+     * @param listener
+     * @return
+     */
+    public static Subscription subscribe(String name, ChangeListener listener) {
+        return getInstance().eventBus.subscribe(name, listener);
+    }
+
+    /**
+     * 订阅指定范围的配置变更事件，事件中只包含命中的配置项
+     *
+     * @param name     订阅者名称
+     * @param pattern  配置项前缀，按'.'分段匹配，支持*(一段)和**(多段)通配，如 zookeeper.client、**.timeout
+     * @param listener
+     * @return
+     */
+    public static Subscription subscribe(String name, String pattern, ChangeListener listener) {
+        return getInstance().eventBus.subscribe(name, pattern, listener);
+    }
+
+    public static String get(String key) {
+        return SysProperties.getInstance().snapshot.get(key);
     }
 
     /**
      * 根据配置文件名前缀获取该配置文件的所有配置项
      *
      * @param fileNamePrefix
-     * @return
+     * @return 只读map
      */
     public static Map<String, String> getConfigMap(String fileNamePrefix) {
-        return SysProperties.getInstance().FLOW_DEFINE_CACHE.get(fileNamePrefix);
+        return SysProperties.getInstance().snapshot.getConfigMap(fileNamePrefix);
+    }
+
+    /**
+     * 获取当前配置快照，需要一次读取多个配置项且要求彼此一致时使用
+     *
+     * @return
+     */
+    public static PropertySnapshot getSnapshot() {
+        return SysProperties.getInstance().snapshot;
     }
 
 }
@@ -0,0 +1,64 @@
+package com.dwj.resource;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author daiwj
+ * @date 2021/06/21
+ * @description: 预解析的配置项句柄
+ * 通过SysProperties.xxxProperty(key, defaultValue)创建，创建时解析一次，之后仅在配置文件reload且该key发生变更时重新解析，
+ * 热点代码直接读取句柄中已解析好的值，不再每次调用都解析字符串
+ * 句柄创建后不会注销，需声明为static final字段，如 private static final IntProperty X = SysProperties.intProperty(...)
+ */
+@Slf4j
+public abstract class TypedProperty {
+    protected final String key;
+    /**
+     * 当前值解析自的快照版本，防止旧快照覆盖新值
+     */
+    private long snapshotVersion = -1L;
+
+    protected TypedProperty(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 按快照中的配置值重新解析，配置项不存在或为空时使用默认值，格式错误时保持当前值
+     *
+     * @param snapshot
+     */
+    final synchronized void refresh(PropertySnapshot snapshot) {
+        if (snapshot.getVersion() < snapshotVersion) {
+            return;
+        }
+        snapshotVersion = snapshot.getVersion();
+        String raw = snapshot.get(key);
+        if (StringUtils.isBlank(raw)) {
+            useDefault();
+            return;
+        }
+        try {
+            parse(raw.trim());
+        } catch (IllegalArgumentException e) {
+            log.error("配置项[{}={}]格式错误，保持当前值：{}", key, raw, this, e);
+        }
+    }
+
+    /**
+     * 解析配置值
+     *
+     * @param raw 非空配置值
+     * @throws IllegalArgumentException 格式错误
+     */
+    protected abstract void parse(String raw);
+
+    /**
+     * 恢复为默认值
+     */
+    protected abstract void useDefault();
+}
@@ -0,0 +1,265 @@
+package com.dwj.zookeeper;
+
+import com.dwj.metrics.MetricsRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author daiwj
+ * @date 2021/07/05
+ * @description: 监听节点下子节点的本地快照(最后一次确认的远端内容)
+ * 记录每个子节点的路径、mzxid、版本和节点数据，启动时无需等待zookeeper连接即可按快照校正本地配置，连接后再与远端对账；
+ * 文件格式：magic(CFGS) 格式版本(1) 监听路径 节点数 [路径 mzxid 版本 数据长度 数据]... md5(16字节，校验前面全部内容)；
+ * 变更后延迟合并写入临时文件再原子替换，校验失败的快照直接丢弃；
+ * 远端对账(replace)前记录实时事件写入和删除(墓碑：路径+删除时的mzxid)的节点，读取远端内容后到达的实时事件不会被旧的远端内容覆盖
+ */
+public class NodeSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(NodeSnapshot.class);
+    private static final byte[] MAGIC = {'C', 'F', 'G', 'S'};
+    private static final byte FORMAT = 1;
+    /**
+     * 变更后延迟写入的时间 合并短时间内的多次变更
+     */
+    private static final long PERSIST_DELAY_MILLIS = 500L;
+
+    private final Path file;
+    private final String rootPath;
+    private final Map<String, Node> nodes = new TreeMap<>();
+    /**
+     * 上次replace之后由实时事件写入的节点路径
+     */
+    private final Set<String> updated = new HashSet<>();
+    /**
+     * 上次replace之后由实时事件删除的节点 路径 -> 删除时节点的mzxid
+     */
+    private final Map<String, Long> removed = new HashMap<>();
+    private final AtomicBoolean persistScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService persister = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "zookeeper-snapshot-persister");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param file     快照文件
+     * @param rootPath 监听的节点路径 与快照中记录的不一致时快照作废
+     */
+    public NodeSnapshot(Path file, String rootPath) {
+        this.file = file;
+        this.rootPath = rootPath;
+        MetricsRegistry.getInstance().gauge("zookeeper.snapshot.nodes", this::size);
+    }
+
+    /**
+     * 读取快照文件
+     *
+     * @return 是否读取成功
+     */
+    public synchronized boolean load() {
+        if (Files.notExists(file)) {
+            return false;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length < MAGIC.length + 1 + 16) {
+                throw new IOException("快照文件长度不足");
+            }
+            byte[] body = Arrays.copyOf(bytes, bytes.length - 16);
+            byte[] md5 = Arrays.copyOfRange(bytes, bytes.length - 16, bytes.length);
+            if (!MessageDigest.isEqual(md5, DigestUtils.md5(body))) {
+                throw new IOException("快照文件md5校验失败");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic) || in.readByte() != FORMAT) {
+                throw new IOException("快照文件格式不支持");
+            }
+            String root = in.readUTF();
+            if (!rootPath.equals(root)) {
+                log.info("快照[{}]监听路径[{}]与当前[{}]不一致，忽略", file, root, rootPath);
+                return false;
+            }
+            int count = in.readInt();
+            Map<String, Node> loaded = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long mzxid = in.readLong();
+                int version = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                loaded.put(path, new Node(path, mzxid, version, data));
+            }
+            nodes.clear();
+            nodes.putAll(loaded);
+            log.info("加载节点快照[{}]完成，共{}个节点", file, nodes.size());
+            return true;
+        } catch (IOException e) {
+            log.error("节点快照[{}]不可用，忽略", file, e);
+            return false;
+        }
+    }
+
+    public synchronized Collection<Node> getNodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    public synchronized Node get(String path) {
+        return nodes.get(path);
+    }
+
+    public synchronized void put(String path, long mzxid, int version, byte[] data) {
+        nodes.put(path, new Node(path, mzxid, version, data == null ? new byte[0] : data));
+        updated.add(path);
+        removed.remove(path);
+        schedulePersist();
+    }
+
+    /**
+     * 实时删除事件 记录墓碑，replace时不会用删除前读取的远端内容恢复该节点
+     *
+     * @param path
+     * @param mzxid 删除事件携带的节点mzxid(删除前最后一次修改)
+     */
+    public synchronized void remove(String path, long mzxid) {
+        updated.remove(path);
+        removed.merge(path, mzxid, Math::max);
+        if (nodes.remove(path) != null) {
+            schedulePersist();
+        }
+    }
+
+    /**
+     * 用远端的完整内容替换快照 读取远端内容之后由实时事件写入的更新版本和新增节点保留，已被实时删除的节点不恢复
+     */
+    public synchronized void replace(Collection<Node> remote) {
+        Map<String, Node> replaced = new TreeMap<>();
+        for (Node node : remote) {
+            Long removedMzxid = removed.get(node.path);
+            if (removedMzxid != null && removedMzxid >= node.mzxid) {
+                continue;
+            }
+            Node current = nodes.get(node.path);
+            replaced.put(node.path, current != null && current.mzxid > node.mzxid ? current : node);
+        }
+        for (String path : updated) {
+            Node current = nodes.get(path);
+            if (current != null) {
+                replaced.putIfAbsent(path, current);
+            }
+        }
+        nodes.clear();
+        nodes.putAll(replaced);
+        updated.clear();
+        removed.clear();
+        schedulePersist();
+    }
+
+    private synchronized int size() {
+        return nodes.size();
+    }
+
+    private void schedulePersist() {
+        if (persistScheduled.compareAndSet(false, true)) {
+            persister.schedule(this::persist, PERSIST_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void persist() {
+        persistScheduled.set(false);
+        byte[] body;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.write(MAGIC);
+            out.writeByte(FORMAT);
+            out.writeUTF(rootPath);
+            synchronized (this) {
+                out.writeInt(nodes.size());
+                for (Node node : nodes.values()) {
+                    out.writeUTF(node.path);
+                    out.writeLong(node.mzxid);
+                    out.writeInt(node.version);
+                    out.writeInt(node.data.length);
+                    out.write(node.data);
+                }
+            }
+            out.flush();
+            body = buffer.toByteArray();
+        } catch (IOException e) {
+            log.error("节点快照序列化失败", e);
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(body);
+                out.write(DigestUtils.md5(body));
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            log.debug("节点快照[{}]已保存", file);
+        } catch (IOException e) {
+            log.error("保存节点快照[{}]失败", file, e);
+        }
+    }
+
+    /**
+     * 快照中的单个节点
+     */
+    public static final class Node {
+        private final String path;
+        private final long mzxid;
+        private final int version;
+        private final byte[] data;
+
+        public Node(String path, long mzxid, int version, byte[] data) {
+            this.path = path;
+            this.mzxid = mzxid;
+            this.version = version;
+            this.data = data;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getMzxid() {
+            return mzxid;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return "Node{path='" + path + "', mzxid=" + mzxid + ", version=" + version + ", size=" + data.length + '}';
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.dwj.zookeeper;
+
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
+import com.dwj.resource.IntProperty;
+import com.dwj.resource.SysProperties;
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.drivers.TracerDriver;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author daiwj
+ * @date 2021/07/06
+ * @description: 进程内共享的zookeeper连接
+ * ZookeeperFactory、ZookeeperListener等组件通过acquire/release共用同一个CuratorFramework(同一个会话)，按引用计数管理生命周期，
+ * 最后一个使用方释放后才关闭连接；超时和重试策略统一从zookeeper.client.*读取；
+ * 通过TracerDriver把curator内部各操作耗时和计数记入指标(zookeeper.trace.*、zookeeper.count.*)，
+ * 经call执行的操作额外记录耗时和执行中的请求数
+ */
+public class ZookeeperConnectionManager {
+    private static final Logger log = LoggerFactory.getLogger(ZookeeperConnectionManager.class);
+    private static final IntProperty CONNECT_TIMEOUT = SysProperties.intProperty("zookeeper.client.connect.timeout", 5000);
+    private static final IntProperty SESSION_TIMEOUT = SysProperties.intProperty("zookeeper.client.session.timeout", 30000);
+    private static final IntProperty RETRY_BASE_SLEEP = SysProperties.intProperty("zookeeper.client.retry.base.sleep", 1000);
+    private static final IntProperty RETRY_MAX_RETRIES = SysProperties.intProperty("zookeeper.client.retry.max.retries", 3);
+
+    private static volatile ZookeeperConnectionManager instance;
+
+    private CuratorFramework client;
+    /**
+     * 使用方 -> 引用次数
+     */
+    private final Map<String, Integer> owners = new HashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    private ZookeeperConnectionManager() {
+        metrics.gauge("zookeeper.connection.refs", this::getRefCount);
+        metrics.gauge("zookeeper.connection.connected", () -> isConnected() ? 1 : 0);
+        metrics.gauge("zookeeper.op.in.flight", inFlight::get);
+    }
+
+    public static ZookeeperConnectionManager getInstance() {
+        if (instance == null) {
+            synchronized (ZookeeperConnectionManager.class) {
+                if (instance == null) {
+                    instance = new ZookeeperConnectionManager();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 获取共享连接 首次获取时建立连接，不等待连接完成
+     *
+     * @param owner 使用方名称 同一使用方多次获取需对应多次释放
+     * @return CuratorFramework client
+     */
+    public synchronized CuratorFramework acquire(String owner) {
+        if (client == null) {
+            client = startClient();
+        }
+        owners.merge(owner, 1, Integer::sum);
+        log.info("[{}]获取zookeeper共享连接，当前使用方：{}", owner, owners);
+        return client;
+    }
+
+    /**
+     * 释放共享连接 所有使用方都释放后关闭连接
+     *
+     * @param owner 使用方名称
+     */
+    public synchronized void release(String owner) {
+        Integer count = owners.get(owner);
+        if (count == null) {
+            log.warn("[{}]未获取zookeeper共享连接，忽略释放", owner);
+            return;
+        }
+        if (count > 1) {
+            owners.put(owner, count - 1);
+        } else {
+            owners.remove(owner);
+        }
+        log.info("[{}]释放zookeeper共享连接，当前使用方：{}", owner, owners);
+        if (owners.isEmpty() && client != null) {
+            client.close();
+            client = null;
+            log.info("zookeeper client 已关闭");
+        }
+    }
+
+    /**
+     * 执行zookeeper操作并记录耗时(zookeeper.op.名称)和执行中的请求数
+     *
+     * @param op       操作名称
+     * @param callable
+     * @return 操作结果
+     * @throws Exception 操作抛出的异常
+     */
+    public <T> T call(String op, Callable<T> callable) throws Exception {
+        Timer timer = metrics.timer("zookeeper.op." + op);
+        long start = System.nanoTime();
+        inFlight.incrementAndGet();
+        try {
+            return callable.call();
+        } catch (Exception e) {
+            metrics.counter("zookeeper.op." + op + ".failed").increment();
+            throw e;
+        } finally {
+            inFlight.decrementAndGet();
+            timer.recordSince(start);
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return client != null && client.getZookeeperClient().isConnected();
+    }
+
+    private synchronized int getRefCount() {
+        int refs = 0;
+        for (int count : owners.values()) {
+            refs += count;
+        }
+        return refs;
+    }
+
+    private CuratorFramework startClient() {
+        //服务器列表，格式host1:port1,host2:port2,…
+        String connectString = SysProperties.get("zookeeper.server.addr");
+        //隔离命名空间
+        String namespace = SysProperties.get("zookeeper.chroot.namespace");
+        int connectTimeout = CONNECT_TIMEOUT.get();
+        int sessionTimeout = SESSION_TIMEOUT.get();
+        int baseSleep = RETRY_BASE_SLEEP.get();
+        int maxRetries = RETRY_MAX_RETRIES.get();
+        log.info("正在建立zookeeper client 连接... 配置信息：connectString：{}， namespace：{}，connectTimeout：{}， sessionTimeout：{}，retry：{}ms*{}",
+                connectString, namespace, connectTimeout, sessionTimeout, baseSleep, maxRetries);
+        RetryPolicy retryPolicy = new ExponentialBackoffRetry(baseSleep, maxRetries);
+        CuratorFramework curator = CuratorFrameworkFactory.builder()
+                .connectString(connectString)
+                .sessionTimeoutMs(sessionTimeout)
+                .connectionTimeoutMs(connectTimeout)
+                .retryPolicy(retryPolicy)
+                .namespace(namespace)
+                .build();
+        curator.getZookeeperClient().setTracerDriver(new MetricsTracerDriver(metrics));
+        curator.getConnectionStateListenable().addListener((c, state) -> {
+            metrics.counter("zookeeper.connection.state." + state.name().toLowerCase()).increment();
+            log.info("zookeeper连接状态变更：{}", state);
+        });
+        curator.start();
+        return curator;
+    }
+
+    /**
+     * curator内部操作耗时和计数写入指标
+     */
+    private static final class MetricsTracerDriver implements TracerDriver {
+        private final MetricsRegistry metrics;
+
+        private MetricsTracerDriver(MetricsRegistry metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void addTrace(String name, long time, TimeUnit unit) {
+            metrics.timer("zookeeper.trace." + name).record(time, unit);
+        }
+
+        @Override
+        public void addCount(String name, int increment) {
+            metrics.counter("zookeeper.count." + name).add(increment);
+        }
+    }
+}
@@ -1,15 +1,12 @@
 package com.dwj.zookeeper;
 
 import com.dwj.resource.SysProperties;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.recipes.locks.InterProcessLock;
 import org.apache.curator.framework.recipes.locks.InterProcessMutex;
-import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,14 +18,21 @@ import org.slf4j.LoggerFactory;
  */
 public class ZookeeperFactory {
     private static final Logger log = LoggerFactory.getLogger(ZookeeperFactory.class);
+    private static final String OWNER = "zookeeper-factory";
+
+    /**
+     * 不校验版本
+     */
+    public static final int ANY_VERSION = -1;
 
     private static volatile ZookeeperFactory instance;
 
-    private CuratorFramework client;
+    private final ZookeeperConnectionManager connectionManager = ZookeeperConnectionManager.getInstance();
+    private volatile CuratorFramework client;
 
     private ZookeeperFactory() {
-        //获取zk  curator client
-        client = startClient();
+        //获取进程内共享的zk curator client
+        client = connectionManager.acquire(OWNER);
     }
 
     public static ZookeeperFactory getInstance() {
@@ -53,7 +57,7 @@ public class ZookeeperFactory {
         checkClientStatus();
         //根路径
         try {
-            byte[] bytes = client.getData().forPath(node);
+            byte[] bytes = connectionManager.call("getData", () -> client.getData().forPath(node));
             return new String(bytes);
         } catch (Exception e) {
             log.error("节点【{}】数据获取异常！", node, e);
@@ -70,9 +74,9 @@ public class ZookeeperFactory {
     public void delNodeData(String node) throws Exception {
         checkClientStatus();
         //根路径
-        Stat stat = client.checkExists().forPath(node);
+        Stat stat = connectionManager.call("checkExists", () -> client.checkExists().forPath(node));
         if(stat != null){
-            client.delete().deletingChildrenIfNeeded().forPath(node);
+            connectionManager.call("delete", () -> client.delete().deletingChildrenIfNeeded().forPath(node));
             log.info("节点【{}】数据删除成功！", node);
         }
     }
@@ -84,20 +88,7 @@ public class ZookeeperFactory {
      * @throws Exception
      */
     public void setData(String node, byte[] data) throws Exception {
-        checkClientStatus();
-        //检查节点是否存在
-        Stat stat = client.checkExists().forPath(node);
-        if (stat == null) {
-            log.info("节点【{}】不存在，创建节点并写入...", node);
-            //创建节点并写入
-            String path = client.create()
-                    .creatingParentsIfNeeded()
-                    .withMode(CreateMode.PERSISTENT)
-                    .forPath(node, data);
-            log.info("[{}]节点创建并写入完成", path);
-            return;
-        }
-        client.setData().forPath(node, data);
+        setData(node, data, ANY_VERSION);
     }
     /**
      * 新增或修改节点数据
@@ -107,62 +98,58 @@ public class ZookeeperFactory {
      * @throws Exception
      */
     public void setData(String node, byte[] data, CreateMode createMode) throws Exception {
-        checkClientStatus();
-        //检查节点是否存在
-        Stat stat = client.checkExists().forPath(node);
-        if (stat == null) {
-            log.info("节点【{}】不存在，创建节点并写入...", node);
-            //创建节点并写入
-            String path = client.create()
-                    .creatingParentsIfNeeded()
-                    .withMode(createMode)
-                    .forPath(node, data);
-            log.info("[{}]节点创建并写入完成", path);
-            return;
-        }
-        client.setData().forPath(node, data);
+        write(node, data, createMode, ANY_VERSION);
     }
+
     /**
-     * 建立客户端连接
+     * 条件写入节点数据(CAS)
+     * expectedVersion为ANY_VERSION时新增或覆盖：先直接尝试创建，节点已存在时再覆盖写入，不再先checkExists；
+     * expectedVersion>=0时节点必须存在且版本一致才写入，否则抛出BadVersionException/NoNodeException，调用方据此重新读取后重试
      *
-     * @return
+     * @param node
+     * @param data
+     * @param expectedVersion 期望的节点版本
+     * @return 写入后的节点状态，新建节点时只包含版本(0)和数据长度
+     * @throws Exception
      */
-    private CuratorFramework startClient() {
-        //服务器列表，格式host1:port1,host2:port2,…
-        String connectString = SysProperties.get("zookeeper.server.addr");
-
-        //隔离命名空间
-        String namespace = SysProperties.get("zookeeper.chroot.namespace");
+    public Stat setData(String node, byte[] data, int expectedVersion) throws Exception {
+        return write(node, data, CreateMode.PERSISTENT, expectedVersion);
+    }
 
-        int connectTimeout = 5000;
-        if (StringUtils.isNotEmpty(SysProperties.get("zookeeper.client.connect.timeout"))) {
-            connectTimeout = Integer.parseInt(SysProperties.get("zookeeper.client.connect.timeout"));
-        }
-        int sessionTimeout = 30000;
-        if (StringUtils.isNotEmpty(SysProperties.get("zookeeper.client.session.timeout"))) {
-            sessionTimeout = Integer.parseInt(SysProperties.get("zookeeper.client.session.timeout"));
+    private Stat write(String node, byte[] data, CreateMode createMode, int expectedVersion) throws Exception {
+        checkClientStatus();
+        if (expectedVersion < 0) {
+            try {
+                String path = connectionManager.call("create", () -> client.create()
+                        .creatingParentsIfNeeded()
+                        .withMode(createMode)
+                        .forPath(node, data));
+                log.info("[{}]节点创建并写入完成", path);
+                return createdStat(data);
+            } catch (KeeperException.NodeExistsException e) {
+                log.debug("节点【{}】已存在，覆盖写入", node);
+            }
         }
-        log.info("正在建立zookeeper client 连接... 配置信息：connectString：{}， namespace：{}，connectTimeout：{}， sessionTimeout：{}",
-                connectString, namespace, connectTimeout, sessionTimeout);
-        //重试策略
-        RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
-        CuratorFramework client = CuratorFrameworkFactory.builder()
-                .connectString(connectString)
-                .sessionTimeoutMs(sessionTimeout)
-                .connectionTimeoutMs(connectTimeout)
-                .retryPolicy(retryPolicy)
-                .namespace(namespace)
-                .build();
-        client.start();
-        return client;
+        return connectionManager.call("setData", () -> client.setData().withVersion(expectedVersion).forPath(node, data));
+    }
+
+    /**
+     * curator创建节点时不返回Stat，新建节点的版本固定为0
+     */
+    private static Stat createdStat(byte[] data) {
+        Stat stat = new Stat();
+        stat.setVersion(0);
+        stat.setDataLength(data == null ? 0 : data.length);
+        stat.setMtime(System.currentTimeMillis());
+        return stat;
     }
 
     public void checkClientStatus(){
         if (client == null || CuratorFrameworkState.STOPPED.equals(client.getState())) {
             synchronized (this){
                 if (client == null || CuratorFrameworkState.STOPPED.equals(client.getState())) {
-                    log.info("重新建立zookeeper连接...");
-                    client = startClient();
+                    log.info("重新获取zookeeper共享连接...");
+                    client = connectionManager.acquire(OWNER);
                 }
             }
         }
@@ -181,12 +168,12 @@ public class ZookeeperFactory {
         return ZookeeperFactory.getInstance().client;
     }
     /**
-     * 关闭CuratorFramework client
+     * 释放共享的CuratorFramework client 所有使用方都释放后才真正关闭
      */
-    public void closeClient() {
+    public synchronized void closeClient() {
         if (client != null) {
-            client.close();
-            log.info("zookeeper client 已关闭");
+            connectionManager.release(OWNER);
+            client = null;
         }
     }
 }
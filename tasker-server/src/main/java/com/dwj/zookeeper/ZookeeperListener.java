@@ -1,31 +1,45 @@
 package com.dwj.zookeeper;
 
+import com.dwj.config.DigestIndex;
+import com.dwj.event.ChangeEventBus;
+import com.dwj.event.ChangeListener;
+import com.dwj.event.Subscription;
+import com.dwj.metrics.MetricsRegistry;
+import com.dwj.metrics.Timer;
 import com.dwj.resource.SysProperties;
-import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.cache.*;
-import org.apache.curator.retry.RetryUntilElapsed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Observable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author daiwj
  * @date 2020/10/27
  * @description:
  */
-public class ZookeeperListener extends Observable {
+public class ZookeeperListener {
     private static final Logger log = LoggerFactory.getLogger(ZookeeperListener.class);
+    private static final String OWNER = "zookeeper-listener";
+
+    private static final String SNAPSHOT_FILE = "nodes.snapshot";
 
     private CuratorFramework client;
+    private volatile NodeSnapshot snapshot;
+    private PathChildrenCache childrenCache;
+    /**
+     * 节点变更事件总线 按节点路径保序；节点变更事件不可丢失(丢失后本地配置直到下次变更都不会与远端一致)，队列满时阻塞监听线程
+     */
+    private final ChangeEventBus eventBus = new ChangeEventBus("zookeeper-listener", '/', ChangeEventBus.Options.from("sys.event.bus", SysProperties::get).lossless());
+    /**
+     * 节点修改(mtime，zookeeper服务端时钟)到收到监听事件的耗时 含服务端与本机的时钟偏差
+     */
+    private final Timer watchDelivery = MetricsRegistry.getInstance().timer("config.trace.watch.delivery");
 
     private static volatile ZookeeperListener instance;
 
@@ -45,20 +59,8 @@ public class ZookeeperListener extends Observable {
     }
 
     private void initClient() {
-        String zkServer = SysProperties.get("zookeeper.server.addr");
-        String namespace = SysProperties.get("zookeeper.chroot.namespace");
-        String connectTimeout = SysProperties.get("zookeeper.client.connect.timeout");
-        String sessionTimeout = SysProperties.get("zookeeper.client.session.timeout");
-        log.info("init zookeeper client params: zk_server:{}, namespace:{}, connectTimeout:{}ms, sessionTimeout:{}ms", zkServer, namespace, connectTimeout, sessionTimeout);
-        RetryPolicy retryPolicy = new RetryUntilElapsed(1000, 3);
-        client = CuratorFrameworkFactory.builder()
-                .connectString(zkServer)
-                .connectionTimeoutMs(Integer.parseInt(connectTimeout))
-                .sessionTimeoutMs(Integer.parseInt(sessionTimeout))
-                .retryPolicy(retryPolicy)
-                .namespace(namespace)
-                .build();
-        client.start();
+        //与ZookeeperFactory共用进程内同一个zookeeper会话
+        client = ZookeeperConnectionManager.getInstance().acquire(OWNER);
     }
     /**
      * 指定节点监听(仅监听当前节点的变更)
@@ -128,6 +130,7 @@ public class ZookeeperListener extends Observable {
                     data.put("path", eventPath);
                     data.put("data", eventData.getData());
                     data.put("version", eventData.getStat().getVersion());
+                    data.put("mzxid", eventData.getStat().getMzxid());
                     data.put("type", event.getType());
                     switch (event.getType()) {
                         case NODE_ADDED:
@@ -162,49 +165,140 @@ public class ZookeeperListener extends Observable {
 
     /**
      * 仅对监听节点的子节点变更作出响应
+     * 启动时不等待zookeeper连接：先按本地快照(最后一次确认的远端内容)校正本地配置，连接建立后在后台线程启动监听并与远端对账；
+     * 监听以BUILD_INITIAL_CACHE模式启动，启动时读取的节点不产生CHILD_ADDED事件，而是作为一致的快照逐个与本地文件对账，
+     * 对账由订阅者按内容摘要判断是否需要落盘；快照中有而远端已不存在的节点按删除处理；启动前先添加监听器，快照之后的变更不会遗漏
      * @param path zookeeper node
      */
     public void startPathChildrenListener(String path){
         if(path.endsWith("/")){
             path = path.substring(0, path.length() -1);
         }
-        try {
-            PathChildrenCache cache = new PathChildrenCache(client, path, true);
-            PathChildrenCacheListener cacheListener = new PathChildrenCacheListener() {
-                @Override
-                public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
-                    ChildData eventData = event.getData();
-                    if (eventData == null) {
-                        log.info("节点数据为空， eventType：{}", event.getType());
-                        return;
-                    }
-                    String eventPath = eventData.getPath();
-                    Map<String, Object> data = new HashMap<>();
-                    data.put("path", eventPath);
-                    data.put("data", eventData.getData());
-                    data.put("version", eventData.getStat().getVersion());
-                    data.put("type", event.getType());
-                    switch (event.getType()) {
-                        case CHILD_ADDED:
-                        case CHILD_UPDATED:
-                        case CHILD_REMOVED:
-                            log.info("[{}]节点发生变更，事件类型为[{}]，节点版本为：{}", eventPath, event.getType(), eventData.getStat().getVersion());
-                            setChanged();
-                            notifyObservers(data);
-                            break;
-                        default:
-                            log.info("当前事件类型为：{}", event.getType());
-                            break;
-                    }
+        snapshot = new NodeSnapshot(DigestIndex.getStateDir().resolve(SNAPSHOT_FILE), path);
+        if (snapshot.load()) {
+            for (NodeSnapshot.Node node : snapshot.getNodes()) {
+                eventBus.publish(node.getPath(), toEventData(node, PathChildrenCacheEvent.Type.CHILD_ADDED, true));
+            }
+            log.info("已按本地快照校正{}个节点，等待zookeeper连接后对账", snapshot.getNodes().size());
+        }
+        String finalPath = path;
+        ZookeeperUtil.onConnected(client, "path-children-sync", () -> syncPathChildren(finalPath));
+    }
+
+    /**
+     * 连接建立后启动子节点监听并与远端对账 启动成功后的断线重连由PathChildrenCache自行刷新
+     */
+    private synchronized void syncPathChildren(String path) {
+        if (childrenCache != null) {
+            return;
+        }
+        PathChildrenCache cache = new PathChildrenCache(client, path, true);
+        PathChildrenCacheListener cacheListener = new PathChildrenCacheListener() {
+            @Override
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+                ChildData eventData = event.getData();
+                if (eventData == null) {
+                    log.info("节点数据为空， eventType：{}", event.getType());
+                    return;
                 }
-            };
-            cache.getListenable().addListener(cacheListener);
-            cache.start();
-            log.info("PathChildrenListener：节点[{}]子节点事件监听已启动！", path);
+                String eventPath = eventData.getPath();
+                switch (event.getType()) {
+                    case CHILD_ADDED:
+                    case CHILD_UPDATED:
+                        watchDelivery.record(System.currentTimeMillis() - eventData.getStat().getMtime(), TimeUnit.MILLISECONDS);
+                        snapshot.put(eventPath, eventData.getStat().getMzxid(), eventData.getStat().getVersion(), eventData.getData());
+                        log.info("[{}]节点发生变更，事件类型为[{}]，节点版本为：{}", eventPath, event.getType(), eventData.getStat().getVersion());
+                        eventBus.publish(eventPath, toEventData(toNode(eventData), event.getType(), false));
+                        break;
+                    case CHILD_REMOVED:
+                        snapshot.remove(eventPath, eventData.getStat().getMzxid());
+                        log.info("[{}]节点发生变更，事件类型为[{}]，节点版本为：{}", eventPath, event.getType(), eventData.getStat().getVersion());
+                        eventBus.publish(eventPath, toEventData(toNode(eventData), event.getType(), false));
+                        break;
+                    default:
+                        log.info("当前事件类型为：{}", event.getType());
+                        break;
+                }
+            }
+        };
+        cache.getListenable().addListener(cacheListener);
+        long start = System.currentTimeMillis();
+        try {
+            cache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
         } catch (Exception e) {
-            log.error("start node[{}] PathChildrenListener error.", path, e);
+            log.error("start node[{}] PathChildrenListener error. 下次连接建立后重试", path, e);
+            try {
+                cache.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        childrenCache = cache;
+        List<NodeSnapshot.Node> remote = new ArrayList<>();
+        Set<String> remotePaths = new HashSet<>();
+        //监听器已先于快照生效，重放的节点可能已被实时事件更新或删除，由落盘执行器丢弃mzxid不新于已处理版本的重放事件，
+        //本地快照同样以读取远端内容之后到达的实时事件为准(见NodeSnapshot.replace)
+        for (ChildData childData : cache.getCurrentData()) {
+            NodeSnapshot.Node node = toNode(childData);
+            remote.add(node);
+            remotePaths.add(node.getPath());
+            eventBus.publish(node.getPath(), toEventData(node, PathChildrenCacheEvent.Type.CHILD_ADDED, true));
+        }
+        int removed = 0;
+        for (NodeSnapshot.Node node : snapshot.getNodes()) {
+            if (!remotePaths.contains(node.getPath()) && cache.getCurrentData(node.getPath()) == null) {
+                eventBus.publish(node.getPath(), toEventData(node, PathChildrenCacheEvent.Type.CHILD_REMOVED, true));
+                removed++;
+            }
         }
+        snapshot.replace(remote);
+        log.info("PathChildrenListener：节点[{}]子节点事件监听已启动！远端{}个节点已提交对账，{}个节点已删除，耗时{}ms", path, remote.size(), removed, System.currentTimeMillis() - start);
     }
+
+    private static NodeSnapshot.Node toNode(ChildData childData) {
+        return new NodeSnapshot.Node(childData.getPath(), childData.getStat().getMzxid(), childData.getStat().getVersion(),
+                childData.getData() == null ? new byte[0] : childData.getData());
+    }
+
+    /**
+     * @param node    节点数据
+     * @param type    事件类型
+     * @param initial 是否为启动时的快照对账
+     * @return 订阅者收到的事件内容
+     */
+    private static Map<String, Object> toEventData(NodeSnapshot.Node node, Object type, boolean initial) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("path", node.getPath());
+        data.put("data", node.getData());
+        data.put("version", node.getVersion());
+        data.put("mzxid", node.getMzxid());
+        data.put("type", type);
+        data.put("initial", initial);
+        return data;
+    }
+    /**
+     * 订阅节点变更事件
+     *
+     * @param name     订阅者名称
+     * @param listener
+     * @return
+     */
+    public Subscription subscribe(String name, ChangeListener listener) {
+        return eventBus.subscribe(name, listener);
+    }
+
+    /**
+     * 订阅指定路径范围的节点变更事件
+     *
+     * @param name        订阅者名称
+     * @param pathPattern 节点路径前缀，按'/'分段匹配，支持*(一段)和**(多段)通配，如 /open/config-center/tasker001
+     * @param listener
+     * @return
+     */
+    public Subscription subscribe(String name, String pathPattern, ChangeListener listener) {
+        return eventBus.subscribe(name, pathPattern, listener);
+    }
+
     /**
      * @return CuratorFramework client
      */
@@ -213,12 +307,18 @@ public class ZookeeperListener extends Observable {
     }
 
     /**
-     * 关闭CuratorFramework client
+     * 关闭监听并释放共享的CuratorFramework client 所有使用方都释放后才真正关闭
      */
     public void closeClient() {
+        if (childrenCache != null) {
+            try {
+                childrenCache.close();
+            } catch (IOException e) {
+                log.warn("PathChildrenCache关闭异常", e);
+            }
+        }
         if (client != null) {
-            client.close();
-            log.info("zookeeper client 已关闭");
+            ZookeeperConnectionManager.getInstance().release(OWNER);
         }
     }
 }
\ No newline at end of file
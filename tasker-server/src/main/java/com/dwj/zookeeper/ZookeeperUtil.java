@@ -1,6 +1,13 @@
 package com.dwj.zookeeper;
 
 import com.dwj.resource.SysProperties;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author daiwj
@@ -8,6 +15,8 @@ import com.dwj.resource.SysProperties;
  * @description:
  */
 public class ZookeeperUtil {
+    private static final Logger log = LoggerFactory.getLogger(ZookeeperUtil.class);
+
     /**
      * 获取项目根目录
      * @return
@@ -23,4 +32,36 @@ public class ZookeeperUtil {
     public static String getServersPath(){
         return getRootPath() + SysProperties.get("server.public.nodes.path");
     }
+
+    /**
+     * 连接建立(含断线重连)后在独立线程中执行操作，调用时已连接则立即执行；不阻塞调用方等待连接
+     * 操作需可重复执行
+     *
+     * @param client
+     * @param name   操作名称 用于线程名和日志
+     * @param action
+     */
+    public static void onConnected(CuratorFramework client, String name, Runnable action) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "zookeeper-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runnable task = () -> {
+            try {
+                action.run();
+            } catch (Exception e) {
+                log.error("zookeeper连接建立后执行[{}]失败", name, e);
+            }
+        };
+        client.getConnectionStateListenable().addListener((c, state) -> {
+            if (state == ConnectionState.CONNECTED || state == ConnectionState.RECONNECTED) {
+                log.info("zookeeper连接状态[{}]，执行[{}]", state, name);
+                executor.execute(task);
+            }
+        });
+        if (client.getZookeeperClient().isConnected()) {
+            executor.execute(task);
+        }
+    }
 }
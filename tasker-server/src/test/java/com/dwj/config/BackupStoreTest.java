@@ -0,0 +1,132 @@
+package com.dwj.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/13
+ * @description: 配置备份仓库测试 覆盖并发备份、内容去重和按版本恢复
+ */
+public class BackupStoreTest {
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private Path root;
+    private Path configDir;
+    private BackupStore store;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("backup-store-test");
+        configDir = Files.createDirectories(root.resolve("config"));
+        Path stateDir = Files.createDirectories(root.resolve("state"));
+        store = new BackupStore(stateDir.resolve("backup"), new DigestIndex(stateDir));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentBackupsKeepEveryVersion() throws Exception {
+        int files = 16;
+        int rounds = 5;
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            paths.add(configDir.resolve("app" + i + ".properties"));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<BackupStore.Version>> futures = new ArrayList<>();
+                for (int i = 0; i < files; i++) {
+                    Path path = paths.get(i);
+                    //奇数文件内容相同 偶数文件内容各不相同
+                    String content = i % 2 == 1 ? "shared=" + round + "\n" : "app" + i + "=" + round + "\n" + payload(i);
+                    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        return store.backup(path, BackupStore.OP_UPDATE);
+                    }));
+                }
+                start.countDown();
+                for (Future<BackupStore.Version> future : futures) {
+                    assertNotNull(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Set<Long> versions = new HashSet<>();
+        Set<String> md5s = new HashSet<>();
+        for (Path path : paths) {
+            List<BackupStore.Version> history = store.list(path);
+            assertEquals(rounds, history.size(), path.toString());
+            for (BackupStore.Version version : history) {
+                assertTrue(versions.add(version.getVersion()));
+                md5s.add(version.getMd5());
+            }
+        }
+        //偶数文件每轮各一份内容 奇数文件每轮共用一份
+        assertEquals(rounds * (files / 2 + 1), md5s.size());
+        assertEquals(md5s.size(), objectFiles().size());
+        for (Path object : objectFiles()) {
+            assertFalse(object.getFileName().toString().startsWith("."), "残留临时文件" + object);
+        }
+    }
+
+    @Test
+    public void restoreReturnsBackedUpContent() throws Exception {
+        Path path = configDir.resolve("sys.properties");
+        Files.write(path, "sys.a=1\n".getBytes(StandardCharsets.UTF_8));
+        BackupStore.Version first = store.backup(path, BackupStore.OP_UPDATE);
+        Files.write(path, "sys.a=2\n".getBytes(StandardCharsets.UTF_8));
+
+        store.restore(first.getVersion());
+
+        assertEquals("sys.a=1\n", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        assertEquals(BackupStore.OP_RESTORE, store.list(path).get(0).getOp());
+    }
+
+    @Test
+    public void backupOfMissingFileIsSkipped() throws Exception {
+        assertNull(store.backup(configDir.resolve("missing.properties"), BackupStore.OP_DELETE));
+    }
+
+    private List<Path> objectFiles() throws IOException {
+        try (Stream<Path> objects = Files.walk(root.resolve("state").resolve("backup").resolve("objects"))) {
+            return objects.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private static String payload(int seed) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("app").append(seed).append(".item").append(i).append('=').append(i).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package com.dwj.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 配置落盘执行器测试 覆盖同路径合并、乱序mzxid丢弃、启动重放、失败重试和一次性操作
+ */
+public class ConfigApplyEngineTest {
+    private static final String PATH = "/open/config-center/tasker001/sys.properties";
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final ConfigApplyEngine engine = new ConfigApplyEngine("config-apply-test", 2);
+    private final List<Long> applied = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void shutdown() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void coalescesPendingVersionsOfSamePath() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> first = engine.submit(PATH, 1L, () -> {
+            started.countDown();
+            release.await();
+            return record(1L);
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        CompletableFuture<Object> second = engine.submit(PATH, 2L, () -> record(2L));
+        CompletableFuture<Object> third = engine.submit(PATH, 3L, () -> record(3L));
+        release.countDown();
+
+        assertEquals(1L, get(first));
+        assertEquals(3L, get(third));
+        assertTrue(failure(second) instanceof CancellationException);
+        assertEquals(2, applied.size());
+        assertEquals(1L, (long) applied.get(0));
+        assertEquals(3L, (long) applied.get(1));
+    }
+
+    @Test
+    public void dropsOutOfOrderMzxid() throws Exception {
+        assertEquals(5L, get(engine.submit(PATH, 5L, () -> record(5L))));
+
+        assertTrue(failure(engine.submit(PATH, 3L, () -> record(3L))) instanceof CancellationException);
+        //删除事件携带删除前的stat，mzxid与最后一次更新相同，不能丢弃
+        assertEquals(5L, get(engine.submit(PATH, 5L, () -> record(5L))));
+        assertEquals(6L, get(engine.submit(PATH, 6L, () -> record(6L))));
+        assertEquals(3, applied.size());
+        assertFalse(applied.contains(3L));
+    }
+
+    @Test
+    public void dropsMzxidOlderThanPendingVersion() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> running = engine.submit(PATH, 1L, () -> {
+            started.countDown();
+            release.await();
+            return record(1L);
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        CompletableFuture<Object> newest = engine.submit(PATH, 10L, () -> record(10L));
+        CompletableFuture<Object> older = engine.submit(PATH, 7L, () -> record(7L));
+        release.countDown();
+
+        assertTrue(failure(older) instanceof CancellationException);
+        assertEquals(1L, get(running));
+        assertEquals(10L, get(newest));
+        assertFalse(applied.contains(7L));
+    }
+
+    @Test
+    public void replayDropsAlreadyAppliedVersion() throws Exception {
+        assertEquals(5L, get(engine.submit(PATH, 5L, () -> record(5L))));
+
+        assertTrue(failure(engine.submit(PATH, 5L, true, () -> record(5L))) instanceof CancellationException);
+        assertTrue(failure(engine.submit(PATH, 4L, true, () -> record(4L))) instanceof CancellationException);
+        assertEquals(6L, get(engine.submit(PATH, 6L, true, () -> record(6L))));
+        assertEquals(2, applied.size());
+    }
+
+    @Test
+    public void failureDoesNotAdvanceAppliedVersion() throws Exception {
+        IOException error = new IOException("disk full");
+        Throwable cause = failure(engine.submit(PATH, 5L, () -> {
+            throw error;
+        }));
+        assertSame(error, cause);
+
+        assertEquals(5L, get(engine.submit(PATH, 5L, true, () -> record(5L))));
+        assertTrue(failure(engine.submit(PATH, 5L, true, () -> record(5L))) instanceof CancellationException);
+    }
+
+    @Test
+    public void unknownMzxidIsNeverStale() throws Exception {
+        assertEquals(5L, get(engine.submit(PATH, 5L, () -> record(5L))));
+
+        assertEquals(-1L, get(engine.submit(PATH, ConfigApplyEngine.UNKNOWN_ZXID, () -> record(-1L))));
+        assertEquals(-1L, get(engine.submit(PATH, ConfigApplyEngine.UNKNOWN_ZXID, true, () -> record(-1L))));
+    }
+
+    @Test
+    public void executeIsRejectedWhileVersionIsPending() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> running = engine.submit(PATH, 1L, () -> {
+            started.countDown();
+            release.await();
+            return record(1L);
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        CompletableFuture<Object> pending = engine.submit(PATH, 2L, () -> record(2L));
+
+        assertTrue(failure(engine.execute(PATH, () -> record(0L))) instanceof IllegalStateException);
+        release.countDown();
+        get(running);
+        get(pending);
+
+        assertEquals(0L, get(engine.execute(PATH, () -> record(0L))));
+        assertEquals(3, applied.size());
+    }
+
+    @Test
+    public void differentPathsApplyInParallel() throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        CompletableFuture<Object> first = engine.submit(PATH, 1L, () -> barrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        CompletableFuture<Object> second = engine.submit(PATH + ".bak", 1L, () -> barrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertNotNull(get(first));
+        assertNotNull(get(second));
+        assertEquals(0, engine.getQueueDepth());
+    }
+
+    @Test
+    public void submitAfterShutdownCompletesExceptionally() throws Exception {
+        engine.shutdown();
+
+        assertTrue(failure(engine.submit(PATH, 1L, () -> record(1L))) instanceof RejectedExecutionException);
+        assertTrue(failure(engine.submit(PATH, 2L, () -> record(2L))) instanceof RejectedExecutionException);
+        assertTrue(failure(engine.execute(PATH, () -> record(0L))) instanceof RejectedExecutionException);
+        assertEquals(0, engine.getQueueDepth());
+        assertTrue(applied.isEmpty());
+    }
+
+    private long record(long mzxid) {
+        applied.add(mzxid);
+        return mzxid;
+    }
+
+    private static Object get(CompletableFuture<Object> future) throws Exception {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static Throwable failure(CompletableFuture<Object> future) throws Exception {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (CancellationException e) {
+            return e;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        return fail("期望执行失败");
+    }
+}
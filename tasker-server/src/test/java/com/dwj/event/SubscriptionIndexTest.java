@@ -0,0 +1,118 @@
+package com.dwj.event;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 订阅前缀索引测试 覆盖前缀、通配符、空段、去重和取消订阅
+ */
+public class SubscriptionIndexTest {
+    private final ChangeEventBus bus = new ChangeEventBus("subscription-index-test", '.',
+            ChangeEventBus.Options.from("subscription.index.test", key -> null));
+
+    @AfterEach
+    public void shutdown() {
+        bus.shutdown();
+    }
+
+    @Test
+    public void matchesByKeyPrefix() {
+        SubscriptionIndex index = new SubscriptionIndex('.');
+        Subscription client = subscribe(index, "zookeeper.client");
+
+        assertMatches(index, "zookeeper.client", client);
+        assertMatches(index, "zookeeper.client.connect.timeout", client);
+        assertMatches(index, "zookeeper");
+        assertMatches(index, "zookeeper.clientx");
+        assertMatches(index, "sys.event.bus.threads");
+    }
+
+    @Test
+    public void emptyPatternMatchesEverything() {
+        SubscriptionIndex index = new SubscriptionIndex('.');
+        Subscription all = subscribe(index, "");
+
+        assertMatches(index, "", all);
+        assertMatches(index, "zookeeper.client.connect.timeout", all);
+    }
+
+    @Test
+    public void singleSegmentWildcard() {
+        SubscriptionIndex index = new SubscriptionIndex('.');
+        Subscription timeout = subscribe(index, "zookeeper.*.timeout");
+
+        assertMatches(index, "zookeeper.client.timeout", timeout);
+        assertMatches(index, "zookeeper.server.timeout.millis", timeout);
+        assertMatches(index, "zookeeper.timeout");
+        assertMatches(index, "zookeeper.client.session.timeout");
+    }
+
+    @Test
+    public void multiSegmentWildcard() {
+        SubscriptionIndex index = new SubscriptionIndex('.');
+        Subscription timeout = subscribe(index, "**.timeout");
+        Subscription zookeeper = subscribe(index, "zookeeper.**");
+
+        assertMatches(index, "timeout", timeout);
+        assertMatches(index, "sys.event.bus.block.timeout", timeout);
+        assertMatches(index, "zookeeper", zookeeper);
+        assertMatches(index, "zookeeper.client.session.timeout", zookeeper, timeout);
+        assertMatches(index, "sys.event.bus.threads");
+    }
+
+    @Test
+    public void pathSeparatorIgnoresEmptySegments() {
+        SubscriptionIndex index = new SubscriptionIndex('/');
+        Subscription tasker = subscribe(index, "/open//config-center/tasker001/");
+
+        assertMatches(index, "/open/config-center/tasker001", tasker);
+        assertMatches(index, "/open/config-center/tasker001/sys.properties", tasker);
+        assertMatches(index, "/open/config-center/tasker0010/sys.properties");
+        assertMatches(index, "/open/config-center");
+    }
+
+    @Test
+    public void deduplicatesAndOrdersShortestPatternFirst() {
+        SubscriptionIndex index = new SubscriptionIndex('.');
+        Subscription deep = subscribe(index, "zookeeper.client.connect");
+        Subscription shallow = subscribe(index, "zookeeper");
+        index.add("zookeeper.client", deep);
+
+        assertEquals(Arrays.asList(shallow, deep), new ArrayList<>(index.match("zookeeper.client.connect.timeout")));
+    }
+
+    @Test
+    public void removeStopsMatching() {
+        SubscriptionIndex index = new SubscriptionIndex('.');
+        Subscription first = subscribe(index, "zookeeper.client");
+        Subscription second = subscribe(index, "zookeeper.client");
+
+        index.remove("zookeeper.client", first);
+        index.remove("zookeeper.server", second);
+        index.remove("zookeeper.*", second);
+
+        assertMatches(index, "zookeeper.client.connect.timeout", second);
+    }
+
+    private Subscription subscribe(SubscriptionIndex index, String pattern) {
+        Subscription subscription = bus.subscribe(pattern, pattern, event -> {
+        });
+        index.add(pattern, subscription);
+        return subscription;
+    }
+
+    private static void assertMatches(SubscriptionIndex index, String key, Subscription... expected) {
+        Collection<Subscription> matched = index.match(key);
+        assertEquals(expected.length, matched.size(), key);
+        assertTrue(matched.containsAll(expected.length == 0 ? Collections.emptyList() : Arrays.asList(expected)), key);
+    }
+}
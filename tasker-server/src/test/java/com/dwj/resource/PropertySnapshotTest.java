@@ -0,0 +1,112 @@
+package com.dwj.resource;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/12
+ * @description: 配置快照测试 覆盖查找、hash冲突、按文件替换/移除和快照不可变
+ */
+public class PropertySnapshotTest {
+
+    @Test
+    public void emptySnapshotFindsNothing() {
+        assertNull(PropertySnapshot.EMPTY.get("zookeeper.client.connect.timeout"));
+        assertNull(PropertySnapshot.EMPTY.getConfigMap("zookeeper"));
+        assertEquals(0, PropertySnapshot.EMPTY.size());
+        assertEquals(0L, PropertySnapshot.EMPTY.getVersion());
+    }
+
+    @Test
+    public void findsEveryKeyAcrossFiles() {
+        Map<String, String> zookeeper = new HashMap<>();
+        Map<String, String> sys = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            zookeeper.put("zookeeper.item" + i, "z" + i);
+            sys.put("sys.item" + i, "s" + i);
+        }
+        PropertySnapshot snapshot = PropertySnapshot.EMPTY.withFile("zookeeper", zookeeper).withFile("sys", sys);
+
+        assertEquals(10000, snapshot.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("z" + i, snapshot.get(new String("zookeeper.item" + i)));
+            assertEquals("s" + i, snapshot.get("sys.item" + i));
+            assertNull(snapshot.get("missing.item" + i));
+        }
+    }
+
+    @Test
+    public void resolvesHashCollisions() {
+        //"Aa"与"BB"的hashCode相同
+        Map<String, String> props = new HashMap<>();
+        props.put("Aa", "1");
+        props.put("BB", "2");
+        props.put("AaAa", "3");
+        props.put("BBBB", "4");
+        props.put("AaBB", "5");
+        PropertySnapshot snapshot = PropertySnapshot.EMPTY.withFile("collision", props);
+
+        assertEquals("1", snapshot.get("Aa"));
+        assertEquals("2", snapshot.get("BB"));
+        assertEquals("3", snapshot.get("AaAa"));
+        assertEquals("4", snapshot.get("BBBB"));
+        assertEquals("5", snapshot.get("AaBB"));
+        assertNull(snapshot.get("BBAa"));
+    }
+
+    @Test
+    public void withFileReplacesOnlyThatFile() {
+        Map<String, String> first = new HashMap<>();
+        first.put("sys.a", "1");
+        first.put("sys.b", "2");
+        PropertySnapshot v1 = PropertySnapshot.EMPTY.withFile("sys", first)
+                .withFile("zookeeper", singleton("zookeeper.a", "z"));
+        Map<String, String> second = singleton("sys.a", "10");
+        PropertySnapshot v2 = v1.withFile("sys", second);
+
+        assertEquals(v1.getVersion() + 1, v2.getVersion());
+        assertEquals("10", v2.get("sys.a"));
+        assertNull(v2.get("sys.b"));
+        assertEquals("z", v2.get("zookeeper.a"));
+        assertEquals("1", v1.get("sys.a"));
+        assertEquals("2", v1.get("sys.b"));
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByCallerMap() {
+        Map<String, String> props = singleton("sys.a", "1");
+        PropertySnapshot snapshot = PropertySnapshot.EMPTY.withFile("sys", props);
+        props.put("sys.a", "2");
+        props.put("sys.b", "3");
+
+        assertEquals("1", snapshot.get("sys.a"));
+        assertNull(snapshot.get("sys.b"));
+        assertEquals(1, snapshot.getConfigMap("sys").size());
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.getConfigMap("sys").put("sys.c", "4"));
+    }
+
+    @Test
+    public void withoutFileRemovesOnlyThatFile() {
+        PropertySnapshot v1 = PropertySnapshot.EMPTY.withFile("sys", singleton("sys.a", "1"))
+                .withFile("zookeeper", singleton("zookeeper.a", "z"));
+        PropertySnapshot v2 = v1.withoutFile("sys");
+
+        assertEquals(v1.getVersion() + 1, v2.getVersion());
+        assertNull(v2.get("sys.a"));
+        assertNull(v2.getConfigMap("sys"));
+        assertEquals("z", v2.get("zookeeper.a"));
+        assertEquals("1", v1.get("sys.a"));
+        assertSame(v2, v2.withoutFile("sys"));
+    }
+
+    private static Map<String, String> singleton(String key, String value) {
+        Map<String, String> props = new HashMap<>();
+        props.put(key, value);
+        return props;
+    }
+}
@@ -0,0 +1,124 @@
+package com.dwj.resource;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/13
+ * @description: 预解析配置项句柄测试 覆盖时长单位后缀、格式错误保持当前值、空值恢复默认值和旧快照不覆盖新值
+ */
+public class TypedPropertyTest {
+    private static final String KEY = "sys.typed.property.test";
+
+    private PropertySnapshot current = PropertySnapshot.EMPTY;
+
+    @Test
+    public void durationParsesUnitSuffixes() {
+        DurationProperty property = new DurationProperty(KEY, 3L, TimeUnit.SECONDS);
+        assertEquals(3000L, property.toMillis());
+
+        assertEquals(500L, refresh(property, "500ms").toMillis());
+        assertEquals(30000L, refresh(property, "30s").toMillis());
+        assertEquals(TimeUnit.MINUTES.toMillis(2), refresh(property, "2m").toMillis());
+        assertEquals(TimeUnit.HOURS.toMillis(1), refresh(property, "1H").toMillis());
+        assertEquals(TimeUnit.DAYS.toMillis(7), refresh(property, "7d").toMillis());
+        assertEquals(TimeUnit.DAYS.toMillis(7), property.get().toMillis());
+        assertEquals(250L, refresh(property, " 250 ms ").toMillis());
+    }
+
+    @Test
+    public void durationWithoutSuffixUsesHandleUnit() {
+        assertEquals(5000L, refresh(new DurationProperty(KEY, 1L, TimeUnit.MILLISECONDS), "5000").toMillis());
+        assertEquals(TimeUnit.MINUTES.toMillis(5), refresh(new DurationProperty(KEY, 1L, TimeUnit.MINUTES), "5").toMillis());
+    }
+
+    @Test
+    public void durationBadInputKeepsPreviousValue() {
+        DurationProperty property = refresh(new DurationProperty(KEY, 1L, TimeUnit.SECONDS), "10s");
+
+        assertEquals(10000L, refresh(property, "ten seconds").toMillis());
+        assertEquals(10000L, refresh(property, "-5s").toMillis());
+        assertEquals(10000L, refresh(property, "1.5s").toMillis());
+        assertEquals(10000L, refresh(property, "3w").toMillis());
+    }
+
+    @Test
+    public void booleanAcceptsAliases() {
+        BooleanProperty property = new BooleanProperty(KEY, false);
+        for (String raw : new String[]{"true", "YES", "on", "1"}) {
+            assertTrue(refresh(property, raw).get(), raw);
+        }
+        for (String raw : new String[]{"false", "No", "OFF", "0"}) {
+            assertFalse(refresh(property, raw).get(), raw);
+        }
+    }
+
+    @Test
+    public void booleanBadInputKeepsPreviousValue() {
+        BooleanProperty property = refresh(new BooleanProperty(KEY, false), "on");
+
+        assertTrue(refresh(property, "enabled").get());
+        assertTrue(refresh(property, "2").get());
+    }
+
+    @Test
+    public void intAndLongBadInputKeepsPreviousValue() {
+        IntProperty intProperty = refresh(new IntProperty(KEY, 1), "42");
+        assertEquals(42, intProperty.get());
+        assertEquals(42, refresh(intProperty, "4x").get());
+        assertEquals(42, refresh(intProperty, "3000000000").get());
+
+        LongProperty longProperty = refresh(new LongProperty(KEY, 1L), "3000000000");
+        assertEquals(3000000000L, longProperty.get());
+        assertEquals(3000000000L, refresh(longProperty, "1e3").get());
+    }
+
+    @Test
+    public void blankOrMissingValueRestoresDefault() {
+        IntProperty property = refresh(new IntProperty(KEY, 7), "42");
+
+        assertEquals(7, refresh(property, "  ").get());
+        refresh(property, "42");
+        property.refresh(reload(new HashMap<>()));
+        assertEquals(7, property.get());
+    }
+
+    @Test
+    public void olderSnapshotDoesNotOverwriteNewerValue() {
+        IntProperty property = new IntProperty(KEY, 0);
+        PropertySnapshot older = reload(singleton("1"));
+        PropertySnapshot newer = reload(singleton("2"));
+
+        property.refresh(newer);
+        property.refresh(older);
+        assertEquals(2, property.get());
+
+        property.refresh(reload(singleton("3")));
+        assertEquals(3, property.get());
+    }
+
+    private <T extends TypedProperty> T refresh(T property, String raw) {
+        property.refresh(reload(singleton(raw)));
+        return property;
+    }
+
+    /**
+     * 模拟配置文件reload 每次生成的快照版本都比上一次新
+     */
+    private PropertySnapshot reload(Map<String, String> props) {
+        current = current.withFile("sys", props);
+        return current;
+    }
+
+    private static Map<String, String> singleton(String raw) {
+        Map<String, String> props = new HashMap<>();
+        props.put(KEY, raw);
+        return props;
+    }
+}
@@ -0,0 +1,125 @@
+package com.dwj.zookeeper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author daiwj
+ * @date 2021/07/13
+ * @description: 节点快照测试 覆盖读取远端内容与replace之间到达的实时事件，以及快照文件的读写校验
+ */
+public class NodeSnapshotTest {
+    private static final String ROOT = "/open/config-center/tasker001";
+    private static final String A = ROOT + "/a.properties";
+    private static final String B = ROOT + "/b.properties";
+
+    private Path dir;
+    private NodeSnapshot snapshot;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("node-snapshot-test");
+        snapshot = new NodeSnapshot(dir.resolve("nodes.snapshot"), ROOT);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void liveRemovalAfterRemoteReadIsNotRestored() {
+        snapshot.put(A, 5L, 1, data("a=1"));
+        //对账线程读取远端内容
+        NodeSnapshot.Node[] remote = {node(A, 5L, "a=1"), node(B, 3L, "b=1")};
+        //实时删除事件先于replace到达
+        snapshot.remove(A, 5L);
+        snapshot.replace(Arrays.asList(remote));
+
+        assertNull(snapshot.get(A));
+        assertEquals(3L, snapshot.get(B).getMzxid());
+    }
+
+    @Test
+    public void recreatedNodeAfterRemovalIsKept() {
+        snapshot.remove(A, 5L);
+        snapshot.put(A, 9L, 0, data("a=2"));
+        snapshot.replace(Collections.singletonList(node(A, 5L, "a=1")));
+
+        assertEquals(9L, snapshot.get(A).getMzxid());
+        assertArrayEquals(data("a=2"), snapshot.get(A).getData());
+    }
+
+    @Test
+    public void liveUpdateAndAddAfterRemoteReadAreKept() {
+        snapshot.put(B, 1L, 0, data("stale"));
+        snapshot.replace(Collections.singletonList(node(B, 1L, "stale")));
+
+        NodeSnapshot.Node[] remote = {node(A, 5L, "a=1")};
+        snapshot.put(A, 8L, 2, data("a=3"));
+        snapshot.put(ROOT + "/c.properties", 7L, 0, data("c=1"));
+        snapshot.replace(Arrays.asList(remote));
+
+        assertEquals(8L, snapshot.get(A).getMzxid());
+        assertEquals(7L, snapshot.get(ROOT + "/c.properties").getMzxid());
+        //快照中有而远端已不存在、且没有实时事件的节点被移除
+        assertNull(snapshot.get(B));
+    }
+
+    @Test
+    public void tombstonesAreClearedByReplace() {
+        snapshot.remove(A, 5L);
+        snapshot.replace(Collections.emptyList());
+        snapshot.replace(Collections.singletonList(node(A, 5L, "a=1")));
+
+        assertNotNull(snapshot.get(A));
+    }
+
+    @Test
+    public void persistedSnapshotLoadsBack() throws Exception {
+        snapshot.put(A, 5L, 1, data("a=1"));
+        snapshot.put(B, 6L, 2, data("b=1"));
+        Path file = dir.resolve("nodes.snapshot");
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (Files.notExists(file) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+
+        NodeSnapshot loaded = new NodeSnapshot(file, ROOT);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.getNodes().size());
+        assertEquals(6L, loaded.get(B).getMzxid());
+        assertArrayEquals(data("a=1"), loaded.get(A).getData());
+
+        assertFalse(new NodeSnapshot(file, ROOT + "-other").load());
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(file, bytes);
+        assertFalse(new NodeSnapshot(file, ROOT).load());
+    }
+
+    private static NodeSnapshot.Node node(String path, long mzxid, String content) {
+        return new NodeSnapshot.Node(path, mzxid, 0, data(content));
+    }
+
+    private static byte[] data(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}